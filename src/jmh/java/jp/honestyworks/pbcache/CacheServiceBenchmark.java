@@ -0,0 +1,64 @@
+package jp.honestyworks.pbcache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link CacheService#get(Object)} and {@link CacheService#put(Object, Object)}
+ * against {@link InProcessMemcache}, so that only encoding, chunking and local cache are measured.
+ * Values over {@link CacheService#CACHE_SIZE_LIMIT} are chunked.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheServiceBenchmark {
+
+  private static final String KEY = "bench";
+
+  /** size of the data in the item */
+  @Param({"1024", "65536", "2097152"})
+  public int size;
+
+  /** false to measure the memcache path only */
+  @Param({"true", "false"})
+  public boolean localCache;
+
+  CacheService cacheService;
+
+  CacheItem item;
+
+  @Setup
+  public void setUp() {
+    cacheService =
+        new CacheService(InProcessMemcache.create(), new LocalCache(64L * 1024 * 1024, 60000L));
+    cacheService.useLocalCache(localCache);
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    item = new CacheItem(data, 1L, new byte[128]);
+    cacheService.put(KEY, item);
+  }
+
+  @Benchmark
+  public Object get() {
+    return cacheService.get(KEY);
+  }
+
+  @Benchmark
+  public Object put() {
+    return cacheService.put(KEY, item);
+  }
+}
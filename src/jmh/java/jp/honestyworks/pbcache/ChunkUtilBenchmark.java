@@ -0,0 +1,62 @@
+package jp.honestyworks.pbcache;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of splitting large values into memcache sized chunks and packing them again.
+ * writeChunks serializes directly into chunks, as {@link CacheService} does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkUtilBenchmark {
+
+  /** size of the value in MB */
+  @Param({"1", "2", "5", "10"})
+  public int megabytes;
+
+  byte[] data;
+
+  List<byte[]> chunks;
+
+  @Setup
+  public void setUp() {
+    data = new byte[megabytes * 1024 * 1024];
+    new Random(megabytes).nextBytes(data);
+    chunks = ChunkUtil.makeChunks(data, CacheService.CHUNK_SIZE);
+  }
+
+  @Benchmark
+  public List<byte[]> makeChunks() {
+    return ChunkUtil.makeChunks(data, CacheService.CHUNK_SIZE);
+  }
+
+  @Benchmark
+  public byte[] packChunks() {
+    return ChunkUtil.packChunks(chunks);
+  }
+
+  @Benchmark
+  public List<byte[]> writeChunks() throws IOException {
+    ChunkUtil.ChunkOutputStream output = new ChunkUtil.ChunkOutputStream(CacheService.CHUNK_SIZE);
+    Codecs.getDefault().write(data, output);
+    return output.getChunks();
+  }
+}
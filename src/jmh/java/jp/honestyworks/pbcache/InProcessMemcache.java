@@ -0,0 +1,84 @@
+package jp.honestyworks.pbcache;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process stand-in of {@link MemcacheService} for benchmarks.
+ * <p>
+ * Only the methods used by {@link CacheService} and the key utilities are supported.
+ * Values are kept as is, so the cost of the memcache RPC itself is not included.
+ * </p>
+ */
+public class InProcessMemcache implements InvocationHandler {
+
+  private final Map<Object, Object> values = new ConcurrentHashMap<Object, Object>();
+
+  private InProcessMemcache() {}
+
+  /**
+   * @return memcache service backed by a new in-process map
+   */
+  public static MemcacheService create() {
+    return (MemcacheService)
+        Proxy.newProxyInstance(
+            MemcacheService.class.getClassLoader(),
+            new Class<?>[] {MemcacheService.class},
+            new InProcessMemcache());
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    String name = method.getName();
+    if ("get".equals(name)) {
+      return values.get(args[0]);
+    } else if ("getAll".equals(name)) {
+      Map<Object, Object> result = new HashMap<Object, Object>();
+      for (Object key : (Collection<?>) args[0]) {
+        Object value = values.get(key);
+        if (value != null) {
+          result.put(key, value);
+        }
+      }
+      return result;
+    } else if ("put".equals(name)) {
+      values.put(args[0], args[1]);
+      return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+    } else if ("putAll".equals(name)) {
+      Map<?, ?> map = (Map<?, ?>) args[0];
+      values.putAll(map);
+      return method.getReturnType() == void.class ? null : new HashSet<Object>(map.keySet());
+    } else if ("increment".equals(name) && args.length == 3) {
+      return increment(args[0], (Long) args[1], (Long) args[2]);
+    } else if ("delete".equals(name)) {
+      return values.remove(args[0]) != null;
+    } else if ("contains".equals(name)) {
+      return values.containsKey(args[0]);
+    } else if ("clearAll".equals(name)) {
+      values.clear();
+      return null;
+    }
+    throw new UnsupportedOperationException(name);
+  }
+
+  private synchronized Long increment(Object key, long delta, Long initialValue) {
+    Object current = values.get(key);
+    long value;
+    if (current instanceof Long) {
+      value = (Long) current + delta;
+    } else if (initialValue != null) {
+      value = initialValue + delta;
+    } else {
+      return null;
+    }
+    values.put(key, value);
+    return value;
+  }
+}
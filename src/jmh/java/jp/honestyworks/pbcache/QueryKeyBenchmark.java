@@ -0,0 +1,70 @@
+package jp.honestyworks.pbcache;
+
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.apphosting.api.DatastorePb.Query.Filter.Operator;
+import com.google.apphosting.api.DatastorePb.Query.Order.Direction;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the memcache key of a RunQuery request.
+ * queryKey is the current fingerprint key of {@link QueryCache},
+ * base64Key is the former key which encoded the whole request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryKeyBenchmark {
+
+  /** number of filters in the query */
+  @Param({"1", "4", "16"})
+  public int filters;
+
+  QueryCache queryCache = new QueryCache();
+
+  byte[] request;
+
+  @Setup
+  public void setUp() {
+    Query query = new Query();
+    query.setApp("pbcache-bench");
+    query.setKind("Bench");
+    for (int i = 0; i < filters; i++) {
+      query
+          .addFilter()
+          .setOp(Operator.EQUAL)
+          .addProperty()
+          .setName("prop" + i)
+          .setMultiple(false)
+          .getMutableValue()
+          .setStringValue("value" + i);
+    }
+    query.addOrder().setProperty("prop0").setDirection(Direction.DESCENDING);
+    query.setLimit(20);
+    request = query.toByteArray();
+  }
+
+  @Benchmark
+  public String queryKey() {
+    return queryCache.getQueryKey(request);
+  }
+
+  @Benchmark
+  public String base64Key() {
+    return CacheService.KEY_RUNQUERY + Base64.encodeBase64String(request);
+  }
+}
@@ -0,0 +1,56 @@
+package jp.honestyworks.pbcache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of encoding and decoding {@link CacheItem}s by {@link StreamUtil}.
+ * Bytes allocated per operation are reported by "-prof gc".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamUtilBenchmark {
+
+  /** size of the data in the item */
+  @Param({"1024", "65536", "1048576"})
+  public int size;
+
+  CacheItem item;
+
+  byte[] encoded;
+
+  @Setup
+  public void setUp() {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    byte[] request = new byte[128];
+    new Random(0).nextBytes(request);
+    item = new CacheItem(data, 1L, request);
+    encoded = StreamUtil.toBytes(item);
+  }
+
+  @Benchmark
+  public byte[] toBytes() {
+    return StreamUtil.toBytes(item);
+  }
+
+  @Benchmark
+  public Object toObject() {
+    return StreamUtil.toObject(encoded);
+  }
+}
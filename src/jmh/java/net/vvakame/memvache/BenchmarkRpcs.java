@@ -0,0 +1,174 @@
+package net.vvakame.memvache;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.repackaged.com.google.protobuf.ByteString;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.DatastorePb.DeleteRequest;
+import com.google.apphosting.api.DatastorePb.DeleteResponse;
+import com.google.apphosting.api.DatastorePb.GetRequest;
+import com.google.apphosting.api.DatastorePb.GetResponse;
+import com.google.apphosting.api.DatastorePb.NextRequest;
+import com.google.apphosting.api.DatastorePb.PutRequest;
+import com.google.apphosting.api.DatastorePb.PutResponse;
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.apphosting.api.DatastorePb.QueryResult;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * ベンチマークで使う固定のRPCのリクエストとレスポンス。
+ */
+class BenchmarkRpcs {
+
+  static final String APP = "memvache-bench";
+
+  static final String KIND = "Bench";
+
+  /** 1回のRPCで扱うEntityの数 */
+  static final int BATCH = 10;
+
+  static final String MEMCACHE = "memcache";
+
+  private static final Map<String, byte[]> requests = new HashMap<String, byte[]>();
+
+  private static final Map<String, byte[]> responses = new HashMap<String, byte[]>();
+
+  static {
+    GetRequest getRequest = new GetRequest();
+    GetResponse getResponse = new GetResponse();
+    PutRequest putRequest = new PutRequest();
+    PutResponse putResponse = new PutResponse();
+    DeleteRequest deleteRequest = new DeleteRequest();
+    QueryResult queryResult = new QueryResult();
+    for (int i = 1; i <= BATCH; i++) {
+      getRequest.addKey(key(i));
+      getResponse.addEntity().setEntity(entity(i));
+      putRequest.addEntity(entity(i));
+      putResponse.addKey(key(i));
+      deleteRequest.addKey(key(i));
+      queryResult.addResult(entity(i));
+    }
+    queryResult.setMoreResults(false);
+
+    Query query = new Query();
+    query.setApp(APP);
+    query.setKind(KIND);
+
+    NextRequest nextRequest = new NextRequest();
+    nextRequest.getMutableCursor().setApp(APP).setCursor(1L);
+    nextRequest.setCount(BATCH);
+
+    register(MemvacheDelegate.DATASTORE_V3, "Get", getRequest.toByteArray(),
+        getResponse.toByteArray());
+    register(MemvacheDelegate.DATASTORE_V3, "Put", putRequest.toByteArray(),
+        putResponse.toByteArray());
+    register(MemvacheDelegate.DATASTORE_V3, "Delete", deleteRequest.toByteArray(),
+        new DeleteResponse().toByteArray());
+    register(MemvacheDelegate.DATASTORE_V3, "RunQuery", query.toByteArray(),
+        queryResult.toByteArray());
+    register(MemvacheDelegate.DATASTORE_V3, "Next", nextRequest.toByteArray(),
+        queryResult.toByteArray());
+
+    MemcacheGetRequest.Builder memcacheGet = MemcacheGetRequest.newBuilder();
+    for (int i = 1; i <= BATCH; i++) {
+      memcacheGet.addKey(ByteString.copyFromUtf8("key" + i));
+    }
+    register(MEMCACHE, "Get", memcacheGet.build().toByteArray(),
+        MemcacheGetResponse.newBuilder().build().toByteArray());
+  }
+
+  private static void register(String service, String method, byte[] request, byte[] response) {
+    requests.put(service + "." + method, request);
+    responses.put(service + "." + method, response);
+  }
+
+  static Reference key(long id) {
+    Reference reference = new Reference();
+    reference.setApp(APP);
+    reference.getMutablePath().addElement().setType(KIND).setId(id);
+    return reference;
+  }
+
+  static EntityProto entity(long id) {
+    EntityProto entity = new EntityProto();
+    entity.getMutableKey().copyFrom(key(id));
+    entity.getMutableEntityGroup().addElement().setType(KIND).setId(id);
+    entity.addProperty().setName("name").setMultiple(false).getMutableValue()
+        .setStringValue("value" + id);
+    entity.addProperty().setName("count").setMultiple(false).getMutableValue()
+        .setInt64Value(id);
+    return entity;
+  }
+
+  /**
+   * 固定のリクエストを取得する。未登録のRPCには空のリクエストを返す。
+   * @param service
+   * @param method
+   * @return リクエスト
+   */
+  static byte[] request(String service, String method) {
+    byte[] request = requests.get(service + "." + method);
+    return request != null ? request : new byte[0];
+  }
+
+  /**
+   * 固定のレスポンスを取得する。未登録のRPCには空のレスポンスを返す。
+   * @param service
+   * @param method
+   * @return レスポンス
+   */
+  static byte[] response(String service, String method) {
+    byte[] response = responses.get(service + "." + method);
+    return response != null ? response : new byte[0];
+  }
+
+  /**
+   * 実際のRPCの代わりに固定のレスポンスを返す {@link Delegate}。
+   */
+  static class CannedDelegate implements Delegate<Environment> {
+
+    @Override
+    public byte[] makeSyncCall(
+        Environment env, String service, String method, byte[] request) {
+      return response(service, method);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(
+        Environment env, String service, String method, byte[] request, ApiConfig config) {
+      return CompletableFuture.completedFuture(response(service, method));
+    }
+
+    @Override
+    public void log(Environment env, LogRecord logRecord) {}
+
+    @Override
+    public void flushLogs(Environment env) {}
+
+    @Override
+    public List<Thread> getRequestThreads(Environment env) {
+      return new ArrayList<Thread>();
+    }
+  }
+
+  /**
+   * 何もしない {@link RpcVisitor}。Protocol Bufferのパースとディスパッチのコストだけがかかる。
+   */
+  static class PassThroughVisitor extends RpcVisitor {
+
+    @Override
+    public int getPriority() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package net.vvakame.memvache;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.apphosting.api.DatastorePb.Query.Filter.Operator;
+import java.util.concurrent.TimeUnit;
+import jp.honestyworks.pbcache.InProcessMemcache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MemcacheKeyUtil#createQueryKey(MemcacheService, Query)} のコストを計測する。<br>
+ * Memcacheはプロセス内のMapで代用するので、Keyの組み立てとQueryのhashCodeの分だけになる。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemcacheKeyUtilBenchmark {
+
+  /** Queryのフィルタの数 */
+  @Param({"1", "4", "16"})
+  public int filters;
+
+  MemcacheService memcache = InProcessMemcache.create();
+
+  Query query;
+
+  @Setup
+  public void setUp() {
+    query = new Query();
+    query.setApp(BenchmarkRpcs.APP);
+    query.setKind(BenchmarkRpcs.KIND);
+    for (int i = 0; i < filters; i++) {
+      query
+          .addFilter()
+          .setOp(Operator.EQUAL)
+          .addProperty()
+          .setName("prop" + i)
+          .setMultiple(false)
+          .getMutableValue()
+          .setStringValue("value" + i);
+    }
+    StringBuilder builder = new StringBuilder();
+    memcache.put(MemcacheKeyUtil.createKindKey(builder, query), 1L);
+  }
+
+  @Benchmark
+  public String createQueryKey() {
+    return MemcacheKeyUtil.createQueryKey(memcache, query);
+  }
+}
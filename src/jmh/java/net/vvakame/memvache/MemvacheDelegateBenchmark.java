@@ -0,0 +1,64 @@
+package net.vvakame.memvache;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.vvakame.memvache.BenchmarkRpcs.CannedDelegate;
+import net.vvakame.memvache.BenchmarkRpcs.PassThroughVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MemvacheDelegate} を通したRPCのスループットを計測する。<br>
+ * 親の {@link com.google.apphosting.api.ApiProxy.Delegate} は固定のレスポンスを返すだけなので、
+ * Strategyの数ごとのインターセプトのコストが分かる。strategies=0 が素通しの場合。
+ * <p>
+ * 1操作あたりのアロケーションは {@code java -jar target/benchmarks.jar -prof gc} で見る。
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemvacheDelegateBenchmark {
+
+  @Param({"Get", "Put", "Delete", "RunQuery", "Next"})
+  public String method;
+
+  @Param({"0", "1", "2", "4"})
+  public int strategies;
+
+  MemvacheDelegate delegate;
+
+  byte[] request;
+
+  @Setup
+  public void setUp() {
+    StrategyBuilder builder = StrategyBuilder.newBuilder();
+    for (int i = 0; i < strategies; i++) {
+      builder.addStrategy(MemvacheDelegate.DATASTORE_V3, PassThroughVisitor.class);
+    }
+    delegate = new MemvacheDelegate(new CannedDelegate(), builder.buid());
+    request = BenchmarkRpcs.request(MemvacheDelegate.DATASTORE_V3, method);
+  }
+
+  @Benchmark
+  public byte[] makeSyncCall() {
+    return delegate.makeSyncCall(null, MemvacheDelegate.DATASTORE_V3, method, request);
+  }
+
+  @Benchmark
+  public byte[] makeAsyncCall() throws InterruptedException, ExecutionException {
+    return delegate.makeAsyncCall(null, MemvacheDelegate.DATASTORE_V3, method, request, null).get();
+  }
+}
@@ -0,0 +1,69 @@
+package net.vvakame.memvache;
+
+import java.util.concurrent.TimeUnit;
+import net.vvakame.memvache.BenchmarkRpcs.PassThroughVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link RpcVisitor} のディスパッチのコストを計測する。<br>
+ * service/methodの判定と、リクエスト・レスポンスのパースにかかる分。
+ * urlfetch.Fetch は全ての分岐を素通りする場合。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RpcVisitorBenchmark {
+
+  @Param({
+    "datastore_v3.Get",
+    "datastore_v3.Put",
+    "datastore_v3.Delete",
+    "datastore_v3.RunQuery",
+    "datastore_v3.Next",
+    "memcache.Get",
+    "urlfetch.Fetch"
+  })
+  public String rpc;
+
+  RpcVisitor visitor = new PassThroughVisitor();
+
+  String service;
+
+  String method;
+
+  byte[] request;
+
+  byte[] response;
+
+  @Setup
+  public void setUp() {
+    int index = rpc.indexOf('.');
+    service = rpc.substring(0, index);
+    method = rpc.substring(index + 1);
+    request = BenchmarkRpcs.request(service, method);
+    response = BenchmarkRpcs.response(service, method);
+  }
+
+  @Benchmark
+  public Pair<byte[], byte[]> preProcess() {
+    return visitor.preProcess(service, method, request);
+  }
+
+  @Benchmark
+  public byte[] postProcess() {
+    return visitor.postProcess(service, method, request, response);
+  }
+}
@@ -30,18 +30,19 @@ public class CacheContext {
     queryCache = new QueryCache();
   }
 
-  private static ThreadLocal<CacheContext> threadInstance;
+  /**
+   * Created eagerly. Creating it lazily without a lock lets concurrent threads
+   * replace each other's ThreadLocal and lose their contexts.
+   */
+  private static final ThreadLocal<CacheContext> threadInstance =
+      new ThreadLocal<CacheContext>() {
+        @Override
+        protected CacheContext initialValue() {
+          return new CacheContext();
+        }
+      };
 
   public static CacheContext getInstance() {
-    if (threadInstance == null) {
-      threadInstance =
-          new ThreadLocal<CacheContext>() {
-            @Override
-            protected CacheContext initialValue() {
-              return new CacheContext();
-            }
-          };
-    }
     return threadInstance.get();
   }
 
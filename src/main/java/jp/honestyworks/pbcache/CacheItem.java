@@ -28,6 +28,8 @@ public class CacheItem implements Serializable {
 
   private Object data;
   private Date timestamp;
+  private long generation;
+  private byte[] request;
 
   public Object getData() {
     return data;
@@ -37,9 +39,39 @@ public class CacheItem implements Serializable {
     return timestamp;
   }
 
+  /**
+   * Generation of the cache group at the time this item was created.
+   * @return generation
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Original request the cache key was made from. Used to detect key collisions.
+   * @return request, or null
+   */
+  public byte[] getRequest() {
+    return request;
+  }
+
   public CacheItem(Object data) {
+    this(data, 0L);
+  }
+
+  public CacheItem(Object data, long generation) {
+    this(data, generation, null);
+  }
+
+  public CacheItem(Object data, long generation, byte[] request) {
+    this(data, new Date(), generation, request);
+  }
+
+  CacheItem(Object data, Date timestamp, long generation, byte[] request) {
     super();
     this.data = data;
-    this.timestamp = new Date();
+    this.timestamp = timestamp;
+    this.generation = generation;
+    this.request = request;
   }
 }
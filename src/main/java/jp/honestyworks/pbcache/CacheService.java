@@ -26,15 +26,23 @@ import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.InvalidValueException;
 import com.google.appengine.api.memcache.MemcacheService;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import net.vvakame.memvache.CircuitBreaker;
+import net.vvakame.memvache.JfrEvents;
 import net.vvakame.memvache.MemcacheServiceWrapper;
+import net.vvakame.memvache.MemvacheMetrics;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -52,22 +60,25 @@ public class CacheService {
   private static final Log logger = LogFactory.getLog(CacheService.class);
 
   private static final long LOCAL_CACHE_TTL = 5000;
-  private static final String CHUNK_PREFIX = "%CHUNK%";
+  private static final long LOCAL_CACHE_DEFAULT_SIZE = 16 * 1024 * 1024;
 
   public static final int CHUNK_SIZE = 1000000;
   public static int CACHE_SIZE_LIMIT = 1000000;
 
+  /** header of values encoded by {@link Codecs}, followed by the codec id */
+  private static final byte[] ENCODED_HEADER = {0, 'p', 'b', 'c'};
+
   public static final String RESET_DATE_KIND = "CacheReset";
   public static final String RESET_DATE_PROP = "resetDate";
   public static final String KEY_RESET_DATE = "CacheResetDate:";
   public static final String KEY_RUNQUERY = "RunQuery:";
+  public static final String KEY_GENERATION = "CacheGeneration:";
   public static final long MEMCACHE_DEFAULT_TIMEOUT = 3000L;
 
-  // Local cache.
-  private Map<String, Object> localCache;
-  private long localCacheTime;
-  private int localHits;
-  private int cacheHits;
+  // Local cache. shared by all threads of the instance.
+  private static final LocalCache sharedLocalCache = createLocalCache();
+  private LocalCache localCache;
+  private static final MemvacheMetrics metrics = MemvacheMetrics.get();
   private MemcacheService globalCache;
   private boolean localCacheUsed = true;
 
@@ -82,18 +93,51 @@ public class CacheService {
     } else {
       globalCache = new MemcacheServiceWrapper(MEMCACHE_DEFAULT_TIMEOUT);
     }
-    localCache = new HashMap<String, Object>();
-    localCacheTime = System.currentTimeMillis();
+    localCache = sharedLocalCache;
   }
 
   /**
-   * Reset local cache according to TTL.
+   * Initialize cache service over the given caches.
+   * Used by benchmarks to run against an in-process memcache.
+   * @param globalCache
+   * @param localCache
    */
-  public void resetLocalCache() {
-    if (System.currentTimeMillis() - localCacheTime > LOCAL_CACHE_TTL) {
-      localCache.clear();
-      localCacheTime = System.currentTimeMillis();
+  CacheService(MemcacheService globalCache, LocalCache localCache) {
+    this.globalCache = globalCache;
+    this.localCache = localCache;
+  }
+
+  /**
+   * Create local cache. size and TTL can be configured by
+   * "localcache.size" (bytes) and "localcache.ttl" (millis) system properties.
+   */
+  private static LocalCache createLocalCache() {
+    long size = LOCAL_CACHE_DEFAULT_SIZE;
+    long ttl = LOCAL_CACHE_TTL;
+    String sizeStr = System.getProperty("localcache.size");
+    if (!StringUtils.isEmpty(sizeStr)) {
+      size = Long.parseLong(sizeStr);
     }
+    String ttlStr = System.getProperty("localcache.ttl");
+    if (!StringUtils.isEmpty(ttlStr)) {
+      ttl = Long.parseLong(ttlStr);
+    }
+    return new LocalCache(size, ttl);
+  }
+
+  /**
+   * Remove expired entries from local cache.
+   * Each entry expires according to its own TTL, so this is only for releasing heap early.
+   */
+  public void resetLocalCache() {
+    localCache.purgeExpired();
+  }
+
+  /**
+   * @return local cache shared by all threads of the instance.
+   */
+  public LocalCache getLocalCache() {
+    return localCache;
   }
 
   /**
@@ -106,19 +150,22 @@ public class CacheService {
     Map result = new HashMap();
     List memcacheKeys = new ArrayList();
     for (Object key : keys) {
-      String localKey = localKey((String) key);
-      if (localCacheUsed && localCache.containsKey(localKey)) {
-        result.put(key, localCache.get(localKey));
+      Object value = localCacheUsed ? localCache.get(localKey((String) key)) : null;
+      if (value != null) {
+        result.put(key, value);
       } else {
         memcacheKeys.add(key);
       }
     }
+    metrics.add("pbcache.local.hit", result.size());
     Map globalResults = globalCache.getAll(memcacheKeys);
     if (globalResults == null) {
+      metrics.add("pbcache.miss", memcacheKeys.size());
       return result;
     }
+    int localHits = result.size();
     for (Object key : globalResults.keySet()) {
-      Object value = resolveChunk(globalResults.get(key));
+      Object value = resolveValue(key, globalResults.get(key));
       if (value != null) {
         result.put(key, value);
         if (localCacheUsed) {
@@ -126,6 +173,8 @@ public class CacheService {
         }
       }
     }
+    metrics.add("pbcache.memcache.hit", result.size() - localHits);
+    metrics.add("pbcache.miss", keys.size() - result.size());
     return result;
   }
 
@@ -178,6 +227,7 @@ public class CacheService {
     // cache
     put(KEY_RESET_DATE + keyname, date);
     logger.debug("put reset date for : " + keyname);
+    JfrEvents.invalidation("resetDate", keyname, date.getTime());
 
     return;
   }
@@ -209,6 +259,82 @@ public class CacheService {
     return null;
   }
 
+  /**
+   * Get memcache key of the generation counter for the keyname.
+   * @param keyname
+   * @return
+   */
+  public static String generationKey(String keyname) {
+    return KEY_GENERATION + keyname;
+  }
+
+  /**
+   * Get generation counter for the keyname.
+   * A read never creates the counter, so a missing counter is a miss.
+   * While the memcache circuit breaker is not closed, no memcache call is made.
+   * @param keyname
+   * @return generation, or null if the counter does not exist or memcache is unavailable
+   */
+  public Long getGeneration(String keyname) {
+    if (!memcacheAvailable()) {
+      return null;
+    }
+    Object generation = get(generationKey(keyname));
+    if (generation instanceof Long) {
+      return (Long) generation;
+    }
+    return null;
+  }
+
+  /**
+   * Create generation counter for the keyname if it does not exist.
+   * Called from the write path, so that a later read can observe the generation.
+   * @param keyname
+   * @return generation, or null if memcache is unavailable
+   */
+  public Long initGeneration(String keyname) {
+    if (!memcacheAvailable()) {
+      return null;
+    }
+    return incrementGeneration(keyname, 0L);
+  }
+
+  private static boolean memcacheAvailable() {
+    return MemcacheServiceWrapper.getCircuitBreaker().getState() == CircuitBreaker.State.CLOSED;
+  }
+
+  /**
+   * Bump generation counter for the keyname.
+   * Every value tagged with an older generation becomes stale.
+   * @param keyname
+   * @return new generation, or null if memcache is unavailable
+   */
+  public Long incrementGeneration(String keyname) {
+    Long generation = incrementGeneration(keyname, 1L);
+    logger.debug("increment generation for : " + keyname + " -> " + generation);
+    JfrEvents.invalidation("generation", keyname, generation == null ? -1 : generation);
+    return generation;
+  }
+
+  /**
+   * Increment generation counter.
+   * The counter is seeded with the current time so that a counter evicted from memcache
+   * never comes back to a value which was handed out before.
+   */
+  private Long incrementGeneration(String keyname, long delta) {
+    String key = generationKey(keyname);
+    Long generation = globalCache.increment(key, delta, System.currentTimeMillis());
+    if (localCacheUsed) {
+      String localKey = localKey(key);
+      if (generation != null) {
+        localCache.put(localKey, generation);
+      } else {
+        localCache.remove(localKey);
+      }
+    }
+    return generation;
+  }
+
   /**
    * true if the key is contained.
    * @param arg0
@@ -230,26 +356,29 @@ public class CacheService {
   public Object get(Object key) {
     try {
       String localKey = localKey((String) key);
-      if (localCacheUsed && localCache.containsKey(localKey)) {
-        localHits++;
+      Object localValue = localCacheUsed ? localCache.get(localKey) : null;
+      if (localValue != null) {
+        metrics.increment("pbcache.local.hit");
         logger.debug("hit local cache: " + localKey);
-        return localCache.get(localKey);
+        return localValue;
       }
       Object value = globalCache.get(key);
       if (value != null) {
-        value = resolveChunk(value);
+        value = resolveValue(key, value);
         if (value == null) {
           logger.debug("cache chunk miss: " + key);
+          metrics.increment("pbcache.miss");
           return null;
         }
         if (localCacheUsed) {
           localCache.put(localKey, value);
         }
-        cacheHits++;
+        metrics.increment("pbcache.memcache.hit");
         logger.debug("hit public cache: " + key);
         return value;
       }
       logger.debug("cache miss: " + key);
+      metrics.increment("pbcache.miss");
       return null;
     } catch (InvalidValueException e) {
       logger.error(e);
@@ -279,6 +408,35 @@ public class CacheService {
     }
   }
 
+  /**
+   * Get a value put by {@link #putToMemcache(String, Object, int)}.
+   * The local cache is not used, so the memcache expiry is seen by every instance alike.
+   * @param key
+   * @return
+   */
+  public Object getFromMemcache(String key) {
+    try {
+      return globalCache.get(key);
+    } catch (InvalidValueException e) {
+      logger.error(e);
+      return null;
+    }
+  }
+
+  /**
+   * Put a small value to memcache only, expiring after the seconds.
+   * @param key
+   * @param value
+   * @param seconds
+   */
+  public void putToMemcache(String key, Object value, int seconds) {
+    try {
+      globalCache.put(key, value, Expiration.byDeltaSeconds(seconds));
+    } catch (Exception e) {
+      logger.error(e.getMessage());
+    }
+  }
+
   /**
    * Put all pair of key and value to cache.
    * @param map
@@ -293,7 +451,11 @@ public class CacheService {
     }
     // localCache.putAll(map);
     try {
-      globalCache.putAll(map);
+      Map<Object, Object> cacheData = new HashMap<Object, Object>();
+      for (Object key : map.keySet()) {
+        encodeValue(cacheData, key, map.get(key));
+      }
+      globalCache.putAll(cacheData);
     } catch (Exception e) {
       logger.error(e.getMessage());
     }
@@ -317,94 +479,155 @@ public class CacheService {
     }
   }
 
+  /**
+   * @deprecated counted by {@link MemvacheMetrics} as "pbcache.local.hit" for all instances.
+   */
+  @Deprecated
   public int getLocalHits() {
-    return localHits;
+    return (int) metrics.getCount("pbcache.local.hit");
   }
 
+  /**
+   * @deprecated counted by {@link MemvacheMetrics} as "pbcache.memcache.hit" for all instances.
+   */
+  @Deprecated
   public int getCacheHits() {
-    return cacheHits;
+    return (int) metrics.getCount("pbcache.memcache.hit");
   }
 
-  private Object resolveChunk(Object value) {
-    if (value instanceof String && ((String) value).startsWith(CHUNK_PREFIX)) {
-      return getChunk((String) value);
+  /**
+   * Decode a value got from memcache.
+   * Values which are not encoded by this service (written by older versions) are returned as is.
+   */
+  private Object resolveValue(Object key, Object value) {
+    if (ChunkManifest.isManifest(value)) {
+      return getChunk(key, (String) value);
+    }
+    if (value instanceof byte[] && isEncoded((byte[]) value)) {
+      byte[] bytes = (byte[]) value;
+      metrics.add("pbcache.bytes.get", bytes.length);
+      int offset = ENCODED_HEADER.length;
+      return StreamUtil.toObject(new ByteArrayInputStream(bytes, offset, bytes.length - offset));
     }
     return value;
   }
 
+  private static boolean isEncoded(byte[] bytes) {
+    if (bytes.length < ENCODED_HEADER.length) {
+      return false;
+    }
+    for (int i = 0; i < ENCODED_HEADER.length; i++) {
+      if (bytes[i] != ENCODED_HEADER[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Get large cached data.
+   * All chunks are fetched with one memcache call and verified against the manifest.
+   * Chunks of a different write are treated as a cache miss.
    * @param key
+   * @param manifestValue
    * @return
    */
-  private Object getChunk(String chunkKey) {
-
-    String[] chunkList = null;
-    String valueType = "B";
-    if (chunkKey.startsWith(CHUNK_PREFIX)) {
-      String buff = chunkKey.substring(CHUNK_PREFIX.length() + 2);
-      chunkList = buff.split(",");
-      valueType = chunkKey.substring(CHUNK_PREFIX.length(), CHUNK_PREFIX.length() + 1);
-    } else {
-      chunkList = chunkKey.split(",");
-      valueType = "B";
+  private Object getChunk(Object key, String manifestValue) {
+
+    ChunkManifest manifest = ChunkManifest.parse(key, manifestValue);
+    if (manifest == null) {
+      logger.warn("broken chunk manifest: " + key);
+      return null;
     }
-    logger.debug("getChunk: " + valueType + " " + chunkList);
+    List<String> chunkKeys = manifest.getChunkKeys();
+    logger.debug("getChunk: " + key + " generation: " + manifest.getGeneration());
 
-    if (chunkList != null) {
-      List<byte[]> data = new ArrayList<byte[]>();
-      for (String oneKey : chunkList) {
-        byte[] chunk = (byte[]) globalCache.get(oneKey);
-        if (chunk == null) {
+    Map<String, Object> chunks = globalCache.getAll(chunkKeys);
+    if (chunks == null) {
+      return null;
+    }
+    List<byte[]> data = new ArrayList<byte[]>(chunkKeys.size());
+    for (String chunkKey : chunkKeys) {
+      Object chunk = chunks.get(chunkKey);
+      if (!(chunk instanceof byte[])) {
+        return null;
+      }
+      data.add((byte[]) chunk);
+      metrics.add("pbcache.bytes.get", ((byte[]) chunk).length);
+    }
+    if (data.isEmpty()) {
+      return null;
+    }
+    if (!manifest.verify(data)) {
+      logger.warn(
+          "chunks do not match the manifest, treat as miss: "
+              + key
+              + " generation: "
+              + manifest.getGeneration());
+      return null;
+    }
+    if (manifest.isObject()) {
+      // deserialize directly from the chunks
+      InputStream input = ChunkUtil.newInputStream(data);
+      if (isEncoded(data.get(0))) {
+        try {
+          input.skip(ENCODED_HEADER.length);
+        } catch (IOException e) {
           return null;
         }
-        data.add(chunk);
-      }
-      if (!data.isEmpty()) {
-        byte[] rawdata = ChunkUtil.packChunks(data);
-        return "O".equals(valueType) ? StreamUtil.toObject(rawdata) : rawdata;
       }
+      return StreamUtil.toObject(input);
     }
-    return null;
+    return ChunkUtil.packChunks(data);
   }
 
   /**
-   * Put large cached data.
+   * Put data. The data is serialized exactly once, and the encoded bytes are handed to memcache.
    * @param key
    * @param data
    */
-  private void putChunk(Object key, Object data) {
+  private void putChunk(Object key, Object data) throws IOException {
 
-    byte[] rawdata = null;
-    String prefix = CHUNK_PREFIX;
-    if (data instanceof byte[]) {
-      rawdata = (byte[]) data;
-      prefix += "B%";
+    Map<Object, Object> cacheData = new HashMap<Object, Object>();
+    encodeValue(cacheData, key, data);
+    if (cacheData.size() == 1) {
+      // chunk必要なし
+      globalCache.put(key, cacheData.get(key));
     } else {
-      rawdata = StreamUtil.toBytes(data);
-      prefix += "O%";
+      globalCache.putAll(cacheData);
     }
-    if (rawdata.length < CACHE_SIZE_LIMIT) {
-      // chunk必要なし
-      globalCache.put(key, data);
+    return;
+  }
+
+  /**
+   * Encode data and add it to the map to put.
+   * Large data is split into chunks, and a manifest is put under the key.
+   * @param cacheData
+   * @param key
+   * @param data
+   */
+  private void encodeValue(Map<Object, Object> cacheData, Object key, Object data)
+      throws IOException {
+
+    // serialize directly into chunks
+    ChunkUtil.ChunkOutputStream output = new ChunkUtil.ChunkOutputStream(CACHE_SIZE_LIMIT);
+    output.write(ENCODED_HEADER);
+    Codecs.getDefault().write(data, output);
+    metrics.add("pbcache.bytes.put", output.size());
+    List<byte[]> chunks = output.getChunks();
+    if (chunks.size() == 1) {
+      cacheData.put(key, chunks.get(0));
       return;
     }
 
     // chunk作成
-    List<String> chunkList = new ArrayList<String>();
-    List<byte[]> chunks = ChunkUtil.makeChunks(rawdata, CACHE_SIZE_LIMIT);
-    int i = 0;
-    Map<Object, Object> cacheData = new HashMap<Object, Object>();
-    for (byte[] chunk : chunks) {
-      String chunkKey = "chunk:" + String.valueOf(i) + ":" + key;
-      cacheData.put(chunkKey, chunk);
-      chunkList.add(chunkKey);
-      i++;
+    long generation = ThreadLocalRandom.current().nextLong();
+    ChunkManifest manifest = ChunkManifest.create(key, true, generation, chunks);
+    List<String> chunkKeys = manifest.getChunkKeys();
+    for (int i = 0; i < chunks.size(); i++) {
+      cacheData.put(chunkKeys.get(i), chunks.get(i));
     }
-    cacheData.put(key, prefix + StringUtils.join(chunkList, ","));
-    globalCache.putAll(cacheData);
-
-    return;
+    cacheData.put(key, manifest.toString());
   }
 
   protected String localKey(String key) {
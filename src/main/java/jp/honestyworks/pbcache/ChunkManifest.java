@@ -0,0 +1,175 @@
+package jp.honestyworks.pbcache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Manifest of a value stored as chunks.
+ * <p>
+ * The manifest is stored under the key of the value, and the chunks are stored under
+ * "chunk:{generation}:{index}:{key}". Every write has its own random generation, so the chunk
+ * set of a manifest is never overwritten by another write; a reader holding an old manifest
+ * only misses when its chunks have been evicted. CRC32 of each chunk is still recorded to
+ * detect chunks broken by other means.
+ * </p>
+ * format: <code>%CHUNK%{type}%v2%{generation}%{length}%{crc},{crc},...</code><br>
+ * legacy format: <code>%CHUNK%{type}%{chunkKey},{chunkKey},...</code>
+ */
+public class ChunkManifest {
+
+  public static final String PREFIX = "%CHUNK%";
+  private static final String VERSION = "v2%";
+
+  /** type of value. "O" : serialized object, "B" : byte array */
+  private final String valueType;
+  private final long generation;
+  private final long length;
+  private final long[] checksums;
+  private final List<String> chunkKeys;
+
+  private ChunkManifest(
+      String valueType, long generation, long length, long[] checksums, List<String> chunkKeys) {
+    this.valueType = valueType;
+    this.generation = generation;
+    this.length = length;
+    this.checksums = checksums;
+    this.chunkKeys = chunkKeys;
+  }
+
+  /**
+   * Create manifest for the chunks.
+   * @param key key of the value
+   * @param object true if the chunks are a serialized object
+   * @param generation generation of this write
+   * @param chunks
+   * @return
+   */
+  public static ChunkManifest create(
+      Object key, boolean object, long generation, List<byte[]> chunks) {
+    long[] checksums = new long[chunks.size()];
+    long length = 0;
+    for (int i = 0; i < checksums.length; i++) {
+      byte[] chunk = chunks.get(i);
+      checksums[i] = checksum(chunk);
+      length += chunk.length;
+    }
+    return new ChunkManifest(
+        object ? "O" : "B",
+        generation,
+        length,
+        checksums,
+        chunkKeys(key, generation, checksums.length));
+  }
+
+  /**
+   * Parse manifest.
+   * @param key key of the value
+   * @param value manifest string
+   * @return manifest, or null if the value is not a manifest
+   */
+  public static ChunkManifest parse(Object key, String value) {
+    if (value == null || !value.startsWith(PREFIX) || value.length() < PREFIX.length() + 2) {
+      return null;
+    }
+    String valueType = value.substring(PREFIX.length(), PREFIX.length() + 1);
+    String body = value.substring(PREFIX.length() + 2);
+    if (!body.startsWith(VERSION)) {
+      // legacy manifest. chunk keys are listed, no checksum.
+      return new ChunkManifest(valueType, 0L, -1L, null, Arrays.asList(body.split(",")));
+    }
+    try {
+      String[] parts = body.substring(VERSION.length()).split("%", 3);
+      long generation = Long.parseLong(parts[0]);
+      long length = Long.parseLong(parts[1]);
+      String[] crcs = parts[2].split(",");
+      long[] checksums = new long[crcs.length];
+      for (int i = 0; i < crcs.length; i++) {
+        checksums[i] = Long.parseLong(crcs[i], 16);
+      }
+      return new ChunkManifest(
+          valueType, generation, length, checksums, chunkKeys(key, generation, checksums.length));
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  public static boolean isManifest(Object value) {
+    return value instanceof String && ((String) value).startsWith(PREFIX);
+  }
+
+  private static List<String> chunkKeys(Object key, long generation, int count) {
+    String prefix = "chunk:" + Long.toHexString(generation) + ":";
+    List<String> keys = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      keys.add(prefix + i + ":" + key);
+    }
+    return keys;
+  }
+
+  static long checksum(byte[] chunk) {
+    CRC32 crc = new CRC32();
+    crc.update(chunk, 0, chunk.length);
+    return crc.getValue();
+  }
+
+  /**
+   * Verify chunks against this manifest.
+   * @param chunks chunks in order
+   * @return true if chunks are of the write this manifest describes
+   */
+  public boolean verify(List<byte[]> chunks) {
+    if (chunks.size() != chunkKeys.size()) {
+      return false;
+    }
+    if (checksums == null) {
+      // legacy manifest
+      return true;
+    }
+    long total = 0;
+    for (int i = 0; i < checksums.length; i++) {
+      byte[] chunk = chunks.get(i);
+      if (checksum(chunk) != checksums[i]) {
+        return false;
+      }
+      total += chunk.length;
+    }
+    return total == length;
+  }
+
+  public boolean isObject() {
+    return "O".equals(valueType);
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  public List<String> getChunkKeys() {
+    return chunkKeys;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(PREFIX).append(valueType).append("%");
+    if (checksums == null) {
+      for (int i = 0; i < chunkKeys.size(); i++) {
+        if (i != 0) {
+          builder.append(",");
+        }
+        builder.append(chunkKeys.get(i));
+      }
+      return builder.toString();
+    }
+    builder.append(VERSION).append(generation).append("%").append(length).append("%");
+    for (int i = 0; i < checksums.length; i++) {
+      if (i != 0) {
+        builder.append(",");
+      }
+      builder.append(Long.toHexString(checksums[i]));
+    }
+    return builder.toString();
+  }
+}
@@ -15,6 +15,8 @@
  */
 package jp.honestyworks.pbcache;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -54,4 +56,146 @@ public class ChunkUtil {
     }
     return result;
   }
+
+  /**
+   * Read chunks as one stream without packing them into a new array.
+   * @param data chunks
+   * @return
+   */
+  public static InputStream newInputStream(List<byte[]> data) {
+    return new ChunkInputStream(data);
+  }
+
+  /**
+   * {@link InputStream} over a list of chunks.
+   */
+  static class ChunkInputStream extends InputStream {
+
+    private final List<byte[]> chunks;
+    private int index;
+    private int position;
+
+    ChunkInputStream(List<byte[]> chunks) {
+      this.chunks = chunks;
+    }
+
+    /**
+     * @return current chunk which has remaining bytes, or null at the end of stream
+     */
+    private byte[] current() {
+      while (index < chunks.size()) {
+        byte[] chunk = chunks.get(index);
+        if (position < chunk.length) {
+          return chunk;
+        }
+        index++;
+        position = 0;
+      }
+      return null;
+    }
+
+    @Override
+    public int read() {
+      byte[] chunk = current();
+      if (chunk == null) {
+        return -1;
+      }
+      return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      byte[] chunk = current();
+      if (chunk == null) {
+        return -1;
+      }
+      int n = Math.min(len, chunk.length - position);
+      System.arraycopy(chunk, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      byte[] chunk = current();
+      return chunk == null ? 0 : chunk.length - position;
+    }
+  }
+
+  /**
+   * {@link OutputStream} which writes directly into chunks of the fixed size,
+   * so that a large value does not need to be copied into chunks afterwards.
+   */
+  public static class ChunkOutputStream extends OutputStream {
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private final int chunkSize;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private byte[] current;
+    private int position;
+    private long size;
+
+    public ChunkOutputStream(int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    private void ensureCapacity() {
+      if (current == null) {
+        // start small, most values fit in one small chunk
+        current = new byte[Math.min(chunkSize, INITIAL_SIZE)];
+        position = 0;
+      } else if (position == current.length) {
+        if (current.length < chunkSize) {
+          // grow the first chunk until it reaches chunkSize
+          current = Arrays.copyOf(current, Math.min(chunkSize, current.length * 2));
+        } else {
+          chunks.add(current);
+          current = new byte[chunkSize];
+          position = 0;
+        }
+      }
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity();
+      current[position++] = (byte) b;
+      size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      while (len > 0) {
+        ensureCapacity();
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(b, off, current, position, n);
+        position += n;
+        off += n;
+        len -= n;
+        size += n;
+      }
+    }
+
+    /**
+     * @return total bytes written
+     */
+    public long size() {
+      return size;
+    }
+
+    /**
+     * @return written chunks. only the last chunk is trimmed.
+     */
+    public List<byte[]> getChunks() {
+      List<byte[]> result = new ArrayList<byte[]>(chunks);
+      if (current != null && position > 0) {
+        result.add(position == current.length ? current : Arrays.copyOf(current, position));
+      }
+      return result;
+    }
+  }
 }
@@ -0,0 +1,44 @@
+package jp.honestyworks.pbcache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Serialization codec of cached values.
+ * <p>
+ * Encoded values are tagged with {@link #getId()}, so the id must be unique
+ * among registered codecs and must not change once values are stored.
+ * Additional codecs can be registered by {@link Codecs#register(Codec)} or
+ * by java.util.ServiceLoader (META-INF/services/jp.honestyworks.pbcache.Codec).
+ * </p>
+ */
+public interface Codec {
+
+  /**
+   * @return id to tag encoded values with
+   */
+  byte getId();
+
+  /**
+   * @param value
+   * @return true if this codec can encode the value
+   */
+  boolean accepts(Object value);
+
+  /**
+   * Encode the value. The tag is written by the caller.
+   * @param value
+   * @param out
+   * @throws IOException
+   */
+  void encode(Object value, DataOutputStream out) throws IOException;
+
+  /**
+   * Decode a value. The tag is already consumed by the caller.
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  Object decode(DataInputStream in) throws IOException;
+}
@@ -0,0 +1,394 @@
+package jp.honestyworks.pbcache;
+
+import com.google.io.protocol.ProtocolMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Registry of {@link Codec}s.
+ * <p>
+ * A codec is chosen by the type of the value, and the encoded value starts with
+ * the id of the codec.
+ * Values no other codec accepts are written by Java serialization, whose id is the first byte of
+ * the serialization stream header (0xAC), so values written before codecs were introduced are
+ * still readable.
+ * </p>
+ */
+public class Codecs {
+
+  private static final Log logger = LogFactory.getLog(Codecs.class);
+
+  public static final byte JAVA_ID = (byte) 0xAC;
+  public static final byte BYTES_ID = 1;
+  public static final byte STRING_ID = 2;
+  public static final byte DATE_ID = 3;
+  public static final byte CACHE_ITEM_ID = 4;
+  public static final byte PROTOCOL_MESSAGE_ID = 5;
+
+  /** bytes read at a time when the length is larger than this */
+  static final int READ_BLOCK_SIZE = 64 * 1024;
+
+  private static final Codecs defaultInstance = new Codecs();
+
+  private final Codec[] byId = new Codec[256];
+  private final List<Codec> codecs = new CopyOnWriteArrayList<Codec>();
+  private final Map<Class<?>, Codec> byClass = new ConcurrentHashMap<Class<?>, Codec>();
+  private final Codec javaCodec = new JavaSerializationCodec();
+
+  /**
+   * @return registry with built-in codecs and codecs found by ServiceLoader
+   */
+  public static Codecs getDefault() {
+    return defaultInstance;
+  }
+
+  Codecs() {
+    register(new BytesCodec());
+    register(new StringCodec());
+    register(new DateCodec());
+    register(new CacheItemCodec(this));
+    register(new ProtocolMessageCodec());
+    byId[JAVA_ID & 0xff] = javaCodec;
+    try {
+      for (Codec codec : ServiceLoader.load(Codec.class)) {
+        register(codec);
+      }
+    } catch (Throwable e) {
+      logger.warn("cannot load codecs: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Register the codec. It takes precedence over codecs registered before.
+   * @param codec
+   */
+  public synchronized void register(Codec codec) {
+    int id = codec.getId() & 0xff;
+    if (codec.getId() == JAVA_ID) {
+      throw new IllegalArgumentException("codec id 0xAC is reserved.");
+    }
+    Codec old = byId[id];
+    if (old != null) {
+      codecs.remove(old);
+    }
+    byId[id] = codec;
+    codecs.add(0, codec);
+    byClass.clear();
+  }
+
+  /**
+   * Choose codec for the value.
+   * @param value
+   * @return codec
+   */
+  public Codec codecFor(Object value) {
+    if (value == null) {
+      return javaCodec;
+    }
+    Class<?> clazz = value.getClass();
+    Codec codec = byClass.get(clazz);
+    if (codec != null) {
+      return codec;
+    }
+    codec = javaCodec;
+    for (Codec each : codecs) {
+      if (each.accepts(value)) {
+        codec = each;
+        break;
+      }
+    }
+    byClass.put(clazz, codec);
+    return codec;
+  }
+
+  /**
+   * Write the value tagged with the id of its codec.
+   * @param value
+   * @param out
+   * @throws IOException
+   */
+  public void write(Object value, OutputStream out) throws IOException {
+    DataOutputStream dataOut = new DataOutputStream(out);
+    Codec codec = codecFor(value);
+    if (codec != javaCodec) {
+      dataOut.writeByte(codec.getId());
+    }
+    codec.encode(value, dataOut);
+    dataOut.flush();
+  }
+
+  /**
+   * Read a value written by {@link #write(Object, OutputStream)}.
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public Object read(InputStream in) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 1);
+    int id = pushback.read();
+    if (id < 0) {
+      throw new IOException("empty value.");
+    }
+    Codec codec = byId[id];
+    if (codec == null) {
+      throw new IOException("unknown codec id: " + id);
+    }
+    if (codec == javaCodec) {
+      pushback.unread(id);
+    }
+    return codec.decode(new DataInputStream(pushback));
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    return readBytes(in, in.readInt());
+  }
+
+  /**
+   * Read bytes of the length.
+   * The length comes from memcache and may be corrupt, so a large array is not allocated
+   * up front: it grows while the bytes are actually read, and a short value is an IOException.
+   */
+  static byte[] readBytes(DataInputStream in, int length) throws IOException {
+    if (length < 0) {
+      throw new IOException("negative length: " + length);
+    }
+    if (length <= READ_BLOCK_SIZE) {
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return bytes;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(READ_BLOCK_SIZE);
+    byte[] block = new byte[READ_BLOCK_SIZE];
+    int remaining = length;
+    while (remaining > 0) {
+      int read = in.read(block, 0, Math.min(block.length, remaining));
+      if (read < 0) {
+        throw new EOFException("value is shorter than its length: " + length);
+      }
+      out.write(block, 0, read);
+      remaining -= read;
+    }
+    return out.toByteArray();
+  }
+
+  static class JavaSerializationCodec implements Codec {
+
+    @Override
+    public byte getId() {
+      return JAVA_ID;
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+      return true;
+    }
+
+    @Override
+    public void encode(Object value, DataOutputStream out) throws IOException {
+      ObjectOutputStream oos = new ObjectOutputStream(out);
+      oos.writeObject(value);
+      oos.flush();
+    }
+
+    @Override
+    public Object decode(DataInputStream in) throws IOException {
+      try {
+        return new ObjectInputStream(in).readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  static class BytesCodec implements Codec {
+
+    @Override
+    public byte getId() {
+      return BYTES_ID;
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+      return value instanceof byte[];
+    }
+
+    @Override
+    public void encode(Object value, DataOutputStream out) throws IOException {
+      writeBytes(out, (byte[]) value);
+    }
+
+    @Override
+    public Object decode(DataInputStream in) throws IOException {
+      return readBytes(in);
+    }
+  }
+
+  static class StringCodec implements Codec {
+
+    @Override
+    public byte getId() {
+      return STRING_ID;
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+      return value instanceof String;
+    }
+
+    @Override
+    public void encode(Object value, DataOutputStream out) throws IOException {
+      writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object decode(DataInputStream in) throws IOException {
+      return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+  }
+
+  static class DateCodec implements Codec {
+
+    @Override
+    public byte getId() {
+      return DATE_ID;
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+      return value != null && value.getClass() == Date.class;
+    }
+
+    @Override
+    public void encode(Object value, DataOutputStream out) throws IOException {
+      out.writeLong(((Date) value).getTime());
+    }
+
+    @Override
+    public Object decode(DataInputStream in) throws IOException {
+      return new Date(in.readLong());
+    }
+  }
+
+  static class CacheItemCodec implements Codec {
+
+    private final Codecs codecs;
+
+    CacheItemCodec(Codecs codecs) {
+      this.codecs = codecs;
+    }
+
+    @Override
+    public byte getId() {
+      return CACHE_ITEM_ID;
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+      return value != null && value.getClass() == CacheItem.class;
+    }
+
+    @Override
+    public void encode(Object value, DataOutputStream out) throws IOException {
+      CacheItem item = (CacheItem) value;
+      out.writeLong(item.getTimestamp().getTime());
+      out.writeLong(item.getGeneration());
+      byte[] request = item.getRequest();
+      if (request == null) {
+        out.writeInt(-1);
+      } else {
+        writeBytes(out, request);
+      }
+      codecs.write(item.getData(), out);
+    }
+
+    @Override
+    public Object decode(DataInputStream in) throws IOException {
+      Date timestamp = new Date(in.readLong());
+      long generation = in.readLong();
+      byte[] request = null;
+      int requestLength = in.readInt();
+      if (requestLength != -1) {
+        request = readBytes(in, requestLength);
+      }
+      Object data = codecs.read(in);
+      return new CacheItem(data, timestamp, generation, request);
+    }
+  }
+
+  /**
+   * Codec of protocol buffers used by the datastore API (DatastorePb, OnestoreEntity).
+   */
+  static class ProtocolMessageCodec implements Codec {
+
+    @Override
+    public byte getId() {
+      return PROTOCOL_MESSAGE_ID;
+    }
+
+    @Override
+    public boolean accepts(Object value) {
+      return value instanceof ProtocolMessage;
+    }
+
+    @Override
+    public void encode(Object value, DataOutputStream out) throws IOException {
+      out.writeUTF(value.getClass().getName());
+      writeBytes(out, ((ProtocolMessage<?>) value).toByteArray());
+    }
+
+    @Override
+    public Object decode(DataInputStream in) throws IOException {
+      String className = in.readUTF();
+      byte[] bytes = readBytes(in);
+      try {
+        Class<?> clazz = loadClass(className);
+        if (!ProtocolMessage.class.isAssignableFrom(clazz)) {
+          // never instantiate a class that is not a message, the name comes from the cache
+          throw new IOException("not a ProtocolMessage: " + className);
+        }
+        ProtocolMessage<?> message =
+            (ProtocolMessage<?>) clazz.getDeclaredConstructor().newInstance();
+        if (!message.mergeFrom(bytes)) {
+          throw new IOException("cannot parse " + className);
+        }
+        return message;
+      } catch (ReflectiveOperationException e) {
+        throw new IOException(e);
+      }
+    }
+
+    private Class<?> loadClass(String className) throws ClassNotFoundException {
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      if (loader != null) {
+        try {
+          return Class.forName(className, false, loader);
+        } catch (ClassNotFoundException e) {
+          // fall through
+        }
+      }
+      return Class.forName(className, false, Codecs.class.getClassLoader());
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package jp.honestyworks.pbcache;
+
+/**
+ * 128 bit fingerprint of bytes (MurmurHash3 x64 128).
+ * <p>
+ * This is not a cryptographic hash. Values keyed by a fingerprint must keep
+ * the original bytes to detect collisions.
+ * </p>
+ */
+public class Fingerprint {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private Fingerprint() {}
+
+  /**
+   * @param data
+   * @return fingerprint as 32 hex characters
+   */
+  public static String toHex(byte[] data) {
+    long[] hash = murmur3(data, 0);
+    char[] chars = new char[32];
+    writeHex(chars, 0, hash[0]);
+    writeHex(chars, 16, hash[1]);
+    return new String(chars);
+  }
+
+  /**
+   * @param data
+   * @return upper 64 bits of the fingerprint
+   */
+  public static long toLong(byte[] data) {
+    return murmur3(data, 0)[0];
+  }
+
+  /**
+   * Hashes values one by one without building an intermediate byte array.
+   * <p>
+   * The result is the same as {@link #toLong(byte[])} of the bytes fed so far.
+   * </p>
+   */
+  public static class Hasher {
+
+    private long h1;
+    private long h2;
+    private long k1;
+    private long k2;
+    private int pending;
+    private long length;
+
+    public Hasher() {}
+
+    /**
+     * @param value the lower 8 bits are fed
+     * @return this
+     */
+    public Hasher putByte(int value) {
+      long b = value & 0xffL;
+      if (pending < 8) {
+        k1 |= b << (pending * 8);
+      } else {
+        k2 |= b << ((pending - 8) * 8);
+      }
+      length++;
+      if (++pending == 16) {
+        h1 = mixH1(h1, h2, k1);
+        h2 = mixH2(h1, h2, k2);
+        k1 = 0;
+        k2 = 0;
+        pending = 0;
+      }
+      return this;
+    }
+
+    /**
+     * Feeds 4 bytes in little endian.
+     * @param value
+     * @return this
+     */
+    public Hasher putInt(int value) {
+      putByte(value);
+      putByte(value >>> 8);
+      putByte(value >>> 16);
+      return putByte(value >>> 24);
+    }
+
+    /**
+     * Feeds the length and the bytes, so that adjacent arrays stay distinguishable.
+     * @param data
+     * @return this
+     */
+    public Hasher putBytes(byte[] data) {
+      putInt(data.length);
+      for (byte b : data) {
+        putByte(b);
+      }
+      return this;
+    }
+
+    /**
+     * @return upper 64 bits of the fingerprint
+     */
+    public long toLong() {
+      long t1 = h1;
+      long t2 = h2;
+      if (pending > 8) {
+        t2 ^= mixK2(k2);
+      }
+      if (pending > 0) {
+        t1 ^= mixK1(k1);
+      }
+      t1 ^= length;
+      t2 ^= length;
+      t1 += t2;
+      t2 += t1;
+      return fmix(t1) + fmix(t2);
+    }
+  }
+
+  private static void writeHex(char[] chars, int offset, long value) {
+    for (int i = 15; i >= 0; i--) {
+      chars[offset + i] = HEX[(int) (value & 0xf)];
+      value >>>= 4;
+    }
+  }
+
+  /**
+   * MurmurHash3 x64 128.
+   * @param data
+   * @param seed
+   * @return h1, h2
+   */
+  static long[] murmur3(byte[] data, int seed) {
+    final int length = data.length;
+    final int blocks = length / 16;
+    long h1 = seed & 0xffffffffL;
+    long h2 = seed & 0xffffffffL;
+
+    for (int i = 0; i < blocks; i++) {
+      h1 = mixH1(h1, h2, getLong(data, i * 16));
+      h2 = mixH2(h1, h2, getLong(data, i * 16 + 8));
+    }
+
+    int offset = blocks * 16;
+    long k1 = 0;
+    long k2 = 0;
+    switch (length & 15) {
+      case 15:
+        k2 ^= ((long) data[offset + 14] & 0xff) << 48;
+      case 14:
+        k2 ^= ((long) data[offset + 13] & 0xff) << 40;
+      case 13:
+        k2 ^= ((long) data[offset + 12] & 0xff) << 32;
+      case 12:
+        k2 ^= ((long) data[offset + 11] & 0xff) << 24;
+      case 11:
+        k2 ^= ((long) data[offset + 10] & 0xff) << 16;
+      case 10:
+        k2 ^= ((long) data[offset + 9] & 0xff) << 8;
+      case 9:
+        k2 ^= ((long) data[offset + 8] & 0xff);
+        h2 ^= mixK2(k2);
+      case 8:
+        k1 ^= ((long) data[offset + 7] & 0xff) << 56;
+      case 7:
+        k1 ^= ((long) data[offset + 6] & 0xff) << 48;
+      case 6:
+        k1 ^= ((long) data[offset + 5] & 0xff) << 40;
+      case 5:
+        k1 ^= ((long) data[offset + 4] & 0xff) << 32;
+      case 4:
+        k1 ^= ((long) data[offset + 3] & 0xff) << 24;
+      case 3:
+        k1 ^= ((long) data[offset + 2] & 0xff) << 16;
+      case 2:
+        k1 ^= ((long) data[offset + 1] & 0xff) << 8;
+      case 1:
+        k1 ^= ((long) data[offset] & 0xff);
+        h1 ^= mixK1(k1);
+      default:
+        break;
+    }
+
+    return finish(h1, h2, length);
+  }
+
+  private static long mixH1(long h1, long h2, long k1) {
+    h1 ^= mixK1(k1);
+    h1 = Long.rotateLeft(h1, 27);
+    h1 += h2;
+    return h1 * 5 + 0x52dce729;
+  }
+
+  private static long mixH2(long h1, long h2, long k2) {
+    h2 ^= mixK2(k2);
+    h2 = Long.rotateLeft(h2, 31);
+    h2 += h1;
+    return h2 * 5 + 0x38495ab5;
+  }
+
+  private static long[] finish(long h1, long h2, long length) {
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    return new long[] {h1, h2};
+  }
+
+  private static long getLong(byte[] data, int offset) {
+    return ((long) data[offset] & 0xff)
+        | (((long) data[offset + 1] & 0xff) << 8)
+        | (((long) data[offset + 2] & 0xff) << 16)
+        | (((long) data[offset + 3] & 0xff) << 24)
+        | (((long) data[offset + 4] & 0xff) << 32)
+        | (((long) data[offset + 5] & 0xff) << 40)
+        | (((long) data[offset + 6] & 0xff) << 48)
+        | (((long) data[offset + 7] & 0xff) << 56);
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
@@ -0,0 +1,282 @@
+package jp.honestyworks.pbcache;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instance wide local cache shared by all request threads.
+ * <p>
+ * Entries are kept in lock striped segments, each of them is an access ordered map.
+ * The (approximate) bytes are bounded across all segments, so an entry is admitted if it fits
+ * in the whole budget. When over the budget, the least recently used entries of the segment
+ * are evicted first, then entries of the other segments.
+ * Each entry expires individually after its TTL.
+ * </p>
+ * Cached values are shared between threads, so they must not be modified by callers.
+ */
+public class LocalCache {
+
+  private static final int SEGMENT_COUNT = 16;
+  private static final int ENTRY_OVERHEAD = 64;
+  private static final int DEFAULT_OBJECT_WEIGHT = 1024;
+
+  private final Segment[] segments;
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxBytes approximate upper bound of the heap used by cached values
+   * @param ttlMillis default time to live of an entry
+   */
+  public LocalCache(long maxBytes, long ttlMillis) {
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  private int indexFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return h & (SEGMENT_COUNT - 1);
+  }
+
+  private Segment segmentFor(String key) {
+    return segments[indexFor(key)];
+  }
+
+  /**
+   * Get cached value.
+   * @param key
+   * @return value, or null if missing or expired
+   */
+  public Object get(String key) {
+    Segment segment = segmentFor(key);
+    Object value = segment.getValue(key, System.currentTimeMillis());
+    if (value == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return value;
+  }
+
+  public boolean containsKey(String key) {
+    return segmentFor(key).getValue(key, System.currentTimeMillis()) != null;
+  }
+
+  /**
+   * Put value with default TTL. null value removes the entry.
+   * @param key
+   * @param value
+   */
+  public void put(String key, Object value) {
+    put(key, value, ttlMillis);
+  }
+
+  /**
+   * Put value with the TTL. null value removes the entry.
+   * @param key
+   * @param value
+   * @param ttlMillis
+   */
+  public void put(String key, Object value, long ttlMillis) {
+    int index = indexFor(key);
+    Segment segment = segments[index];
+    if (value == null) {
+      segment.removeValue(key);
+      return;
+    }
+    long weight = weigh(value) + ENTRY_OVERHEAD + key.length() * 2L;
+    segment.putValue(key, new Entry(value, weight, System.currentTimeMillis() + ttlMillis));
+    // the segment alone could not make room. evict from the others, one lock at a time.
+    for (int i = 1; i < SEGMENT_COUNT && totalBytes.get() > maxBytes; i++) {
+      Segment other = segments[(index + i) & (SEGMENT_COUNT - 1)];
+      while (totalBytes.get() > maxBytes && other.evictEldest()) {
+        // continue
+      }
+    }
+  }
+
+  public void remove(String key) {
+    segmentFor(key).removeValue(key);
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clearValues();
+    }
+  }
+
+  /**
+   * Remove expired entries.
+   */
+  public void purgeExpired() {
+    long now = System.currentTimeMillis();
+    for (Segment segment : segments) {
+      segment.purge(now);
+    }
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return approximate bytes of cached values
+   */
+  public long getWeightedSize() {
+    return totalBytes.get();
+  }
+
+  /**
+   * @return approximate upper bound of the heap used by cached values
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.entryCount();
+    }
+    return size;
+  }
+
+  /**
+   * Estimate heap size of the value.
+   * @param value
+   * @return bytes
+   */
+  static long weigh(Object value) {
+    if (value instanceof byte[]) {
+      return ((byte[]) value).length + 16;
+    } else if (value instanceof String) {
+      return ((String) value).length() * 2L + 40;
+    } else if (value instanceof Number || value instanceof Date || value instanceof Boolean) {
+      return 24;
+    } else if (value instanceof CacheItem) {
+      return 48 + weigh(((CacheItem) value).getData());
+    } else if (value == null) {
+      return 0;
+    }
+    return DEFAULT_OBJECT_WEIGHT;
+  }
+
+  static class Entry {
+    final Object value;
+    final long weight;
+    final long expireAt;
+
+    Entry(Object value, long weight, long expireAt) {
+      this.value = value;
+      this.weight = weight;
+      this.expireAt = expireAt;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  class Segment extends LinkedHashMap<String, Entry> {
+
+    Segment() {
+      super(16, 0.75f, true);
+    }
+
+    synchronized Object getValue(String key, long now) {
+      Entry entry = super.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expireAt <= now) {
+        super.remove(key);
+        totalBytes.addAndGet(-entry.weight);
+        return null;
+      }
+      return entry.value;
+    }
+
+    synchronized void putValue(String key, Entry entry) {
+      if (entry.weight > maxBytes) {
+        // never fits. drop old value too.
+        removeValue(key);
+        return;
+      }
+      Entry old = super.put(key, entry);
+      long delta = entry.weight - (old != null ? old.weight : 0);
+      long total = totalBytes.addAndGet(delta);
+      Iterator<Entry> it = values().iterator();
+      while (total > maxBytes && it.hasNext()) {
+        Entry eldest = it.next();
+        if (eldest == entry) {
+          break;
+        }
+        it.remove();
+        total = totalBytes.addAndGet(-eldest.weight);
+        evictions.increment();
+      }
+    }
+
+    synchronized boolean evictEldest() {
+      Iterator<Entry> it = values().iterator();
+      if (!it.hasNext()) {
+        return false;
+      }
+      Entry eldest = it.next();
+      it.remove();
+      totalBytes.addAndGet(-eldest.weight);
+      evictions.increment();
+      return true;
+    }
+
+    synchronized void removeValue(String key) {
+      Entry old = super.remove(key);
+      if (old != null) {
+        totalBytes.addAndGet(-old.weight);
+      }
+    }
+
+    synchronized void clearValues() {
+      long bytes = 0;
+      for (Entry entry : values()) {
+        bytes += entry.weight;
+      }
+      super.clear();
+      totalBytes.addAndGet(-bytes);
+    }
+
+    synchronized void purge(long now) {
+      Iterator<Map.Entry<String, Entry>> it = entrySet().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next().getValue();
+        if (entry.expireAt <= now) {
+          it.remove();
+          totalBytes.addAndGet(-entry.weight);
+        }
+      }
+    }
+
+    synchronized int entryCount() {
+      return super.size();
+    }
+  }
+}
@@ -16,8 +16,10 @@
 package jp.honestyworks.pbcache;
 
 import java.io.Serializable;
-import java.util.Date;
-import org.apache.commons.codec.binary.Base64;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import net.vvakame.memvache.MemvacheMetrics;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +34,20 @@ import org.apache.commons.logging.LogFactory;
 public class QueryCache implements Serializable {
 
   protected static final Log logger = LogFactory.getLog(QueryCache.class);
+  private static final MemvacheMetrics.KindCounters hits =
+      MemvacheMetrics.get().kindCounters("query.hit.");
+  private static final MemvacheMetrics.KindCounters misses =
+      MemvacheMetrics.get().kindCounters("query.miss.");
+  private static final MemvacheMetrics.KindCounters staleHits =
+      MemvacheMetrics.get().kindCounters("query.stale.");
+
+  private static final int MAX_OBSERVED_GENERATIONS = 100;
+
+  /** generation which may be served as stale, put when the kind is invalidated */
+  private static final String KEY_STALE_GENERATION = "StaleGeneration:";
+
+  /** generation observed by getQuery, per query key */
+  private final Map<String, Long> observedGenerations = new HashMap<String, Long>();
 
   public QueryCache() {}
 
@@ -39,21 +55,26 @@ public class QueryCache implements Serializable {
     return CacheContext.getInstance().getCacheService();
   }
 
-  private String getQueryKey(byte[] request) {
-    String b64request = Base64.encodeBase64String(request);
-    return CacheService.KEY_RUNQUERY + b64request;
+  /**
+   * Make fixed length key from the fingerprint of the request.
+   * The request itself is kept in the cached item to detect collisions.
+   */
+  String getQueryKey(byte[] request) {
+    return CacheService.KEY_RUNQUERY + Fingerprint.toHex(request);
   }
 
-  private String getClassResetdateKey(String kind) {
+  private String getClassGenerationKey(String kind) {
     return CacheService.KEY_RUNQUERY + kind;
   }
 
-  private Date getClassResetDate(String kind) {
-    return getCache().getResetDate(getClassResetdateKey(kind));
+  private String getStaleKey(String kind) {
+    return KEY_STALE_GENERATION + getClassGenerationKey(kind);
   }
 
   /**
    * Get query cache.
+   * The cached item and the generation of the kind are fetched together
+   * with one memcache call, and the item is valid only if its generation matches.
    *
    * @param kind
    * @param request
@@ -62,42 +83,116 @@ public class QueryCache implements Serializable {
   public byte[] getQuery(String kind, byte[] request) {
     try {
       String key = getQueryKey(request);
-      CacheItem item = getCache().getCacheItem(key);
-      if (item != null) {
-        // timestampチェック
-        Date classResetDate = getClassResetDate(kind);
-        logger.debug("class reset date: " + classResetDate);
-        if (classResetDate == null || item.getTimestamp().after(classResetDate)) {
-          logger.info("STAT:" + kind + ",hit,1");
-          return getCachedQueryResult(item);
-        }
+      String generationKey = CacheService.generationKey(getClassGenerationKey(kind));
+      Map cached = getCache().getAll(Arrays.asList(generationKey, key));
+      Object generation = cached.get(generationKey);
+      if (!(generation instanceof Long)) {
+        // counter was evicted or never created. items of the kind can not be trusted.
+        generation = getCache().getGeneration(getClassGenerationKey(kind));
+      }
+      logger.debug("class generation: " + generation);
+      if (generation != null) {
+        rememberGeneration(key, (Long) generation);
+      } else {
+        observedGenerations.remove(key);
+      }
+      Object item = cached.get(key);
+      if (generation != null
+          && item instanceof CacheItem
+          && ((CacheItem) item).getGeneration() == (Long) generation
+          && Arrays.equals(((CacheItem) item).getRequest(), request)) {
+        hits.get(kind).increment();
+        return getCachedQueryResult((CacheItem) item);
+      }
+    } catch (Exception e) {
+      logger.error(ExceptionUtils.getStackTrace(e));
+    }
+    misses.get(kind).increment();
+    return null;
+  }
+
+  /**
+   * Get query result cached before the last write to the kind.
+   * The item is returned only if it was valid just before that write and the stale marker
+   * put by {@link #removeQueries(String, int)} has not expired yet.
+   * The window is kept by the memcache expiry, so clocks of instances do not matter.
+   *
+   * @param kind
+   * @param request
+   * @return
+   */
+  public byte[] getStaleQuery(String kind, byte[] request) {
+    try {
+      Object generation = getCache().getFromMemcache(getStaleKey(kind));
+      if (!(generation instanceof Long)) {
+        return null;
+      }
+      Object item = getCache().get(getQueryKey(request));
+      if (item instanceof CacheItem
+          && ((CacheItem) item).getGeneration() == (Long) generation
+          && Arrays.equals(((CacheItem) item).getRequest(), request)) {
+        staleHits.get(kind).increment();
+        return getCachedQueryResult((CacheItem) item);
       }
     } catch (Exception e) {
       logger.error(ExceptionUtils.getStackTrace(e));
     }
-    logger.info("STAT:" + kind + ",miss,1");
     return null;
   }
 
+  /**
+   * Remember the generation observed before running the query,
+   * so that a result is not tagged with a generation bumped while the query was running.
+   */
+  private void rememberGeneration(String key, Long generation) {
+    if (observedGenerations.size() >= MAX_OBSERVED_GENERATIONS) {
+      observedGenerations.clear();
+    }
+    observedGenerations.put(key, generation);
+  }
+
   private byte[] getCachedQueryResult(CacheItem item) {
     return (byte[]) item.getData();
   }
 
   /**
    * Put query result to cache.
+   * The result is tagged with the generation observed by getQuery before the query ran.
+   * If none was observed, the result is not cached: a generation read now may already
+   * include a write the result does not reflect.
    * @param kind
    * @param request
    * @param response
    */
   public void putQuery(String kind, byte[] request, byte[] response) {
     String key = getQueryKey(request);
-    logger.debug("put query cache: " + kind + " " + key);
-    CacheItem item = new CacheItem(response);
+    Long generation = observedGenerations.remove(key);
+    if (generation == null) {
+      // create the counter so that the next getQuery can observe it
+      getCache().initGeneration(getClassGenerationKey(kind));
+      logger.debug("generation was not observed before the query, query was not cached: " + kind);
+      return;
+    }
+    logger.debug("put query cache: " + kind + " " + key + " generation: " + generation);
+    CacheItem item = new CacheItem(response, generation, request);
     getCache().put(key, item);
     return;
   }
 
   public void removeQueries(String kind) {
-    getCache().putResetDate(getClassResetdateKey(kind));
+    getCache().incrementGeneration(getClassGenerationKey(kind));
+  }
+
+  /**
+   * Invalidate query cache of the kind,
+   * and allow the results just invalidated to be served as stale for staleSeconds.
+   * @param kind
+   * @param staleSeconds
+   */
+  public void removeQueries(String kind, int staleSeconds) {
+    Long generation = getCache().incrementGeneration(getClassGenerationKey(kind));
+    if (generation != null && staleSeconds > 0) {
+      getCache().putToMemcache(getStaleKey(kind), generation - 1, staleSeconds);
+    }
   }
 }
@@ -21,8 +21,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -70,7 +68,8 @@ public class StreamUtil {
   }
 
   /**
-   * Converts an object to an array of bytes . Uses the Logging utilities in
+   * Converts an object to an array of bytes, using the codec chosen by the type
+   * of the object (see {@link Codecs}). Uses the Logging utilities in
    * j2sdk1.4 for reporting exceptions.
    *
    * @param object
@@ -80,8 +79,7 @@ public class StreamUtil {
   public static byte[] toBytes(Object object) {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     try {
-      ObjectOutputStream oos = new java.io.ObjectOutputStream(baos);
-      oos.writeObject(object);
+      Codecs.getDefault().write(object, baos);
     } catch (IOException ioe) {
       logger.error(ioe.getMessage());
     }
@@ -97,13 +95,23 @@ public class StreamUtil {
    * @return the associated object.
    */
   public static Object toObject(byte[] bytes) {
+    return toObject(new ByteArrayInputStream(bytes));
+  }
+
+  /**
+   * Reads an object from the stream. The stream is assumed to have been
+   * created from the original object.
+   *
+   * @param input
+   *            the stream to read.
+   * @return the associated object.
+   */
+  public static Object toObject(InputStream input) {
     Object object = null;
     try {
-      object = new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+      object = Codecs.getDefault().read(input);
     } catch (IOException ioe) {
       logger.error(ioe.getMessage());
-    } catch (ClassNotFoundException cnfe) {
-      logger.info(cnfe.getMessage());
     }
     return object;
   }
@@ -4,6 +4,7 @@ import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.apphosting.api.DatastorePb.NextRequest;
 import com.google.apphosting.api.DatastorePb.PutRequest;
+import com.google.apphosting.api.DatastorePb.PutResponse;
 import com.google.apphosting.api.DatastorePb.Query;
 import com.google.apphosting.api.DatastorePb.QueryResult;
 import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
@@ -13,8 +14,10 @@ import com.google.storage.onestore.v3.OnestoreEntity.Reference;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Level;
@@ -35,6 +38,27 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
 
   static final Settings settings = Settings.getInstance();
 
+  static final MemvacheMetrics.KindCounters staleHits =
+      MemvacheMetrics.get().kindCounters("query.stale.");
+
+  /** 同じ形のQueryの結果件数が分からない時のprefetch数 */
+  static final int DEFAULT_PREFETCH = 1000;
+
+  /** 前処理で作成したQueryのMemcacheのKey */
+  final Map<Query, String> queryKeys = new HashMap<Query, String>();
+
+  /** 前処理で作成した、無効になった後も返す結果のMemcacheのKey */
+  final Map<Query, String> staleKeys = new HashMap<Query, String>();
+
+  /** 前処理で求めたQueryの形。後処理で求め直さないようにするため */
+  final Map<Query, QueryShape> shapes = new HashMap<Query, QueryShape>();
+
+  /** 最後まで読まれたQueryの結果件数の記録用 */
+  final QueryShape.ResultTracker resultTracker = new QueryShape.ResultTracker();
+
+  /** MemcacheのKeyの作成用 */
+  final StringBuilder builder = new StringBuilder(64);
+
   /**
    * RunQueryが行われた時の前処理として、キャッシュがあればそれを返す。
    * @param requestPb RunQueryのQueryそのもの
@@ -47,20 +71,46 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
       return null;
     }
 
-    // datastore_v3#Next を回避するためにprefetchSizeが設定されていない場合大きめに設定する。
+    // datastore_v3#Next を回避するためにprefetchSizeが設定されていない場合、
+    // 同じ形のQueryのこれまでの結果件数を殆ど覆う数を設定する。
+    QueryShape shape = QueryShape.of(requestPb);
     if (requestPb.getCount() == 0) {
-      requestPb.setCount(1000);
+      requestPb.setCount(shape.prefetchCount(requestPb, DEFAULT_PREFETCH));
+    }
+    shapes.put(requestPb, shape);
+    final KindController controller = KindController.get();
+    if (controller.mode(requestPb.getKind()) != KindController.Mode.FULL) {
+      return Pair.request(requestPb.toByteArray());
     }
 
     final MemcacheService memcache = MemvacheDelegate.getMemcache();
-    String memcacheKey = MemcacheKeyUtil.createQueryKey(memcache, requestPb);
+    String memcacheKey = MemcacheKeyUtil.createQueryKey(builder, memcache, requestPb);
 
     QueryResult response = (QueryResult) memcache.get(memcacheKey);
+    controller.queryLookup(requestPb.getKind(), response != null);
     if (response != null) {
+      shapes.remove(requestPb);
       return Pair.response(response.toByteArray());
-    } else {
-      return Pair.request(requestPb.toByteArray());
     }
+
+    byte[] requestByte = requestPb.toByteArray();
+    if (settings.getStaleSeconds().containsKey(requestPb.getKind())
+        && StaleWhileRevalidate.isEnabled()) {
+      // 書き込みで無効になる前の結果があれば返し、裏で1つだけやり直す
+      String staleKey = MemcacheKeyUtil.createStaleQueryKey(requestPb, requestByte);
+      if (!StaleWhileRevalidate.isRefreshing()) {
+        QueryResult stale = (QueryResult) memcache.get(staleKey);
+        if (stale != null) {
+          staleHits.get(requestPb.getKind()).increment();
+          StaleWhileRevalidate.refresh(staleKey, requestByte);
+          shapes.remove(requestPb);
+          return Pair.response(stale.toByteArray());
+        }
+      }
+      staleKeys.put(requestPb, staleKey);
+    }
+    queryKeys.put(requestPb, memcacheKey);
+    return Pair.request(requestByte);
   }
 
   /**
@@ -76,12 +126,30 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
       return null;
     }
 
+    QueryShape shape = shapes.remove(requestPb);
+    resultTracker.runQuery(shape != null ? shape : QueryShape.of(requestPb), responsePb);
+
+    // 前処理の時のカウンタで作ったKeyを使う。作り直すとQueryの実行中に増えたカウンタで古い結果を保存してしまう
+    String memcacheKey = queryKeys.remove(requestPb);
+    if (memcacheKey == null) {
+      staleKeys.remove(requestPb);
+      return null;
+    }
     final MemcacheService memcache = MemvacheDelegate.getMemcache();
-    String memcacheKey = MemcacheKeyUtil.createQueryKey(memcache, requestPb);
+
+    KindController.get().result(requestPb.getKind(), responsePb.resultSize());
 
     // 最大5分しかキャッシュしないようにする
     Expiration expiration = Expiration.byDeltaSeconds(settings.getExpireSecond());
     memcache.put(memcacheKey, responsePb, expiration);
+
+    String staleKey = staleKeys.remove(requestPb);
+    if (staleKey != null) {
+      Integer staleSecond = settings.getStaleSeconds().get(requestPb.getKind());
+      if (staleSecond != null) {
+        memcache.put(staleKey, responsePb, Expiration.byDeltaSeconds(staleSecond));
+      }
+    }
     return null;
   }
 
@@ -93,10 +161,32 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
    */
   @Override
   public Pair<byte[], byte[]> pre_datastore_v3_Put(PutRequest requestPb) {
+    invalidate(requestPb);
+    return null;
+  }
+
+  /**
+   * DatastoreにPutされた後にもう一度カウンタをインクリメントする。<br>
+   * Putの前のインクリメントとPutの間に実行された他のリクエストのQueryは、
+   * 新しいカウンタのKeyで古い結果をキャッシュしている可能性があるため。
+   * @param requestPb
+   * @param responsePb
+   * @return 常に null
+   */
+  @Override
+  public byte[] post_datastore_v3_Put(PutRequest requestPb, PutResponse responsePb) {
+    invalidate(requestPb);
+    return null;
+  }
+
+  /**
+   * Putされる全てのKindのカウンタをインクリメントする。
+   * @param requestPb
+   */
+  void invalidate(PutRequest requestPb) {
     final MemcacheService memcache = MemvacheDelegate.getMemcache();
     final Set<String> memcacheKeys = new HashSet<String>();
 
-    final StringBuilder builder = new StringBuilder();
     for (EntityProto entity : requestPb.entitys()) {
       final Reference key = entity.getMutableKey();
       final String namespace = key.getNameSpace();
@@ -118,10 +208,9 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
     // memcache.incrementAll(memcacheKeys, 1, 0L);
     // broken method ↑
     for (String key : memcacheKeys) {
-      memcache.increment(key, 1, 0L);
+      Long counter = memcache.increment(key, 1, 0L);
+      JfrEvents.invalidation("counter", key, counter == null ? -1 : counter);
     }
-
-    return null;
   }
 
   /**
@@ -147,9 +236,16 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
     return super.pre_datastore_v3_Next(requestPb);
   }
 
+  /**
+   * Nextが行われた時の後処理として、Queryが最後まで読まれたら結果件数を記録する。
+   * @param requestPb
+   * @param responsePb
+   * @return 常に null
+   */
   @Override
   public byte[] post_datastore_v3_Next(NextRequest requestPb, QueryResult responsePb) {
-    return super.post_datastore_v3_Next(requestPb, responsePb);
+    resultTracker.next(requestPb, responsePb);
+    return null;
   }
 
   /**
@@ -167,7 +263,11 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
     /** Queryをキャッシュ"しない"Kindの一覧 */
     Set<String> ignoreKinds = new HashSet<String>();
 
-    static Settings singleton;
+    /** 書き込みで無効になった結果を返しても良い秒数, Kind毎 */
+    Map<String, Integer> staleSeconds = new HashMap<String, Integer>();
+
+    /** クラスの初期化時に作成するので、複数スレッドから同時に呼ばれても1つしか作られない */
+    static final Settings singleton = new Settings();
 
     /**
      * インスタンスを取得する。
@@ -175,9 +275,6 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
      * @author vvakame
      */
     public static Settings getInstance() {
-      if (singleton == null) {
-        singleton = new Settings();
-      }
       return singleton;
     }
 
@@ -201,6 +298,8 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
         } else {
           ignoreKinds = new HashSet<String>();
         }
+
+        staleSeconds = StaleWhileRevalidate.parse(properties.getProperty("staleKind"));
       } catch (IOException e) {
         logger.log(Level.INFO, "", e);
       }
@@ -237,5 +336,21 @@ public class AggressiveQueryCacheStrategy extends RpcVisitor {
     public void setIgnoreKinds(Set<String> ignoreKinds) {
       this.ignoreKinds = ignoreKinds;
     }
+
+    /**
+     * @return the staleSeconds
+     * @category accessor
+     */
+    public Map<String, Integer> getStaleSeconds() {
+      return staleSeconds;
+    }
+
+    /**
+     * @param staleSeconds the staleSeconds to set
+     * @category accessor
+     */
+    public void setStaleSeconds(Map<String, Integer> staleSeconds) {
+      this.staleSeconds = staleSeconds;
+    }
   }
 }
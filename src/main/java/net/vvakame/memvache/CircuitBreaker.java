@@ -0,0 +1,120 @@
+package net.vvakame.memvache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Memcacheが不調な時にMemcacheへのRPCを打ち切るためのサーキットブレーカ。<br>
+ * 連続して失敗(タイムアウト含む)するとOPENになり、一定時間RPCを行わない。<br>
+ * 一定時間経つとHALF_OPENになり、1つだけ試しにRPCを行わせて、成功したらCLOSEDに戻す。
+ */
+public class CircuitBreaker {
+
+  private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+  /**
+   * 状態。
+   */
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  final int failureThreshold;
+
+  final long openNanos;
+
+  final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+  final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  final AtomicLong rejectedCount = new AtomicLong();
+
+  volatile long openedAt;
+
+  /**
+   * the constructor.
+   * @param failureThreshold OPENにする連続失敗回数
+   * @param openMillis OPENを維持する時間
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  /**
+   * RPCを行って良いかを判定する。
+   * @return 行って良い場合 true
+   */
+  public boolean allowRequest() {
+    State current = state.get();
+    if (current == State.CLOSED) {
+      return true;
+    }
+    if (current == State.OPEN
+        && System.nanoTime() - openedAt >= openNanos
+        && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+      logger.info("memcache circuit half-open. probing.");
+      return true;
+    }
+    rejectedCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * RPCの成功を記録する。
+   */
+  public void onSuccess() {
+    consecutiveFailures.set(0);
+    if (state.get() != State.CLOSED) {
+      state.set(State.CLOSED);
+      logger.info("memcache circuit closed.");
+    }
+  }
+
+  /**
+   * RPCの失敗を記録する。
+   */
+  public void onFailure() {
+    int failures = consecutiveFailures.incrementAndGet();
+    State current = state.get();
+    if (current == State.HALF_OPEN) {
+      open(State.HALF_OPEN);
+    } else if (current == State.CLOSED && failures >= failureThreshold) {
+      open(State.CLOSED);
+    }
+  }
+
+  private void open(State expect) {
+    openedAt = System.nanoTime();
+    if (state.compareAndSet(expect, State.OPEN)) {
+      logger.warning("memcache circuit opened. failures=" + consecutiveFailures.get());
+    }
+  }
+
+  /**
+   * @return 現在の状態
+   */
+  public State getState() {
+    return state.get();
+  }
+
+  /**
+   * @return OPENのために行わなかったRPCの数
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * CLOSEDに戻す。
+   */
+  public void reset() {
+    consecutiveFailures.set(0);
+    state.set(State.CLOSED);
+  }
+}
@@ -0,0 +1,220 @@
+package net.vvakame.memvache;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyTranslatorPublic;
+import com.google.apphosting.api.DatastorePb.GetResponse.Entity;
+import com.google.storage.onestore.v3.OnestoreEntity.Path;
+import com.google.storage.onestore.v3.OnestoreEntity.Path.Element;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Entityをキャッシュする時のMemcacheのKeyを作成するクラス。<br>
+ * {@link Reference} のpath(namespace, kind, id/name)から直接コンパクトな文字列Keyを作る。
+ * {@link Key} をMemcacheのKeyにするとJavaのシリアライズが走るので、それを避けるため。<br>
+ * インスタンスは内部のバッファを使いまわすので、スレッド間で共有しないこと。
+ * <p>
+ * 旧形式({@link Key}そのもの)からの移行のため、memvache.properties の entityKeyFormat で形式を選択する。
+ * <ul>
+ * <li>legacy : 旧形式のみ読み書きする(デフォルト)</li>
+ * <li>dual : 旧形式で読み、新旧両方の形式で書く・消す</li>
+ * <li>compact : 新形式のみ読み書きする</li>
+ * </ul>
+ * 全インスタンスを dual にしてから compact にすること。
+ * dual の間も読み込みは旧形式なので、まだ legacy のインスタンスが書いた値を読み損なわない。
+ * </p>
+ */
+public class EntityKeyEncoder {
+
+  static final Logger logger = Logger.getLogger(EntityKeyEncoder.class.getName());
+
+  static final String PREFIX = "E|";
+
+  /**
+   * MemcacheのKeyの形式。
+   */
+  public enum Format {
+    LEGACY,
+    DUAL,
+    COMPACT
+  }
+
+  static Format format = loadFormat();
+
+  final StringBuilder builder = new StringBuilder(64);
+
+  /**
+   * 現在のKeyの形式を取得する。
+   * @return 形式
+   */
+  public static Format getFormat() {
+    return format;
+  }
+
+  /**
+   * Keyの形式を設定する。
+   * @param newFormat
+   */
+  public static void setFormat(Format newFormat) {
+    format = newFormat;
+  }
+
+  static Format loadFormat() {
+    Properties properties = new Properties();
+    try {
+      InputStream is = EntityKeyEncoder.class.getResourceAsStream("/memvache.properties");
+      if (is == null) {
+        return Format.LEGACY;
+      }
+      properties.load(is);
+      String formatStr = properties.getProperty("entityKeyFormat");
+      if (formatStr != null && !"".equals(formatStr)) {
+        return Format.valueOf(formatStr.trim().toUpperCase());
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "cannot load memvache.properties", e);
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, "unknown entityKeyFormat", e);
+    }
+    return Format.LEGACY;
+  }
+
+  /**
+   * {@link Reference} からコンパクトなKeyを作成する。
+   * @param reference
+   * @return MemcacheのKey
+   */
+  public String encode(Reference reference) {
+    builder.setLength(0);
+    builder.append(PREFIX);
+    appendEscaped(reference.getNameSpace());
+    Path path = reference.getPath();
+    int size = path.elementSize();
+    for (int i = 0; i < size; i++) {
+      Element element = path.getElement(i);
+      builder.append('|');
+      appendEscaped(element.getType());
+      if (element.hasName()) {
+        builder.append('"');
+        appendEscaped(element.getName());
+      } else {
+        builder.append(':');
+        builder.append(Long.toString(element.getId(), Character.MAX_RADIX));
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * {@link Key} から {@link #encode(Reference)} と同じKeyを作成する。
+   * @param key
+   * @return MemcacheのKey
+   */
+  public String encode(Key key) {
+    return encode(KeyTranslatorPublic.convertToPb(key));
+  }
+
+  private void appendEscaped(String str) {
+    if (str == null) {
+      return;
+    }
+    final int length = str.length();
+    for (int i = 0; i < length; i++) {
+      char c = str.charAt(i);
+      if (c == '|' || c == ':' || c == '"' || c == '\\') {
+        builder.append('\\');
+      }
+      builder.append(c);
+    }
+  }
+
+  /**
+   * Getの結果の {@link Entity} から {@link Reference} を取得する。
+   * @param entity
+   * @return {@link Reference} or null
+   */
+  static Reference referenceOf(Entity entity) {
+    try {
+      Reference reference = entity.getEntity().getKey();
+      if (reference.getPath().elementSize() != 0) {
+        return reference;
+      }
+    } catch (Exception e) {
+      // fall through
+    }
+    try {
+      Reference reference = entity.getKey();
+      if (reference.getPath().elementSize() != 0) {
+        return reference;
+      }
+    } catch (Exception e) {
+      // fall through
+    }
+    return null;
+  }
+
+  /**
+   * 読み込みに使うMemcacheのKeyを取得する。
+   * @param reference
+   * @return MemcacheのKey
+   */
+  public Object readKey(Reference reference) {
+    if (format != Format.COMPACT) {
+      return PbKeyUtil.toKey(reference);
+    }
+    return encode(reference);
+  }
+
+  /**
+   * 読み込みに使うMemcacheのKeyを取得する。
+   * @param references
+   * @return MemcacheのKeyのList
+   */
+  public List<Object> readKeys(List<Reference> references) {
+    List<Object> keys = new ArrayList<Object>(references.size());
+    for (Reference reference : references) {
+      keys.add(readKey(reference));
+    }
+    return keys;
+  }
+
+  /**
+   * 書き込みに使う全てのMemcacheのKeyについて、値をMapに追加する。
+   * @param map
+   * @param reference
+   * @param value
+   */
+  public <V> void putWriteKeys(Map<Object, V> map, Reference reference, V value) {
+    if (format != Format.COMPACT) {
+      map.put(PbKeyUtil.toKey(reference), value);
+    }
+    if (format != Format.LEGACY) {
+      map.put(encode(reference), value);
+    }
+  }
+
+  /**
+   * 書き込み(削除)に使う全てのMemcacheのKeyを取得する。
+   * @param references
+   * @return MemcacheのKeyのList
+   */
+  public List<Object> writeKeys(List<Reference> references) {
+    List<Object> keys = new ArrayList<Object>(references.size() * 2);
+    for (Reference reference : references) {
+      if (format != Format.COMPACT) {
+        keys.add(PbKeyUtil.toKey(reference));
+      }
+      if (format != Format.LEGACY) {
+        keys.add(encode(reference));
+      }
+    }
+    return keys;
+  }
+}
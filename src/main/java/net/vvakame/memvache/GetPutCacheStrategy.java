@@ -1,7 +1,7 @@
 package net.vvakame.memvache;
 
-import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.apphosting.api.DatastorePb.CommitResponse;
 import com.google.apphosting.api.DatastorePb.DeleteRequest;
 import com.google.apphosting.api.DatastorePb.GetRequest;
@@ -11,6 +11,7 @@ import com.google.apphosting.api.DatastorePb.PutRequest;
 import com.google.apphosting.api.DatastorePb.PutResponse;
 import com.google.apphosting.api.DatastorePb.Transaction;
 import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Path;
 import com.google.storage.onestore.v3.OnestoreEntity.Reference;
 import java.util.HashMap;
 import java.util.List;
@@ -30,6 +31,12 @@ public class GetPutCacheStrategy extends RpcVisitor {
 
   static final int PRIORITY = QueryKeysOnlyStrategy.PRIORITY + 1000;
 
+  static final MemvacheMetrics.KindCounters entityHits =
+      MemvacheMetrics.get().kindCounters("entity.hit.");
+
+  static final MemvacheMetrics.KindCounters entityMisses =
+      MemvacheMetrics.get().kindCounters("entity.miss.");
+
   @Override
   public int getPriority() {
     return PRIORITY;
@@ -37,16 +44,19 @@ public class GetPutCacheStrategy extends RpcVisitor {
 
   /** オリジナルのリクエストが要求しているKeyの一覧, リクエスト毎 */
   // Map<GetRequest, List<Key>> requestKeysMap = new HashMap<GetRequest, List<Key>>();
-  Map<String, List<Key>> requestKeysMap = new HashMap<String, List<Key>>();
+  Map<String, List<Object>> requestKeysMap = new HashMap<String, List<Object>>();
 
   /** Memcacheが持っていたEntityのキャッシュ, リクエスト毎 */
   // Map<GetRequest, Map<Key, Entity>> dataMap = new HashMap<GetRequest, Map<Key, Entity>>();
-  Map<String, Map<Key, Entity>> dataMap = new HashMap<String, Map<Key, Entity>>();
+  Map<String, Map<Object, Entity>> dataMap = new HashMap<String, Map<Object, Entity>>();
 
   /** 同一操作を行ったカウント数, リクエスト毎 */
   // Map<GetRequest, Integer> requestCountMap = new HashMap<GetRequest, Integer>();
 
-  Map<Long, Map<Key, Entity>> putUnderTx = new HashMap<Long, Map<Key, Entity>>();
+  Map<Long, Map<Object, Entity>> putUnderTx = new HashMap<Long, Map<Object, Entity>>();
+
+  /** MemcacheのKeyの作成用 */
+  final EntityKeyEncoder encoder = new EntityKeyEncoder();
 
   /**
    * Getを行う前の動作として、Memcacheから解決できる要素について処理を行う。<br>
@@ -62,19 +72,23 @@ public class GetPutCacheStrategy extends RpcVisitor {
       // 操作するEGに対してマークを付けさせるためにDatastoreに素通しする必要がある。
       return null;
     }
+    if (bypass(requestPb.keys())) {
+      // 書き込みの多いKindなどはキャッシュを参照しない
+      return null;
+    }
 
-    List<Key> requestKeys = PbKeyUtil.toKeys(requestPb.keys());
-    Map<Key, Entity> data = new HashMap<Key, Entity>();
+    List<Object> requestKeys = encoder.readKeys(requestPb.keys());
+    Map<Object, Entity> data = new HashMap<Object, Entity>();
 
     // Memcacheにあるものはキャッシュで済ませる
     {
       final MemcacheService memcache = MemvacheDelegate.getMemcache();
-      Map<Key, Object> all = memcache.getAll(requestKeys); // 存在しなかった場合Keyごと無い
+      Map<Object, Object> all = memcache.getAll(requestKeys); // 存在しなかった場合Keyごと無い
       if (all == null) {
         logger.severe("memcache#getAll returns null. continue.");
-        all = new HashMap<Key, Object>();
+        all = new HashMap<Object, Object>();
       }
-      for (Key key : all.keySet()) {
+      for (Object key : all.keySet()) {
         Entity entity = (Entity) all.get(key);
         if (entity != null) {
           data.put(key, entity);
@@ -82,13 +96,15 @@ public class GetPutCacheStrategy extends RpcVisitor {
       }
     }
 
+    recordLookup(requestPb.keys(), requestKeys, data);
+
     // もし全部取れた場合は Get動作を行わず結果を構成して返す。
     if (requestKeys.size() == data.size()) {
       GetResponse responsePb = new GetResponse();
       // toByteArray() を呼んだ時にNPEが発生するのを抑制するために内部的に new ArrayList() させる
       responsePb.mutableEntitys();
       responsePb.mutableDeferreds();
-      for (Key key : requestKeys) {
+      for (Object key : requestKeys) {
         Entity entity = data.get(key);
         if (entity == null) {
           data.remove(key);
@@ -138,6 +154,42 @@ public class GetPutCacheStrategy extends RpcVisitor {
     */
   }
 
+  /**
+   * 全てのKeyのKindが {@link KindController.Mode#BYPASS} の場合、キャッシュを参照せずに読み込みだけ記録する。
+   * @return キャッシュを参照しない場合 true
+   */
+  static boolean bypass(List<Reference> references) {
+    KindController controller = KindController.get();
+    for (Reference reference : references) {
+      if (controller.mode(kindOf(reference)) != KindController.Mode.BYPASS) {
+        return false;
+      }
+    }
+    for (Reference reference : references) {
+      controller.read(kindOf(reference));
+    }
+    return true;
+  }
+
+  /**
+   * Kind毎のキャッシュのヒット数・ミス数を記録する。
+   */
+  static void recordLookup(
+      List<Reference> references, List<Object> requestKeys, Map<Object, Entity> data) {
+    KindController controller = KindController.get();
+    for (int i = 0; i < references.size(); i++) {
+      String kind = kindOf(references.get(i));
+      boolean hit = data.containsKey(requestKeys.get(i));
+      (hit ? entityHits : entityMisses).get(kind).increment();
+      controller.lookup(kind, hit);
+    }
+  }
+
+  static String kindOf(Reference reference) {
+    Path path = reference.getPath();
+    return path.getElement(path.elementSize() - 1).getType();
+  }
+
   /**
    * Getを行った後の動作として、前処理で抜いた分のリクエストと実際にRPCした結果をマージし返す。<br>
    * また、RPCして得られた結果についてMemcacheにキャッシュを作成する。
@@ -151,39 +203,39 @@ public class GetPutCacheStrategy extends RpcVisitor {
       return null;
     }
 
+    // ここで取れてきているのはキャッシュにないヤツだけなので再構成して返す必要がある
+    byte[] requestByte = requestPb.toByteArray();
+    String digest = DigestUtils.md5Hex(requestByte);
+    logger.fine("digest = " + digest);
+    logger.fine("dataMap size: " + dataMap.size());
+    Map<Object, Entity> data = dataMap.remove(digest);
+    List<Object> requestKeys = requestKeysMap.remove(digest);
+    if (data == null) {
+      // 前処理でキャッシュを参照しなかった
+      return null;
+    }
+
     // Memcacheに蓄える
-    Map<Key, Entity> newMap = new HashMap<Key, Entity>();
+    Map<Object, Entity> newMap = new HashMap<Object, Entity>();
+    Map<Object, Entity> readMap = new HashMap<Object, Entity>();
     // List<Reference> keys = requestPb.keys();
     List<Entity> entitys = responsePb.entitys();
 
     for (int i = 0; i < entitys.size(); i++) {
       // Key key = PbKeyUtil.toKey(keys.get(i));
       Entity entity = entitys.get(i);
-      Key key = null;
-      try {
-        key = PbKeyUtil.toKey(entity.getEntity().getKey());
-      } catch (Exception e) {
-        try {
-          key = PbKeyUtil.toKey(entity.getKey());
-        } catch (Exception e2) {
-          logger.severe("Keyの取得に失敗しました。" + entity.toString());
-        }
-      }
-      if (key != null) {
-        newMap.put(key, entity);
+      Reference reference = EntityKeyEncoder.referenceOf(entity);
+      if (reference == null) {
+        logger.severe("Keyの取得に失敗しました。" + entity.toString());
+      } else {
+        encoder.putWriteKeys(newMap, reference, entity);
+        readMap.put(encoder.readKey(reference), entity);
       }
     }
+    // 読み込み中に他のリクエストがPutした新しい値を古い値で上書きしないよう、無い時だけ追加する
     MemcacheService memcache = MemvacheDelegate.getMemcache();
-    memcache.putAll(newMap);
-    logger.fine("get from datastore size: " + newMap.size());
-
-    // ここで取れてきているのはキャッシュにないヤツだけなので再構成して返す必要がある
-    byte[] requestByte = requestPb.toByteArray();
-    String digest = DigestUtils.md5Hex(requestByte);
-    logger.fine("digest = " + digest);
-    logger.fine("dataMap size: " + dataMap.size());
-    Map<Key, Entity> data = dataMap.remove(digest);
-    List<Key> requestKeys = requestKeysMap.remove(digest);
+    memcache.putAll(newMap, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    logger.fine("get from datastore size: " + readMap.size());
     /*
     {
     	Integer count = requestCountMap.get(requestPb);
@@ -198,9 +250,9 @@ public class GetPutCacheStrategy extends RpcVisitor {
     	}
     }
     */
-    data.putAll(newMap);
+    data.putAll(readMap);
     responsePb.clearEntity();
-    for (Key key : requestKeys) {
+    for (Object key : requestKeys) {
       responsePb.addEntity(data.get(key));
     }
 
@@ -212,38 +264,41 @@ public class GetPutCacheStrategy extends RpcVisitor {
    */
   @Override
   public byte[] post_datastore_v3_Put(PutRequest requestPb, PutResponse responsePb) {
+    KindController controller = KindController.get();
+    for (Reference reference : responsePb.keys()) {
+      controller.write(kindOf(reference));
+    }
     Transaction tx = requestPb.getTransaction();
     if (tx.hasApp()) {
       // Tx下の場合はDatastoreに反映されるまで、ローカル変数に結果を保持しておく。
       final long handle = tx.getHandle();
-      Map<Key, Entity> newMap = extractCache(requestPb, responsePb);
+      Map<Object, Entity> newMap = extractCache(requestPb, responsePb);
       if (putUnderTx.containsKey(handle)) {
-        Map<Key, Entity> cached = putUnderTx.get(handle);
+        Map<Object, Entity> cached = putUnderTx.get(handle);
         cached.putAll(newMap);
       } else {
         putUnderTx.put(handle, newMap);
       }
     } else {
       MemcacheService memcache = MemvacheDelegate.getMemcache();
-      Map<Key, Entity> newMap = extractCache(requestPb, responsePb);
+      Map<Object, Entity> newMap = extractCache(requestPb, responsePb);
       memcache.putAll(newMap);
     }
     return null;
   }
 
-  private Map<Key, Entity> extractCache(PutRequest requestPb, PutResponse responsePb) {
-    Map<Key, Entity> newMap = new HashMap<Key, Entity>();
+  private Map<Object, Entity> extractCache(PutRequest requestPb, PutResponse responsePb) {
+    Map<Object, Entity> newMap = new HashMap<Object, Entity>();
     int size = requestPb.entitySize();
     List<EntityProto> entitys = requestPb.entitys();
     for (int i = 0; i < size; i++) {
       EntityProto proto = entitys.get(i);
       Reference reference = responsePb.getKey(i);
-      Key key = PbKeyUtil.toKey(reference);
       proto.setKey(reference);
       Entity entity = new Entity();
       entity.setEntity(proto);
       entity.setKey(reference);
-      newMap.put(key, entity);
+      encoder.putWriteKeys(newMap, reference, entity);
     }
     return newMap;
   }
@@ -253,7 +308,11 @@ public class GetPutCacheStrategy extends RpcVisitor {
    */
   @Override
   public Pair<byte[], byte[]> pre_datastore_v3_Delete(DeleteRequest requestPb) {
-    List<Key> keys = PbKeyUtil.toKeys(requestPb.keys());
+    KindController controller = KindController.get();
+    for (Reference reference : requestPb.keys()) {
+      controller.write(kindOf(reference));
+    }
+    List<Object> keys = encoder.writeKeys(requestPb.keys());
     MemcacheService memcache = MemvacheDelegate.getMemcache();
     memcache.deleteAll(keys);
 
@@ -267,7 +326,7 @@ public class GetPutCacheStrategy extends RpcVisitor {
   public byte[] post_datastore_v3_Commit(Transaction requestPb, CommitResponse responsePb) {
     final long handle = requestPb.getHandle();
     if (putUnderTx.containsKey(handle)) {
-      Map<Key, Entity> map = putUnderTx.get(handle);
+      Map<Object, Entity> map = putUnderTx.get(handle);
       MemvacheDelegate.getMemcache().putAll(map);
       return null;
     } else {
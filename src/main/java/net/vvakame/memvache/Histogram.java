@@ -0,0 +1,87 @@
+package net.vvakame.memvache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ロックなしで記録できる、2の冪の幅のバケットを持つヒストグラム。<br>
+ * 値 v は [2^(i-1), 2^i) のバケット i に数えられる。パーセンタイルはバケットの上限で近似する。
+ */
+public class Histogram {
+
+  static final int BUCKETS = 65;
+
+  final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  final LongAdder count = new LongAdder();
+
+  final LongAdder sum = new LongAdder();
+
+  /**
+   * 値を記録する。負の値は0として扱う。
+   * @param value
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+    count.increment();
+    sum.add(value);
+  }
+
+  /**
+   * @return 記録した数
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return 記録した値の合計
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * パーセンタイルの近似値を取得する。
+   * @param percentile 0.0 - 1.0
+   * @return 値が属するバケットの上限。記録がない場合は 0
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return upperBound(i);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  static long upperBound(int bucket) {
+    return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+
+  /**
+   * 記録をクリアする。
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+    count.reset();
+    sum.reset();
+  }
+}
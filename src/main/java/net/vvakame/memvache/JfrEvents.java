@@ -0,0 +1,153 @@
+package net.vvakame.memvache;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JFRのイベントを発行するクラス。<br>
+ * JFRが使えない環境(jdk.jfr が無い、またはシステムプロパティ memvache.jfr=false)では何もしない。
+ * イベントのクラスはここからしか参照しないので、その場合もロードされない。
+ * JFRが記録していないイベントの場合は、イベントを作らずに null を返す。
+ * null が共通の「何もしないイベント」で、呼び出し元はそれを見て記録を省く。
+ */
+public class JfrEvents {
+
+  static final Logger logger = Logger.getLogger(JfrEvents.class.getName());
+
+  static final boolean AVAILABLE = isAvailable();
+
+  private JfrEvents() {}
+
+  /**
+   * イベントの種類。JFRが使える時だけロードされる。
+   */
+  static class Types {
+
+    static final jdk.jfr.EventType RPC = jdk.jfr.EventType.getEventType(MemvacheRpcEvent.class);
+
+    static final jdk.jfr.EventType LOOKUP =
+        jdk.jfr.EventType.getEventType(MemvacheCacheLookupEvent.class);
+
+    static final jdk.jfr.EventType INVALIDATION =
+        jdk.jfr.EventType.getEventType(MemvacheInvalidationEvent.class);
+  }
+
+  static boolean isAvailable() {
+    if ("false".equals(System.getProperty("memvache.jfr"))) {
+      return false;
+    }
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (Throwable e) {
+      logger.log(Level.FINE, "JFR is not available", e);
+      return false;
+    }
+  }
+
+  /**
+   * RPCのイベントを開始する。
+   * @return イベント。記録しない場合は null
+   */
+  static Object beginRpc() {
+    if (!AVAILABLE || !Types.RPC.isEnabled()) {
+      return null;
+    }
+    MemvacheRpcEvent event = new MemvacheRpcEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * RPCのイベントを記録する。
+   * @param event {@link #beginRpc()} の返り値
+   * @param trace
+   */
+  static void commitRpc(Object event, RpcTrace trace) {
+    MemvacheRpcEvent rpcEvent = (MemvacheRpcEvent) event;
+    rpcEvent.end();
+    if (!rpcEvent.shouldCommit()) {
+      return;
+    }
+    rpcEvent.service = trace.getService();
+    rpcEvent.method = trace.getMethod();
+    rpcEvent.source = trace.getSource();
+    rpcEvent.servedBy = trace.getServedBy();
+    rpcEvent.decisions = decisions(trace.getSteps());
+    rpcEvent.depth = trace.getDepth();
+    rpcEvent.requestBytes = trace.getRequestBytes();
+    rpcEvent.responseBytes = trace.getResponseBytes();
+    rpcEvent.parentNanos = trace.getParentNanos();
+    rpcEvent.memcacheCalls = trace.getMemcacheCalls();
+    rpcEvent.commit();
+  }
+
+  static String decisions(List<RpcTrace.Step> steps) {
+    StringBuilder builder = new StringBuilder();
+    for (RpcTrace.Step step : steps) {
+      if (!step.isPre()) {
+        continue;
+      }
+      if (builder.length() != 0) {
+        builder.append(' ');
+      }
+      builder.append(step.getStrategy()).append('=').append(step.getOutcome());
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Memcacheのget/getAllのイベントを開始する。
+   * @return イベント。記録しない場合は null
+   */
+  static Object beginLookup() {
+    if (!AVAILABLE || !Types.LOOKUP.isEnabled()) {
+      return null;
+    }
+    MemvacheCacheLookupEvent event = new MemvacheCacheLookupEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Memcacheのget/getAllのイベントを記録する。
+   * @param event {@link #beginLookup()} の返り値
+   * @param operation
+   * @param keys
+   * @param hits
+   * @param bypassed
+   */
+  static void commitLookup(Object event, String operation, int keys, int hits, boolean bypassed) {
+    MemvacheCacheLookupEvent lookupEvent = (MemvacheCacheLookupEvent) event;
+    lookupEvent.end();
+    if (!lookupEvent.shouldCommit()) {
+      return;
+    }
+    lookupEvent.operation = operation;
+    lookupEvent.keys = keys;
+    lookupEvent.hits = hits;
+    lookupEvent.bypassed = bypassed;
+    lookupEvent.commit();
+  }
+
+  /**
+   * Kindのリセットやカウンタのインクリメントを記録する。
+   * @param type counter, generation, resetDate
+   * @param key
+   * @param value インクリメント後の値 or -1
+   */
+  public static void invalidation(String type, String key, long value) {
+    if (!AVAILABLE || !Types.INVALIDATION.isEnabled()) {
+      return;
+    }
+    MemvacheInvalidationEvent event = new MemvacheInvalidationEvent();
+    if (!event.shouldCommit()) {
+      return;
+    }
+    event.type = type;
+    event.key = key;
+    event.value = value;
+    event.commit();
+  }
+}
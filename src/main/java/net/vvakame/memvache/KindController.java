@@ -0,0 +1,319 @@
+package net.vvakame.memvache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Kind毎にキャッシュの使い方を決めるクラス。<br>
+ * Kind毎の読み込み数・書き込み数・ヒット率・Queryの結果件数を直近の時間窓で集計し、
+ * 窓が切り替わる毎に {@link Mode} を決め直して不変のMapとして公開する。
+ * 各リクエストからの参照はvolatileなMapを1回引くだけで済む。
+ * <p>
+ * BYPASS の間もPut・Deleteの書き込みと無効化は通常通り行うので、いつ FULL に戻しても古い値は返らない。
+ * ヒット率で外したKindは参照しなくなった分の記録が窓から消えると一旦戻り、もう一度試される。
+ * </p>
+ * 既定では無効で、 {@code memvache.kind.adaptive=true} で有効になる。
+ */
+public class KindController {
+
+  static final Logger logger = Logger.getLogger(KindController.class.getName());
+
+  /**
+   * Kindに対するキャッシュの使い方。
+   */
+  public enum Mode {
+    /** キャッシュを参照しない */
+    BYPASS,
+    /** Entityのキャッシュのみ参照する */
+    ENTITY_ONLY,
+    /** EntityとQueryのキャッシュを参照する */
+    FULL
+  }
+
+  /** 1つの窓の長さ */
+  static final long WINDOW_MILLIS =
+      MemcacheServiceWrapper.longProperty("memvache.kind.window", 10000);
+
+  /** 集計に使う窓の数 */
+  static final int WINDOWS = (int) MemcacheServiceWrapper.longProperty("memvache.kind.windows", 6);
+
+  /** 判定を変えるのに必要な最小の記録数 */
+  static final long MIN_SAMPLES =
+      MemcacheServiceWrapper.longProperty("memvache.kind.minSamples", 100);
+
+  /** 読み込みに対する書き込みの比率がこれ以上なら BYPASS */
+  static final double WRITE_RATIO =
+      MemcacheServiceWrapper.doubleProperty("memvache.kind.writeRatio", 1.0);
+
+  /** Entityのヒット率がこれ未満なら BYPASS */
+  static final double MIN_HIT_RATE =
+      MemcacheServiceWrapper.doubleProperty("memvache.kind.minHitRate", 0.1);
+
+  /** Queryのヒット率がこれ未満なら ENTITY_ONLY */
+  static final double MIN_QUERY_HIT_RATE =
+      MemcacheServiceWrapper.doubleProperty("memvache.kind.minQueryHitRate", 0.1);
+
+  /** Queryの平均結果件数がこれより多ければ ENTITY_ONLY */
+  static final long MAX_RESULT_ENTITIES =
+      MemcacheServiceWrapper.longProperty("memvache.kind.maxResultEntities", 500);
+
+  static final int READ = 0;
+
+  static final int LOOKUP = 1;
+
+  static final int HIT = 2;
+
+  static final int WRITE = 3;
+
+  static final int QUERY_LOOKUP = 4;
+
+  static final int QUERY_HIT = 5;
+
+  static final int RESULTS = 6;
+
+  static final int RESULT_ENTITIES = 7;
+
+  static final int FIELDS = 8;
+
+  static final KindController instance =
+      new KindController(Boolean.getBoolean("memvache.kind.adaptive"));
+
+  /**
+   * @return インスタンス
+   */
+  public static KindController get() {
+    return instance;
+  }
+
+  volatile boolean enabled;
+
+  final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+  volatile Map<String, Mode> modes = Collections.emptyMap();
+
+  final AtomicLong publishedWindow = new AtomicLong();
+
+  KindController(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Kindに対するキャッシュの使い方を取得する。
+   * @param kind
+   * @return 無効な場合や判定がない場合は {@link Mode#FULL}
+   */
+  public Mode mode(String kind) {
+    if (!enabled) {
+      return Mode.FULL;
+    }
+    Mode mode = modes.get(kind);
+    return mode == null ? Mode.FULL : mode;
+  }
+
+  /**
+   * キャッシュを参照しなかったEntityの読み込みを記録する。
+   * @param kind
+   */
+  public void read(String kind) {
+    Stats s = stats(kind);
+    if (s != null) {
+      long window = window();
+      s.add(window, READ, 1);
+    }
+  }
+
+  /**
+   * キャッシュを参照したEntityの読み込みを記録する。
+   * @param kind
+   * @param hit
+   */
+  public void lookup(String kind, boolean hit) {
+    Stats s = stats(kind);
+    if (s != null) {
+      long window = window();
+      s.add(window, READ, 1);
+      s.add(window, LOOKUP, 1);
+      if (hit) {
+        s.add(window, HIT, 1);
+      }
+    }
+  }
+
+  /**
+   * EntityのPut・Deleteを記録する。
+   * @param kind
+   */
+  public void write(String kind) {
+    Stats s = stats(kind);
+    if (s != null) {
+      s.add(window(), WRITE, 1);
+    }
+  }
+
+  /**
+   * Queryのキャッシュの参照を記録する。
+   * @param kind
+   * @param hit
+   */
+  public void queryLookup(String kind, boolean hit) {
+    Stats s = stats(kind);
+    if (s != null) {
+      long window = window();
+      s.add(window, QUERY_LOOKUP, 1);
+      if (hit) {
+        s.add(window, QUERY_HIT, 1);
+      }
+    }
+  }
+
+  /**
+   * Datastoreから返ったQueryの結果件数を記録する。
+   * @param kind
+   * @param entities
+   */
+  public void result(String kind, int entities) {
+    Stats s = stats(kind);
+    if (s != null) {
+      long window = window();
+      s.add(window, RESULTS, 1);
+      s.add(window, RESULT_ENTITIES, entities);
+    }
+  }
+
+  /**
+   * @return 現在公開している判定
+   */
+  public Map<String, Mode> getModes() {
+    return modes;
+  }
+
+  /**
+   * 記録と判定を全て捨てる。
+   */
+  public void reset() {
+    stats.clear();
+    modes = Collections.emptyMap();
+  }
+
+  long currentMillis() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * 現在の窓の番号を返す。窓が切り替わっていたら1つのスレッドだけが判定を公開し直す。
+   */
+  long window() {
+    long window = currentMillis() / WINDOW_MILLIS;
+    long published = publishedWindow.get();
+    if (window != published && publishedWindow.compareAndSet(published, window)) {
+      publish(window);
+    }
+    return window;
+  }
+
+  Stats stats(String kind) {
+    if (!enabled) {
+      return null;
+    }
+    Stats s = stats.get(kind);
+    if (s == null) {
+      Stats newStats = new Stats();
+      s = stats.putIfAbsent(kind, newStats);
+      if (s == null) {
+        s = newStats;
+      }
+    }
+    return s;
+  }
+
+  /**
+   * 全てのKindについて判定し直して公開する。
+   */
+  void publish() {
+    publish(currentMillis() / WINDOW_MILLIS);
+  }
+
+  void publish(long window) {
+    Map<String, Mode> current = modes;
+    Map<String, Mode> next = new HashMap<String, Mode>();
+    for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+      String kind = entry.getKey();
+      Mode before = current.get(kind);
+      if (before == null) {
+        before = Mode.FULL;
+      }
+      Mode after = decide(entry.getValue(), window, before);
+      if (after != before) {
+        logger.info("kind mode changed. " + kind + ": " + before + " -> " + after);
+      }
+      if (after != Mode.FULL) {
+        next.put(kind, after);
+      }
+    }
+    modes = Collections.unmodifiableMap(next);
+  }
+
+  static Mode decide(Stats s, long window, Mode current) {
+    long[] sum = s.sum(window);
+    long samples = sum[READ] + sum[WRITE] + sum[QUERY_LOOKUP] + sum[RESULTS];
+    if (samples < MIN_SAMPLES) {
+      return current;
+    }
+    // 書き込みが多いと無効化されるばかりで、キャッシュへの読み書きが無駄になる
+    if (sum[WRITE] > 0 && sum[WRITE] >= sum[READ] * WRITE_RATIO) {
+      return Mode.BYPASS;
+    }
+    if (sum[LOOKUP] >= MIN_SAMPLES && sum[HIT] < sum[LOOKUP] * MIN_HIT_RATE) {
+      return Mode.BYPASS;
+    }
+    if (sum[QUERY_LOOKUP] >= MIN_SAMPLES
+        && sum[QUERY_HIT] < sum[QUERY_LOOKUP] * MIN_QUERY_HIT_RATE) {
+      return Mode.ENTITY_ONLY;
+    }
+    if (sum[RESULTS] > 0 && sum[RESULT_ENTITIES] / sum[RESULTS] > MAX_RESULT_ENTITIES) {
+      return Mode.ENTITY_ONLY;
+    }
+    return Mode.FULL;
+  }
+
+  /**
+   * 1つのKindの窓毎の記録。<br>
+   * 窓を使い回す時のクリアと他のスレッドの記録が重なると数件失われるが、判定に使うだけなので許容する。
+   */
+  static class Stats {
+
+    final AtomicLongArray counts = new AtomicLongArray(WINDOWS * FIELDS);
+
+    final AtomicLongArray windows = new AtomicLongArray(WINDOWS);
+
+    void add(long window, int field, long delta) {
+      int slot = (int) (window % WINDOWS);
+      long old = windows.get(slot);
+      if (old != window && windows.compareAndSet(slot, old, window)) {
+        for (int i = 0; i < FIELDS; i++) {
+          counts.set(slot * FIELDS + i, 0);
+        }
+      }
+      counts.addAndGet(slot * FIELDS + field, delta);
+    }
+
+    long[] sum(long window) {
+      long[] sum = new long[FIELDS];
+      for (int slot = 0; slot < WINDOWS; slot++) {
+        long w = windows.get(slot);
+        if (w <= window && window - w < WINDOWS) {
+          for (int i = 0; i < FIELDS; i++) {
+            sum[i] += counts.get(slot * FIELDS + i);
+          }
+        }
+      }
+      return sum;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package net.vvakame.memvache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 直近のRPCのレイテンシを保持し、パーセンタイルを計算するクラス。<br>
+ * 記録はロックなしのリングバッファに行い、パーセンタイルはある程度記録が溜まる毎にソートし直す。
+ */
+class LatencyTracker {
+
+  /** 保持するサンプル数(2の冪) */
+  static final int SIZE = 256;
+
+  /** パーセンタイルを計算するのに必要な最小のサンプル数 */
+  static final int MIN_SAMPLES = 32;
+
+  final AtomicLongArray samples = new AtomicLongArray(SIZE);
+
+  final AtomicLong count = new AtomicLong();
+
+  volatile Snapshot snapshot;
+
+  static class Snapshot {
+    final long count;
+    final long[] sorted;
+
+    Snapshot(long count, long[] sorted) {
+      this.count = count;
+      this.sorted = sorted;
+    }
+  }
+
+  /**
+   * レイテンシを記録する。
+   * @param nanos
+   */
+  void record(long nanos) {
+    long n = count.getAndIncrement();
+    samples.set((int) (n & (SIZE - 1)), nanos);
+  }
+
+  /**
+   * 全てのサンプルを捨てる。
+   */
+  void reset() {
+    for (int i = 0; i < SIZE; i++) {
+      samples.set(i, 0);
+    }
+    count.set(0);
+    snapshot = null;
+  }
+
+  /**
+   * 直近のレイテンシのパーセンタイルを取得する。
+   * @param percentile 0.0 - 1.0
+   * @return ナノ秒。サンプルが足りない場合は -1
+   */
+  long percentile(double percentile) {
+    long n = count.get();
+    if (n < MIN_SAMPLES) {
+      return -1;
+    }
+    Snapshot current = snapshot;
+    if (current == null || n - current.count >= SIZE / 8) {
+      int size = (int) Math.min(n, SIZE);
+      long[] sorted = new long[size];
+      for (int i = 0; i < size; i++) {
+        sorted[i] = samples.get(i);
+      }
+      Arrays.sort(sorted);
+      current = new Snapshot(n, sorted);
+      snapshot = current;
+    }
+    long[] sorted = current.sorted;
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    index = Math.max(0, Math.min(sorted.length - 1, index));
+    return sorted[index];
+  }
+}
@@ -1,12 +1,12 @@
 package net.vvakame.memvache;
 
-import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.apphosting.api.DatastorePb.GetResponse.Entity;
 import com.google.apphosting.api.DatastorePb.Query;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
+import jp.honestyworks.pbcache.Fingerprint;
 
 class MemcacheKeyUtil {
 
@@ -27,12 +27,24 @@ class MemcacheKeyUtil {
   }
 
   public static String createQueryKey(MemcacheService memcache, Query requestPb) {
-    StringBuilder builder = new StringBuilder();
-    createKindKey(builder, requestPb);
+    return createQueryKey(new StringBuilder(64), memcache, requestPb);
+  }
+
+  /**
+   * Queryの結果をキャッシュするKeyを作成する。
+   * @param builder 作業用。中身は消されるので、呼び出し元で使い回して良い
+   * @param memcache
+   * @param requestPb
+   * @return Key
+   */
+  public static String createQueryKey(
+      StringBuilder builder, MemcacheService memcache, Query requestPb) {
+    builder.setLength(0);
+    String kindKey = createKindKey(builder, requestPb);
 
     final long counter;
     {
-      Object obj = memcache.get(builder.toString());
+      Object obj = memcache.get(kindKey);
       if (obj == null) {
         counter = 0;
       } else {
@@ -45,13 +57,26 @@ class MemcacheKeyUtil {
     return builder.toString();
   }
 
-  public static Map<Key, Entity> conv(Map<Key, Object> map) {
-    Map<Key, Entity> newMap = new HashMap<Key, Entity>();
+  /**
+   * Kindのカウンタを含まない、無効になった後も返す結果のKeyを作成する。
+   * @param requestPb
+   * @param requestByte requestPbをシリアライズしたもの
+   * @return Key
+   */
+  public static String createStaleQueryKey(Query requestPb, byte[] requestByte) {
+    StringBuilder builder = new StringBuilder();
+    createKindKey(builder, requestPb);
+    builder.append("@stale@").append(Fingerprint.toHex(requestByte));
+    return builder.toString();
+  }
+
+  public static <K> Map<K, Entity> conv(Map<K, Object> map) {
+    Map<K, Entity> newMap = new HashMap<K, Entity>();
     if (map == null) {
       logger.severe("cached entity map is null.");
       return newMap;
     }
-    for (Key key : map.keySet()) {
+    for (K key : map.keySet()) {
       Entity e = (Entity) map.get(key);
       boolean valid = true;
       if (e == null) {
@@ -6,17 +6,45 @@ import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.memcache.Stats;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * タイムアウトをかけるために、
  * AsyncMemcacheServiceをMemcacheServiceのインターフェースでWrapする
+ * <p>
+ * タイムアウトは直近のレイテンシのパーセンタイルから適応的に短くする。
+ * また、連続して失敗した場合は {@link CircuitBreaker} をOPENにして、一定時間、読み込みと書き込みを行わない。
+ * 削除とインクリメントはキャッシュの整合性のため常に行い、タイムアウトも指定された値を使う。
+ * これらは無効化(書き込み)の経路でだけ使い、読み込みの経路では呼ばない。無効化を取りこぼすと
+ * 古い値を返し続けるので、OPENの間も省かず、短いタイムアウトで打ち切ることもしない。
+ * タイムアウトしたRPCはタイムアウトの時間をレイテンシとして記録するので、遅くなればタイムアウトも延びる。
+ * HALF_OPENで試しに行うRPCも、指定された値をタイムアウトにする。
+ * 条件付きの書き込み(SetPolicy指定, putIfUntouched)も同じタイムアウトをかけ、タイムアウトした場合は書き込まなかったものとして扱う。
+ * レイテンシとサーキットブレーカは全インスタンスで共有する。
+ * </p>
+ * <ul>
+ * <li>memcache.timeout.percentile : タイムアウトの元にするパーセンタイル (0.99)</li>
+ * <li>memcache.timeout.multiplier : パーセンタイルに掛ける倍率 (3)</li>
+ * <li>memcache.timeout.min : タイムアウトの下限ミリ秒 (50)</li>
+ * <li>memcache.breaker.failures : OPENにする連続失敗回数 (5)</li>
+ * <li>memcache.breaker.open : OPENを維持するミリ秒 (10000)</li>
+ * <li>memcache.hedge.budget : 読み込み(get, getAll, getIdentifiables)を投げ直す割合の上限%。0で無効 (0)</li>
+ * <li>memcache.hedge.percentile : 投げ直すまで待つ時間の元にするパーセンタイル (0.95)</li>
+ * </ul>
+ * 読み込みを投げ直した場合は、先に返ってきた方の結果を使う。
  *
  * @author miztaka
  *
@@ -25,6 +53,35 @@ public class MemcacheServiceWrapper implements MemcacheService {
 
   private static final Logger logger = Logger.getLogger(MemcacheServiceWrapper.class.getName());
 
+  static final double TIMEOUT_PERCENTILE = doubleProperty("memcache.timeout.percentile", 0.99);
+
+  static final double TIMEOUT_MULTIPLIER = doubleProperty("memcache.timeout.multiplier", 3);
+
+  static final long TIMEOUT_MIN = longProperty("memcache.timeout.min", 50);
+
+  static final LatencyTracker latency = new LatencyTracker();
+
+  static final MemvacheMetrics metrics = MemvacheMetrics.get();
+
+  static final CircuitBreaker breaker =
+      new CircuitBreaker(
+          (int) longProperty("memcache.breaker.failures", 5),
+          longProperty("memcache.breaker.open", 10000));
+
+  /** 投げ直す割合の上限%。テストから変えられるようにfinalにしない */
+  static double HEDGE_BUDGET = doubleProperty("memcache.hedge.budget", 0);
+
+  static final double HEDGE_PERCENTILE = doubleProperty("memcache.hedge.percentile", 0.95);
+
+  /** 投げ直し1回分のトークン */
+  static final long HEDGE_TOKEN = 1000;
+
+  /** 溜めておけるトークンの上限 */
+  static final long HEDGE_TOKEN_MAX = HEDGE_TOKEN * 10;
+
+  /** 投げ直しのためのトークン。読み込み毎に HEDGE_BUDGET% 分溜まる */
+  static final AtomicLong hedgeTokens = new AtomicLong();
+
   private long timeoutMilliSec;
   private AsyncMemcacheService asyncService;
 
@@ -33,6 +90,49 @@ public class MemcacheServiceWrapper implements MemcacheService {
     asyncService = MemcacheServiceFactory.getAsyncMemcacheService();
   }
 
+  /**
+   * @return 全インスタンスで共有している {@link CircuitBreaker}
+   */
+  public static CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  /**
+   * サーキットブレーカがOPENならRPCを行わないので、その数を記録する。
+   * @return RPCを行わない場合 true
+   */
+  static boolean bypass() {
+    if (breaker.allowRequest()) {
+      return false;
+    }
+    metrics.increment("memcache.bypass");
+    return true;
+  }
+
+  /**
+   * get/getAllのヒット数・ミス数を記録する。
+   * @param event {@link JfrEvents#beginLookup()} の返り値
+   */
+  static void recordLookup(Object event, String operation, int keys, int hits, boolean bypassed) {
+    if (!bypassed) {
+      metrics.add("memcache.lookup.hit", hits);
+      metrics.add("memcache.lookup.miss", keys - hits);
+    }
+    if (event != null) {
+      JfrEvents.commitLookup(event, operation, keys, hits, bypassed);
+    }
+  }
+
+  static double doubleProperty(String key, double defaultValue) {
+    String value = System.getProperty(key);
+    return value == null || "".equals(value) ? defaultValue : Double.parseDouble(value);
+  }
+
+  static long longProperty(String key, long defaultValue) {
+    String value = System.getProperty(key);
+    return value == null || "".equals(value) ? defaultValue : Long.parseLong(value);
+  }
+
   @Override
   public ErrorHandler getErrorHandler() {
     return asyncService.getErrorHandler();
@@ -55,47 +155,101 @@ public class MemcacheServiceWrapper implements MemcacheService {
 
   @Override
   public boolean contains(Object arg0) {
-    return getQuietly(asyncService.contains(arg0));
+    if (bypass()) {
+      return false;
+    }
+    Boolean result = getQuietly(asyncService.contains(arg0));
+    return result != null && result;
   }
 
+  // 削除とインクリメントは無効化なので、ブレーカとレイテンシに関係なく指定されたタイムアウトまで待つ
+
   @Override
   public boolean delete(Object arg0) {
-    return getQuietly(asyncService.delete(arg0));
+    Boolean result = getQuietly(asyncService.delete(arg0), timeoutMilliSec);
+    return result != null && result;
   }
 
   @Override
   public boolean delete(Object arg0, long arg1) {
-    return getQuietly(asyncService.delete(arg0, arg1));
+    Boolean result = getQuietly(asyncService.delete(arg0, arg1), timeoutMilliSec);
+    return result != null && result;
   }
 
   @Override
   public <T> Set<T> deleteAll(Collection<T> arg0) {
-    return getQuietly(asyncService.deleteAll(arg0));
+    return getQuietly(asyncService.deleteAll(arg0), timeoutMilliSec);
   }
 
   @Override
   public <T> Set<T> deleteAll(Collection<T> arg0, long arg1) {
-    return getQuietly(asyncService.deleteAll(arg0, arg1));
+    return getQuietly(asyncService.deleteAll(arg0, arg1), timeoutMilliSec);
   }
 
   @Override
-  public Object get(Object arg0) {
-    return getQuietly(asyncService.get(arg0));
+  public Object get(final Object arg0) {
+    Object event = JfrEvents.beginLookup();
+    if (bypass()) {
+      recordLookup(event, "get", 1, 0, true);
+      return null;
+    }
+    Object value =
+        getHedged(
+            asyncService.get(arg0),
+            new Callable<Future<Object>>() {
+              @Override
+              public Future<Object> call() {
+                return asyncService.get(arg0);
+              }
+            });
+    recordLookup(event, "get", 1, value != null ? 1 : 0, false);
+    return value;
   }
 
   @Override
-  public <T> Map<T, Object> getAll(Collection<T> arg0) {
-    return getQuietly(asyncService.getAll(arg0));
+  public <T> Map<T, Object> getAll(final Collection<T> arg0) {
+    Object event = JfrEvents.beginLookup();
+    if (bypass()) {
+      recordLookup(event, "getAll", arg0.size(), 0, true);
+      return new HashMap<T, Object>();
+    }
+    Map<T, Object> values =
+        getHedged(
+            asyncService.getAll(arg0),
+            new Callable<Future<Map<T, Object>>>() {
+              @Override
+              public Future<Map<T, Object>> call() {
+                return asyncService.getAll(arg0);
+              }
+            });
+    recordLookup(event, "getAll", arg0.size(), values == null ? 0 : values.size(), false);
+    return values;
   }
 
   @Override
   public IdentifiableValue getIdentifiable(Object arg0) {
+    if (bypass()) {
+      return null;
+    }
     return getQuietly(asyncService.getIdentifiable(arg0));
   }
 
   @Override
-  public <T> Map<T, IdentifiableValue> getIdentifiables(Collection<T> arg0) {
-    return getQuietly(asyncService.getIdentifiables(arg0));
+  public <T> Map<T, IdentifiableValue> getIdentifiables(final Collection<T> arg0) {
+    if (bypass()) {
+      return new HashMap<T, IdentifiableValue>();
+    }
+    Map<T, IdentifiableValue> values =
+        getHedged(
+            asyncService.getIdentifiables(arg0),
+            new Callable<Future<Map<T, IdentifiableValue>>>() {
+              @Override
+              public Future<Map<T, IdentifiableValue>> call() {
+                return asyncService.getIdentifiables(arg0);
+              }
+            });
+    recordLookup(null, "getIdentifiables", arg0.size(), values == null ? 0 : values.size(), false);
+    return values;
   }
 
   @Override
@@ -105,82 +259,115 @@ public class MemcacheServiceWrapper implements MemcacheService {
 
   @Override
   public Long increment(Object arg0, long arg1) {
-    return getQuietly(asyncService.increment(arg0, arg1));
+    return getQuietly(asyncService.increment(arg0, arg1), timeoutMilliSec);
   }
 
   @Override
   public Long increment(Object arg0, long arg1, Long arg2) {
-    return getQuietly(asyncService.increment(arg0, arg1, arg2));
+    return getQuietly(asyncService.increment(arg0, arg1, arg2), timeoutMilliSec);
   }
 
   @Override
   public <T> Map<T, Long> incrementAll(Map<T, Long> arg0) {
-    return getQuietly(asyncService.incrementAll(arg0));
+    return getQuietly(asyncService.incrementAll(arg0), timeoutMilliSec);
   }
 
   @Override
   public <T> Map<T, Long> incrementAll(Collection<T> arg0, long arg1) {
-    return getQuietly(asyncService.incrementAll(arg0, arg1));
+    return getQuietly(asyncService.incrementAll(arg0, arg1), timeoutMilliSec);
   }
 
   @Override
   public <T> Map<T, Long> incrementAll(Map<T, Long> arg0, Long arg1) {
-    return getQuietly(asyncService.incrementAll(arg0, arg1));
+    return getQuietly(asyncService.incrementAll(arg0, arg1), timeoutMilliSec);
   }
 
   @Override
   public <T> Map<T, Long> incrementAll(Collection<T> arg0, long arg1, Long arg2) {
-    return getQuietly(asyncService.incrementAll(arg0, arg1, arg2));
+    return getQuietly(asyncService.incrementAll(arg0, arg1, arg2), timeoutMilliSec);
   }
 
   @Override
   public void put(Object arg0, Object arg1) {
+    if (bypass()) {
+      return;
+    }
     getQuietly(asyncService.put(arg0, arg1));
   }
 
   @Override
   public void put(Object arg0, Object arg1, Expiration arg2) {
+    if (bypass()) {
+      return;
+    }
     getQuietly(asyncService.put(arg0, arg1, arg2));
   }
 
   @Override
   public boolean put(Object arg0, Object arg1, Expiration arg2, SetPolicy arg3) {
-    return getQuietly(asyncService.put(arg0, arg1, arg2, arg3), 0);
+    if (bypass()) {
+      return false;
+    }
+    Boolean result = getQuietly(asyncService.put(arg0, arg1, arg2, arg3));
+    return result != null && result;
   }
 
   @Override
   public void putAll(Map<?, ?> arg0) {
+    if (bypass()) {
+      return;
+    }
     getQuietly(asyncService.putAll(arg0));
   }
 
   @Override
   public void putAll(Map<?, ?> arg0, Expiration arg1) {
+    if (bypass()) {
+      return;
+    }
     getQuietly(asyncService.putAll(arg0, arg1));
   }
 
   @Override
   public <T> Set<T> putAll(Map<T, ?> arg0, Expiration arg1, SetPolicy arg2) {
-    return getQuietly(asyncService.putAll(arg0, arg1, arg2), 0);
+    if (bypass()) {
+      return new HashSet<T>();
+    }
+    return getQuietly(asyncService.putAll(arg0, arg1, arg2));
   }
 
   @Override
   public <T> Set<T> putIfUntouched(Map<T, CasValues> arg0) {
-    return getQuietly(asyncService.putIfUntouched(arg0), 0);
+    if (bypass()) {
+      return new HashSet<T>();
+    }
+    return getQuietly(asyncService.putIfUntouched(arg0));
   }
 
   @Override
   public <T> Set<T> putIfUntouched(Map<T, CasValues> arg0, Expiration arg1) {
-    return getQuietly(asyncService.putIfUntouched(arg0, arg1), 0);
+    if (bypass()) {
+      return new HashSet<T>();
+    }
+    return getQuietly(asyncService.putIfUntouched(arg0, arg1));
   }
 
   @Override
   public boolean putIfUntouched(Object arg0, IdentifiableValue arg1, Object arg2) {
-    return getQuietly(asyncService.putIfUntouched(arg0, arg1, arg2), 0);
+    if (bypass()) {
+      return false;
+    }
+    Boolean result = getQuietly(asyncService.putIfUntouched(arg0, arg1, arg2));
+    return result != null && result;
   }
 
   @Override
   public boolean putIfUntouched(Object arg0, IdentifiableValue arg1, Object arg2, Expiration arg3) {
-    return getQuietly(asyncService.putIfUntouched(arg0, arg1, arg2, arg3), 0);
+    if (bypass()) {
+      return false;
+    }
+    Boolean result = getQuietly(asyncService.putIfUntouched(arg0, arg1, arg2, arg3));
+    return result != null && result;
   }
 
   @Override
@@ -199,7 +386,162 @@ public class MemcacheServiceWrapper implements MemcacheService {
    * @return a value
    */
   private <T> T getQuietly(Future<T> future) {
-    return getQuietly(future, timeoutMilliSec);
+    return getQuietly(future, adaptiveTimeout());
+  }
+
+  /**
+   * 直近のレイテンシのパーセンタイルを元にしたタイムアウトを取得する。
+   * 指定されたタイムアウトを超えることはない。
+   * サーキットブレーカがHALF_OPENの間は、試しのRPCが短いタイムアウトで失敗し続けないよう、指定された値を返す。
+   * @return タイムアウトのミリ秒
+   */
+  long adaptiveTimeout() {
+    if (breaker.getState() == CircuitBreaker.State.HALF_OPEN) {
+      return timeoutMilliSec;
+    }
+    long nanos = latency.percentile(TIMEOUT_PERCENTILE);
+    if (nanos < 0 || timeoutMilliSec <= 0L) {
+      return timeoutMilliSec;
+    }
+    long millis = (long) Math.ceil(nanos * TIMEOUT_MULTIPLIER / 1000000.0);
+    return Math.min(timeoutMilliSec, Math.max(TIMEOUT_MIN, millis));
+  }
+
+  /**
+   * 読み込みの結果を取得する。一定時間内に返ってこなかった場合は、予算の範囲内で読み込みを投げ直し、
+   * 先に返ってきた方の結果を返す。<br>
+   * {@link Future} には完了を通知する手段がないので、投げ直した後は2つの {@link Future} を
+   * 投げ直すまで待った時間ずつ交互に待つ。待っている方が返れば直ちに、もう一方が返れば次に切り替えた時に気付く。
+   *
+   * @param <T>
+   *            the value type
+   * @param first
+   *            the future
+   * @param hedge
+   *            読み込みを投げ直す処理
+   * @return a value
+   */
+  private <T> T getHedged(Future<T> first, Callable<Future<T>> hedge) {
+    if (HEDGE_BUDGET <= 0) {
+      return getQuietly(first);
+    }
+    depositHedgeToken();
+    final long timeout = adaptiveTimeout();
+    final long delay = latency.percentile(HEDGE_PERCENTILE);
+    if (delay < 0 || timeout <= 0L || TimeUnit.NANOSECONDS.toMillis(delay) >= timeout) {
+      return getQuietly(first, timeout);
+    }
+
+    final long start = System.nanoTime();
+    try {
+      T value = first.get(delay, TimeUnit.NANOSECONDS);
+      recordSuccess(System.nanoTime() - start);
+      return value;
+    } catch (TimeoutException e) {
+      // fall through
+    } catch (Exception e) {
+      recordFailure();
+      logger.log(Level.WARNING, "future getに失敗しました。", e);
+      return null;
+    }
+    if (!withdrawHedgeToken()) {
+      long remaining = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      return getQuietly(first, Math.max(1L, remaining));
+    }
+
+    metrics.increment("memcache.hedge");
+    Future<T> second;
+    try {
+      second = hedge.call();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "hedged requestに失敗しました。", e);
+      long remaining = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      return getQuietly(first, Math.max(1L, remaining));
+    }
+    final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+    List<Future<T>> pending = new ArrayList<Future<T>>(2);
+    pending.add(second);
+    pending.add(first);
+    Exception failure = null;
+    int turn = 0;
+    while (!pending.isEmpty()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0L) {
+        break;
+      }
+      Future<T> future = pending.get(turn % pending.size());
+      for (Future<T> done : pending) {
+        if (done.isDone()) {
+          future = done;
+          break;
+        }
+      }
+      try {
+        T value = future.get(Math.min(delay, remaining), TimeUnit.NANOSECONDS);
+        recordSuccess(System.nanoTime() - start);
+        return value;
+      } catch (TimeoutException e) {
+        turn++;
+      } catch (Exception e) {
+        logger.log(Level.FINE, "future getに失敗しました。", e);
+        failure = e;
+        pending.remove(future);
+      }
+    }
+    if (pending.isEmpty()) {
+      recordFailure();
+      logger.log(Level.WARNING, "hedged requestが両方とも失敗しました。", failure);
+      return null;
+    }
+    recordTimeout(TimeUnit.MILLISECONDS.toNanos(timeout));
+    logger.warning("hedged requestがタイムアウトしました。");
+    return null;
+  }
+
+  static void recordSuccess(long nanos) {
+    latency.record(nanos);
+    metrics.record("memcache.rpc", nanos);
+    RpcTracer.recordMemcache(nanos);
+    breaker.onSuccess();
+  }
+
+  static void recordFailure() {
+    metrics.increment("memcache.failure");
+    breaker.onFailure();
+  }
+
+  /**
+   * タイムアウトを記録する。<br>
+   * タイムアウトの時間をレイテンシとして記録しないと、遅くなった時にパーセンタイルが上がらず、
+   * タイムアウトが短いまま失敗し続ける。
+   * @param nanos タイムアウトの時間
+   */
+  static void recordTimeout(long nanos) {
+    latency.record(nanos);
+    recordFailure();
+  }
+
+  static void depositHedgeToken() {
+    long deposit = (long) (HEDGE_TOKEN * HEDGE_BUDGET / 100);
+    while (true) {
+      long current = hedgeTokens.get();
+      long next = Math.min(HEDGE_TOKEN_MAX, current + deposit);
+      if (current == next || hedgeTokens.compareAndSet(current, next)) {
+        return;
+      }
+    }
+  }
+
+  static boolean withdrawHedgeToken() {
+    while (true) {
+      long current = hedgeTokens.get();
+      if (current < HEDGE_TOKEN) {
+        return false;
+      }
+      if (hedgeTokens.compareAndSet(current, current - HEDGE_TOKEN)) {
+        return true;
+      }
+    }
   }
 
   /**
@@ -216,9 +558,17 @@ public class MemcacheServiceWrapper implements MemcacheService {
     if (future == null) {
       throw new NullPointerException("The future parameter must not be null.");
     }
+    final long start = System.nanoTime();
     try {
-      return millisec > 0L ? future.get(millisec, TimeUnit.MILLISECONDS) : future.get();
+      T value = millisec > 0L ? future.get(millisec, TimeUnit.MILLISECONDS) : future.get();
+      recordSuccess(System.nanoTime() - start);
+      return value;
+    } catch (TimeoutException e) {
+      recordTimeout(TimeUnit.MILLISECONDS.toNanos(millisec));
+      logger.log(Level.WARNING, "future getがタイムアウトしました。", e);
+      return null;
     } catch (Exception e) {
+      recordFailure();
       logger.log(Level.WARNING, "future getに失敗しました。", e);
       return null;
     }
@@ -0,0 +1,29 @@
+package net.vvakame.memvache;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * {@link MemcacheServiceWrapper} のget/getAll毎のJFRイベント。
+ */
+@Name("net.vvakame.memvache.MemvacheCacheLookup")
+@Label("Memvache Cache Lookup")
+@Category("Memvache")
+@Description("Memcache get or getAll")
+class MemvacheCacheLookupEvent extends jdk.jfr.Event {
+
+  @Label("Operation")
+  String operation;
+
+  @Label("Keys")
+  int keys;
+
+  @Label("Hits")
+  int hits;
+
+  @Label("Bypassed")
+  @Description("Skipped because the circuit was open")
+  boolean bypassed;
+}
@@ -11,8 +11,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 
@@ -31,6 +34,8 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
 
   final ApiProxy.Delegate<Environment> parent;
 
+  final MemvacheMetrics metrics = MemvacheMetrics.get();
+
   /**
    * 各サービスごとに適用するストラテジーの設定
    */
@@ -42,6 +47,12 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
   ThreadLocal<Map<String, List<Strategy>>> localStrategies =
       new ThreadLocal<Map<String, List<Strategy>>>();
 
+  /**
+   * service, method 毎のメトリクスの保持先。全スレッドで共有する
+   */
+  final ConcurrentMap<String, ConcurrentMap<String, RpcMetrics>> rpcMetrics =
+      new ConcurrentHashMap<String, ConcurrentMap<String, RpcMetrics>>();
+
   /**
    * {@link MemvacheDelegate}を{@link ApiProxy}に設定する。
    * <p>
@@ -130,7 +141,20 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
       final String method,
       final byte[] requestBytes,
       ApiConfig config) {
-    return processAsyncCall(env, service, method, requestBytes, config, 0);
+    final RpcTrace trace = RpcTracer.start(service, method, requestBytes);
+    Future<byte[]> response =
+        processAsyncCall(env, service, method, requestBytes, config, 0, trace);
+    if (trace == null) {
+      return response;
+    }
+    return new SniffFuture<byte[]>(response) {
+
+      @Override
+      public byte[] processDate(byte[] data) {
+        RpcTracer.finish(trace, data);
+        return null;
+      }
+    };
   }
 
   Future<byte[]> processAsyncCall(
@@ -139,19 +163,45 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
       final String method,
       final byte[] requestBytes,
       ApiConfig config,
-      int depth) {
+      int depth,
+      final RpcTrace trace) {
 
     List<Strategy> strategies = getLocalStrategies(service);
 
     // 適用すべき戦略がなかったら実際のRPCを行う
     if (strategies == null || strategies.size() == depth) {
-      return getParent().makeAsyncCall(env, service, method, requestBytes, config);
+      final long start = System.nanoTime();
+      Future<byte[]> rpc = getParent().makeAsyncCall(env, service, method, requestBytes, config);
+      return new SniffFuture<byte[]>(rpc) {
+
+        @Override
+        public byte[] processDate(byte[] data) {
+          // 非同期の場合は結果が取得されるまでの時間になる
+          long nanos = System.nanoTime() - start;
+          RpcMetrics rpc = rpcMetrics(service, method);
+          rpc.asyncLatency.record(nanos);
+          if (trace != null) {
+            trace.parentNanos = nanos;
+          }
+          recordBytes(rpc, requestBytes, data);
+          return null;
+        }
+      };
     }
 
     final Strategy strategy = strategies.get(depth);
+    final HookMetrics hook = rpcMetrics(service, method).hooks[depth];
 
     // responseが生成されていたらそっちを結果として返す
-    final Pair<byte[], byte[]> pair = strategy.preProcess(service, method, requestBytes);
+    RpcTrace previous = RpcTracer.enter(trace);
+    long preStart = System.nanoTime();
+    final Pair<byte[], byte[]> pair;
+    try {
+      pair = strategy.preProcess(service, method, requestBytes);
+    } finally {
+      RpcTracer.exit(trace, previous);
+    }
+    recordPre(hook, strategy, pair, System.nanoTime() - preStart, trace);
     if (pair != null && pair.response != null) {
       return createFuture(pair.response);
     }
@@ -159,9 +209,9 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
     // 次の戦略を適用する。もしリクエストが改変されてたらそっちを渡す。
     Future<byte[]> response;
     if (pair != null && pair.request != null) {
-      response = processAsyncCall(env, service, method, pair.request, config, depth + 1);
+      response = processAsyncCall(env, service, method, pair.request, config, depth + 1, trace);
     } else {
-      response = processAsyncCall(env, service, method, requestBytes, config, depth + 1);
+      response = processAsyncCall(env, service, method, requestBytes, config, depth + 1, trace);
     }
 
     // responseが改変されてたらそっちを結果として返す
@@ -169,12 +219,19 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
 
       @Override
       public byte[] processDate(byte[] data) {
+        RpcTrace previous = RpcTracer.enter(trace);
+        long postStart = System.nanoTime();
         byte[] modified;
-        if (pair != null && pair.request != null) {
-          modified = strategy.postProcess(service, method, pair.request, data);
-        } else {
-          modified = strategy.postProcess(service, method, requestBytes, data);
+        try {
+          if (pair != null && pair.request != null) {
+            modified = strategy.postProcess(service, method, pair.request, data);
+          } else {
+            modified = strategy.postProcess(service, method, requestBytes, data);
+          }
+        } finally {
+          RpcTracer.exit(trace, previous);
         }
+        recordPost(hook, strategy, System.nanoTime() - postStart, trace);
 
         if (modified != null) {
           return modified;
@@ -189,23 +246,51 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
   public byte[] makeSyncCall(Environment env, String service, String method, byte[] requestBytes)
       throws ApiProxyException {
 
-    return processSyncCall(env, service, method, requestBytes, 0);
+    RpcTrace trace = RpcTracer.start(service, method, requestBytes);
+    byte[] response = processSyncCall(env, service, method, requestBytes, 0, trace);
+    if (trace != null) {
+      RpcTracer.finish(trace, response);
+    }
+    return response;
   }
 
   byte[] processSyncCall(
-      Environment env, String service, String method, byte[] requestBytes, int depth) {
+      Environment env,
+      String service,
+      String method,
+      byte[] requestBytes,
+      int depth,
+      RpcTrace trace) {
 
     List<Strategy> strategies = getLocalStrategies(service);
 
     // 適用すべき戦略がなかったら実際のRPCを行う
     if (strategies == null || strategies.size() == depth) {
-      return getParent().makeSyncCall(env, service, method, requestBytes);
+      long start = System.nanoTime();
+      byte[] response = getParent().makeSyncCall(env, service, method, requestBytes);
+      long nanos = System.nanoTime() - start;
+      RpcMetrics rpc = rpcMetrics(service, method);
+      rpc.latency.record(nanos);
+      if (trace != null) {
+        trace.parentNanos = nanos;
+      }
+      recordBytes(rpc, requestBytes, response);
+      return response;
     }
 
     Strategy strategy = strategies.get(depth);
+    HookMetrics hook = rpcMetrics(service, method).hooks[depth];
 
     // responseが生成されていたらそっちを結果として返す
-    Pair<byte[], byte[]> pair = strategy.preProcess(service, method, requestBytes);
+    RpcTrace previous = RpcTracer.enter(trace);
+    long preStart = System.nanoTime();
+    Pair<byte[], byte[]> pair;
+    try {
+      pair = strategy.preProcess(service, method, requestBytes);
+    } finally {
+      RpcTracer.exit(trace, previous);
+    }
+    recordPre(hook, strategy, pair, System.nanoTime() - preStart, trace);
     if (pair != null && pair.response != null) {
       return pair.response;
     }
@@ -213,10 +298,18 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
     // 次の戦略を適用する。もしリクエストが改変されてたらそっちを渡す。
     byte[] response;
     byte[] processedRequest = (pair != null && pair.request != null) ? pair.request : requestBytes;
-    response = processSyncCall(env, service, method, processedRequest, depth + 1);
+    response = processSyncCall(env, service, method, processedRequest, depth + 1, trace);
 
     // responseが改変されてたらそっちを結果として返す
-    byte[] modified = strategy.postProcess(service, method, processedRequest, response);
+    previous = RpcTracer.enter(trace);
+    long postStart = System.nanoTime();
+    byte[] modified;
+    try {
+      modified = strategy.postProcess(service, method, processedRequest, response);
+    } finally {
+      RpcTracer.exit(trace, previous);
+    }
+    recordPost(hook, strategy, System.nanoTime() - postStart, trace);
     if (modified != null) {
       return modified;
     } else {
@@ -224,6 +317,75 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
     }
   }
 
+  /**
+   * preProcessのレイテンシと結果(hit: レスポンスを生成, rewrite: リクエストを改変, pass: 素通し)を記録する。
+   */
+  void recordPre(
+      HookMetrics hook, Strategy strategy, Pair<byte[], byte[]> pair, long nanos, RpcTrace trace) {
+    hook.pre.record(nanos);
+    String outcome;
+    if (pair != null && pair.response != null) {
+      outcome = "hit";
+      hook.hit.increment();
+    } else if (pair != null && pair.request != null) {
+      outcome = "rewrite";
+      hook.rewrite.increment();
+    } else {
+      outcome = "pass";
+      hook.pass.increment();
+    }
+    if (trace != null) {
+      trace.addStep(strategy, true, nanos, outcome);
+      if (pair != null && pair.response != null) {
+        trace.servedBy = strategy.getClass().getSimpleName();
+      }
+    }
+  }
+
+  void recordPost(HookMetrics hook, Strategy strategy, long nanos, RpcTrace trace) {
+    hook.post.record(nanos);
+    if (trace != null) {
+      trace.addStep(strategy, false, nanos, "post");
+    }
+  }
+
+  void recordBytes(RpcMetrics rpc, byte[] request, byte[] response) {
+    long bytes = (request == null ? 0 : request.length) + (response == null ? 0 : response.length);
+    rpc.bytes.add(bytes);
+  }
+
+  /**
+   * service, method のメトリクスの保持先を取得する。無ければ作成する。
+   */
+  RpcMetrics rpcMetrics(String service, String method) {
+    ConcurrentMap<String, RpcMetrics> methods = rpcMetrics.get(service);
+    if (methods == null) {
+      ConcurrentMap<String, RpcMetrics> newMethods = new ConcurrentHashMap<String, RpcMetrics>();
+      methods = rpcMetrics.putIfAbsent(service, newMethods);
+      if (methods == null) {
+        methods = newMethods;
+      }
+    }
+    RpcMetrics rpc = methods.get(method);
+    if (rpc == null) {
+      RpcMetrics newRpc = new RpcMetrics(metrics, service, method, strategyConfig.get(service));
+      rpc = methods.putIfAbsent(method, newRpc);
+      if (rpc == null) {
+        rpc = newRpc;
+      }
+    }
+    return rpc;
+  }
+
+  static String metricName(String type, String service, String method) {
+    return type + "." + service + "." + method;
+  }
+
+  static String metricName(
+      String type, String service, String method, Class<? extends Strategy> strategy) {
+    return type + "." + service + "." + method + "." + strategy.getSimpleName();
+  }
+
   /**
    * Namespaceがセット済みの {@link MemcacheService} を取得する。
    * ※NamespaceがセットされていないMemcacheServiceWrapperを返すように変更。(タイムアウト設定のため)
@@ -311,4 +473,63 @@ public class MemvacheDelegate implements ApiProxy.Delegate<Environment> {
   public ApiProxy.Delegate<Environment> getParent() {
     return parent;
   }
+
+  /**
+   * service, method 毎のメトリクス。<br>
+   * RPC毎に名前の文字列を作って探さずに済むよう、最初の呼び出しで名前を決めて保持する。
+   */
+  static class RpcMetrics {
+
+    final Histogram latency;
+
+    final Histogram asyncLatency;
+
+    final LongAdder bytes;
+
+    /** Strategyの適用順に並ぶ */
+    final HookMetrics[] hooks;
+
+    RpcMetrics(
+        MemvacheMetrics metrics,
+        String service,
+        String method,
+        List<Class<? extends Strategy>> strategies) {
+      latency = metrics.histogram(metricName("rpc", service, method));
+      asyncLatency = metrics.histogram(metricName("rpc.async", service, method));
+      bytes = metrics.counter(metricName("rpc.bytes", service, method));
+      int size = strategies == null ? 0 : strategies.size();
+      hooks = new HookMetrics[size];
+      for (int i = 0; i < size; i++) {
+        hooks[i] = new HookMetrics(metrics, service, method, strategies.get(i));
+      }
+    }
+  }
+
+  /**
+   * Strategyの前処理・後処理のメトリクス。
+   */
+  static class HookMetrics {
+
+    final Histogram pre;
+
+    final Histogram post;
+
+    final LongAdder hit;
+
+    final LongAdder rewrite;
+
+    final LongAdder pass;
+
+    HookMetrics(
+        MemvacheMetrics metrics,
+        String service,
+        String method,
+        Class<? extends Strategy> strategy) {
+      pre = metrics.histogram(metricName("hook.pre", service, method, strategy));
+      post = metrics.histogram(metricName("hook.post", service, method, strategy));
+      hit = metrics.counter(metricName("hook.hit", service, method, strategy));
+      rewrite = metrics.counter(metricName("hook.rewrite", service, method, strategy));
+      pass = metrics.counter(metricName("hook.pass", service, method, strategy));
+    }
+  }
 }
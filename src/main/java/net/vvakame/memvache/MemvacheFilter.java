@@ -1,6 +1,9 @@
 package net.vvakame.memvache;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -10,7 +13,9 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 
 /**
- * {@link MemvacheDelegate} を適用するための {@link Filter}。
+ * {@link MemvacheDelegate} を適用するための {@link Filter}。<br>
+ * システムプロパティ memvache.record.file が指定されている場合は、 {@link RpcRecorder} で
+ * そのファイルにRPCを追記する。
  * @author vvakame
  */
 public class MemvacheFilter implements Filter {
@@ -19,6 +24,8 @@ public class MemvacheFilter implements Filter {
 
   MemvacheDelegate delegate;
 
+  RpcRecorder recorder;
+
   @Override
   public void init(FilterConfig filterConfig) {
 
@@ -29,6 +36,16 @@ public class MemvacheFilter implements Filter {
                 .addStrategy(MemvacheDelegate.DATASTORE_V3, QueryKeysOnlyStrategy.class)
                 .addStrategy(MemvacheDelegate.DATASTORE_V3, GetPutCacheStrategy.class)
                 .buid());
+
+    String recordFile = System.getProperty("memvache.record.file");
+    if (recordFile != null && !"".equals(recordFile)) {
+      try {
+        recorder =
+            RpcRecorder.install(new BufferedOutputStream(new FileOutputStream(recordFile, true)));
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "failed to open " + recordFile, e);
+      }
+    }
   }
 
   @Override
@@ -38,7 +55,18 @@ public class MemvacheFilter implements Filter {
     // ストラテジーの初期化
     delegate.initStrategies();
 
-    chain.doFilter(request, response);
+    RpcTracer.beginRequest();
+    if (recorder != null) {
+      recorder.beginRequest();
+    }
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      if (recorder != null) {
+        recorder.endRequest();
+      }
+      RpcTracer.endRequest();
+    }
   }
 
   protected void preProcess(MemvacheDelegate delegate) {}
@@ -0,0 +1,27 @@
+package net.vvakame.memvache;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Kindのリセットやカウンタのインクリメント毎のJFRイベント。
+ */
+@Name("net.vvakame.memvache.MemvacheInvalidation")
+@Label("Memvache Invalidation")
+@Category("Memvache")
+@Description("Kind reset or counter bump")
+class MemvacheInvalidationEvent extends jdk.jfr.Event {
+
+  @Label("Type")
+  @Description("counter, generation or resetDate")
+  String type;
+
+  @Label("Key")
+  String key;
+
+  @Label("Value")
+  @Description("Counter value after the bump, time of the reset, or -1")
+  long value;
+}
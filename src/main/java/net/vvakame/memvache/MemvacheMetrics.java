@@ -0,0 +1,215 @@
+package net.vvakame.memvache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Memvacheの統計情報を集めるクラス。<br>
+ * カウンタは {@link LongAdder}、レイテンシは {@link Histogram} に記録するので、
+ * 複数スレッドから呼ばれてもロックの競合は起きない。<br>
+ * JMX(net.vvakame.memvache:type=Metrics) と {@link MetricsServlet} から参照できる。
+ * <p>
+ * 名前は "種類.サービス.メソッド.詳細" の形で、例えば以下のようなものを記録する。
+ * <ul>
+ * <li>hook.pre.datastore_v3.Get.GetPutCacheStrategy : preProcessのレイテンシ(ns)</li>
+ * <li>hook.hit.datastore_v3.Get.GetPutCacheStrategy : preProcessがレスポンスを返した数</li>
+ * <li>rpc.datastore_v3.Get : 実際のRPCのレイテンシ(ns)</li>
+ * <li>rpc.bytes.datastore_v3.Get : 実際のRPCで送受信したバイト数</li>
+ * <li>entity.hit.Kind, query.miss.Kind : Kind毎のキャッシュのヒット数・ミス数</li>
+ * <li>memcache.rpc, memcache.bypass : MemcacheのRPCのレイテンシ(ns), 回路が開いていて行わなかった数</li>
+ * </ul>
+ * </p>
+ */
+public class MemvacheMetrics implements MemvacheMetricsMXBean {
+
+  static final Logger logger = Logger.getLogger(MemvacheMetrics.class.getName());
+
+  public static final String OBJECT_NAME = "net.vvakame.memvache:type=Metrics";
+
+  static final MemvacheMetrics instance = new MemvacheMetrics();
+
+  static {
+    instance.registerMBean();
+  }
+
+  final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+
+  final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+  /**
+   * @return インスタンス
+   */
+  public static MemvacheMetrics get() {
+    return instance;
+  }
+
+  MemvacheMetrics() {}
+
+  void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (Throwable e) {
+      // JMXが使えない環境(GAEのサンドボックス等)では登録しない
+      logger.log(Level.FINE, "cannot register MBean", e);
+    }
+  }
+
+  /**
+   * カウンタを1増やす。
+   * @param name
+   */
+  public void increment(String name) {
+    counter(name).increment();
+  }
+
+  /**
+   * カウンタを増やす。
+   * @param name
+   * @param delta
+   */
+  public void add(String name, long delta) {
+    counter(name).add(delta);
+  }
+
+  /**
+   * ヒストグラムに値を記録する。
+   * @param name
+   * @param value
+   */
+  public void record(String name, long value) {
+    histogram(name).record(value);
+  }
+
+  /**
+   * @param name
+   * @return カウンタ
+   */
+  public LongAdder counter(String name) {
+    LongAdder counter = counters.get(name);
+    if (counter == null) {
+      LongAdder newCounter = new LongAdder();
+      counter = counters.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * 名前が prefix + Kind のカウンタを、Kind毎に取得するための {@link KindCounters} を作成する。<br>
+   * RPC毎に名前の文字列を作らずに済むよう、Strategyはこれを保持して使う。
+   * @param prefix "entity.hit." など
+   * @return {@link KindCounters}
+   */
+  public KindCounters kindCounters(String prefix) {
+    return new KindCounters(this, prefix);
+  }
+
+  /**
+   * @param name
+   * @return ヒストグラム
+   */
+  public Histogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * @param name
+   * @return カウンタの値。記録がない場合は 0
+   */
+  public long getCount(String name) {
+    LongAdder counter = counters.get(name);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> map = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+      map.put(entry.getKey(), entry.getValue().sum());
+    }
+    return map;
+  }
+
+  @Override
+  public Map<String, Long> getHistograms() {
+    Map<String, Long> map = new TreeMap<String, Long>();
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      String name = entry.getKey();
+      Histogram histogram = entry.getValue();
+      long count = histogram.getCount();
+      map.put(name + ".count", count);
+      map.put(name + ".mean", count == 0 ? 0 : histogram.getSum() / count);
+      map.put(name + ".p50", histogram.getPercentile(0.5));
+      map.put(name + ".p99", histogram.getPercentile(0.99));
+      map.put(name + ".max", histogram.getPercentile(1.0));
+    }
+    return map;
+  }
+
+  /**
+   * {@inheritDoc}<br>
+   * カウンタとヒストグラムは取り除かずに 0 に戻すので、 {@link KindCounters} や
+   * {@link MemvacheDelegate} が保持しているものも使い続けられる。
+   */
+  @Override
+  public void reset() {
+    for (LongAdder counter : counters.values()) {
+      counter.reset();
+    }
+    for (Histogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Kind毎のカウンタを保持するクラス。
+   */
+  public static class KindCounters {
+
+    final MemvacheMetrics metrics;
+
+    final String prefix;
+
+    final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+
+    KindCounters(MemvacheMetrics metrics, String prefix) {
+      this.metrics = metrics;
+      this.prefix = prefix;
+    }
+
+    /**
+     * @param kind
+     * @return Kindのカウンタ
+     */
+    public LongAdder get(String kind) {
+      LongAdder counter = counters.get(kind);
+      if (counter == null) {
+        counter = metrics.counter(prefix + kind);
+        counters.putIfAbsent(kind, counter);
+      }
+      return counter;
+    }
+  }
+}
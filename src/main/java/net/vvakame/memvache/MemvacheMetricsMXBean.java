@@ -0,0 +1,24 @@
+package net.vvakame.memvache;
+
+import java.util.Map;
+
+/**
+ * JMXから {@link MemvacheMetrics} を参照するためのインターフェース。
+ */
+public interface MemvacheMetricsMXBean {
+
+  /**
+   * @return カウンタの名前と値
+   */
+  Map<String, Long> getCounters();
+
+  /**
+   * @return ヒストグラムの名前に .count .mean .p50 .p99 .max を付けたものと値
+   */
+  Map<String, Long> getHistograms();
+
+  /**
+   * 全ての記録をクリアする。
+   */
+  void reset();
+}
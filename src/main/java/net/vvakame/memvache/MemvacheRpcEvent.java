@@ -0,0 +1,54 @@
+package net.vvakame.memvache;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * {@link MemvacheDelegate} を通過したRPC毎のJFRイベント。
+ */
+@Name("net.vvakame.memvache.MemvacheRpc")
+@Label("Memvache RPC")
+@Category("Memvache")
+@Description("RPC intercepted by MemvacheDelegate")
+class MemvacheRpcEvent extends jdk.jfr.Event {
+
+  @Label("Service")
+  String service;
+
+  @Label("Method")
+  String method;
+
+  @Label("Source")
+  @Description("datastore, memcache or request")
+  String source;
+
+  @Label("Served By")
+  @Description("Strategy which made the response")
+  String servedBy;
+
+  @Label("Decisions")
+  @Description("Outcome of each strategy")
+  String decisions;
+
+  @Label("Depth")
+  int depth;
+
+  @Label("Request Bytes")
+  @DataAmount
+  long requestBytes;
+
+  @Label("Response Bytes")
+  @DataAmount
+  long responseBytes;
+
+  @Label("Parent RPC")
+  @Timespan
+  long parentNanos;
+
+  @Label("Memcache Calls")
+  int memcacheCalls;
+}
@@ -0,0 +1,51 @@
+package net.vvakame.memvache;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * {@link MemvacheMetrics} の内容を "名前 値" のテキストで返す {@link HttpServlet}。<br>
+ * traces パラメータを付けると {@link RpcTracer} が記録した直近のRPCも返す。
+ * reset パラメータを付けてPOSTすると記録をクリアする。
+ * 管理者のみアクセスできるように web.xml の security-constraint で保護すること。
+ */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    MemvacheMetrics metrics = MemvacheMetrics.get();
+    resp.setContentType("text/plain");
+    resp.setCharacterEncoding("UTF-8");
+    PrintWriter writer = resp.getWriter();
+    write(writer, metrics.getCounters());
+    write(writer, metrics.getHistograms());
+    if (req.getParameter("traces") != null) {
+      for (RpcTrace trace : RpcTracer.getRecent()) {
+        writer.println(trace);
+      }
+    }
+    writer.flush();
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (req.getParameter("reset") != null) {
+      MemvacheMetrics.get().reset();
+    }
+    doGet(req, resp);
+  }
+
+  void write(PrintWriter writer, Map<String, Long> map) {
+    for (Map.Entry<String, Long> entry : map.entrySet()) {
+      writer.print(entry.getKey());
+      writer.print(' ');
+      writer.println(entry.getValue());
+    }
+  }
+}
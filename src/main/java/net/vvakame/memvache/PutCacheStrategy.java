@@ -1,6 +1,5 @@
 package net.vvakame.memvache;
 
-import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.apphosting.api.DatastorePb.CommitResponse;
 import com.google.apphosting.api.DatastorePb.DeleteRequest;
@@ -40,7 +39,10 @@ public class PutCacheStrategy extends RpcVisitor {
     return PRIORITY;
   }
 
-  Map<Long, Map<Key, Entity>> putUnderTx = new HashMap<Long, Map<Key, Entity>>();
+  Map<Long, Map<Object, Entity>> putUnderTx = new HashMap<Long, Map<Object, Entity>>();
+
+  /** MemcacheのKeyの作成用 */
+  final EntityKeyEncoder encoder = new EntityKeyEncoder();
 
   /**
    * Getを行った後の動作として、Memcacheにキャッシュを作成する。
@@ -55,25 +57,18 @@ public class PutCacheStrategy extends RpcVisitor {
     }
 
     // Memcacheに蓄える
-    Map<Key, Entity> newMap = new HashMap<Key, Entity>();
+    Map<Object, Entity> newMap = new HashMap<Object, Entity>();
     // List<Reference> keys = requestPb.keys();
     List<Entity> entitys = responsePb.entitys();
 
     for (int i = 0; i < entitys.size(); i++) {
       // Key key = PbKeyUtil.toKey(keys.get(i));
       Entity entity = entitys.get(i);
-      Key key = null;
-      try {
-        key = PbKeyUtil.toKey(entity.getEntity().getKey());
-      } catch (Exception e) {
-        try {
-          key = PbKeyUtil.toKey(entity.getKey());
-        } catch (Exception e2) {
-          logger.severe("Keyの取得に失敗しました。" + entity.toString());
-        }
-      }
-      if (key != null) {
-        newMap.put(key, entity);
+      Reference reference = EntityKeyEncoder.referenceOf(entity);
+      if (reference == null) {
+        logger.severe("Keyの取得に失敗しました。" + entity.toString());
+      } else {
+        encoder.putWriteKeys(newMap, reference, entity);
       }
     }
     MemcacheService memcache = MemvacheDelegate.getMemcache();
@@ -92,35 +87,34 @@ public class PutCacheStrategy extends RpcVisitor {
     if (tx.hasApp()) {
       // Tx下の場合はDatastoreに反映されるまで、ローカル変数に結果を保持しておく。
       final long handle = tx.getHandle();
-      Map<Key, Entity> newMap = extractCache(requestPb, responsePb);
+      Map<Object, Entity> newMap = extractCache(requestPb, responsePb);
       if (putUnderTx.containsKey(handle)) {
-        Map<Key, Entity> cached = putUnderTx.get(handle);
+        Map<Object, Entity> cached = putUnderTx.get(handle);
         cached.putAll(newMap);
       } else {
         putUnderTx.put(handle, newMap);
       }
     } else {
       MemcacheService memcache = MemvacheDelegate.getMemcache();
-      Map<Key, Entity> newMap = extractCache(requestPb, responsePb);
+      Map<Object, Entity> newMap = extractCache(requestPb, responsePb);
       memcache.putAll(newMap);
       logger.fine("put entity to memcache: size=" + newMap.size());
     }
     return null;
   }
 
-  private Map<Key, Entity> extractCache(PutRequest requestPb, PutResponse responsePb) {
-    Map<Key, Entity> newMap = new HashMap<Key, Entity>();
+  private Map<Object, Entity> extractCache(PutRequest requestPb, PutResponse responsePb) {
+    Map<Object, Entity> newMap = new HashMap<Object, Entity>();
     int size = requestPb.entitySize();
     List<EntityProto> entitys = requestPb.entitys();
     for (int i = 0; i < size; i++) {
       EntityProto proto = entitys.get(i);
       Reference reference = responsePb.getKey(i);
-      Key key = PbKeyUtil.toKey(reference);
       proto.setKey(reference);
       Entity entity = new Entity();
       entity.setEntity(proto);
       entity.setKey(reference);
-      newMap.put(key, entity);
+      encoder.putWriteKeys(newMap, reference, entity);
     }
     return newMap;
   }
@@ -130,7 +124,7 @@ public class PutCacheStrategy extends RpcVisitor {
    */
   @Override
   public Pair<byte[], byte[]> pre_datastore_v3_Delete(DeleteRequest requestPb) {
-    List<Key> keys = PbKeyUtil.toKeys(requestPb.keys());
+    List<Object> keys = encoder.writeKeys(requestPb.keys());
     MemcacheService memcache = MemvacheDelegate.getMemcache();
     memcache.deleteAll(keys);
 
@@ -144,7 +138,7 @@ public class PutCacheStrategy extends RpcVisitor {
   public byte[] post_datastore_v3_Commit(Transaction requestPb, CommitResponse responsePb) {
     final long handle = requestPb.getHandle();
     if (putUnderTx.containsKey(handle)) {
-      Map<Key, Entity> map = putUnderTx.get(handle);
+      Map<Object, Entity> map = putUnderTx.get(handle);
       MemvacheDelegate.getMemcache().putAll(map);
       return null;
     } else {
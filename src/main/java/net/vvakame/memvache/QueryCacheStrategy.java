@@ -1,6 +1,7 @@
 package net.vvakame.memvache;
 
 import com.google.apphosting.api.DatastorePb.DeleteRequest;
+import com.google.apphosting.api.DatastorePb.NextRequest;
 import com.google.apphosting.api.DatastorePb.PutRequest;
 import com.google.apphosting.api.DatastorePb.Query;
 import com.google.apphosting.api.DatastorePb.QueryResult;
@@ -22,6 +23,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import jp.honestyworks.pbcache.CacheContext;
 import jp.honestyworks.pbcache.CacheService;
+import jp.honestyworks.pbcache.Fingerprint;
 import jp.honestyworks.pbcache.QueryCache;
 
 /**
@@ -41,6 +43,15 @@ public class QueryCacheStrategy extends RpcVisitor {
 
   static final Settings settings = Settings.getInstance();
 
+  /** 最後まで読まれたQueryの結果件数の記録用 */
+  final QueryShape.ResultTracker resultTracker = new QueryShape.ResultTracker();
+
+  /** 前処理で求めたQueryの形。後処理で求め直さないようにするため */
+  final Map<Query, QueryShape> shapes = new HashMap<Query, QueryShape>();
+
+  /** preでキャッシュを引いた(Kindの世代を読んだ)Query。これ以外の結果はキャッシュしない */
+  final Set<Query> lookedUpQueries = new HashSet<Query>();
+
   /**
    * RunQueryが行われた時の前処理として、キャッシュがあればそれを返す。
    * @param requestPb RunQueryのQueryそのもの
@@ -53,27 +64,55 @@ public class QueryCacheStrategy extends RpcVisitor {
       return null;
     }
 
-    // datastore_v3#Next を回避するためにprefetchSizeが設定されていない場合大きめに設定する。
+    // datastore_v3#Next を回避するためにprefetchSizeが設定されていない場合、
+    // 同じ形のQueryのこれまでの結果件数を殆ど覆う数を設定する。記録が足りない間はそのまま。
     logger.finest("prefetchSize: " + requestPb.getCount());
-    /*
+    boolean rewrited = false;
+    QueryShape shape = QueryShape.of(requestPb);
     if (requestPb.getCount() == 0) {
-    	requestPb.setCount(1000);
+      int count = shape.prefetchCount(requestPb, 0);
+      if (count > 0) {
+        requestPb.setCount(count);
+        rewrited = true;
+      }
+    }
+    shapes.put(requestPb, shape);
+    final KindController controller = KindController.get();
+    if (controller.mode(requestPb.getKind()) != KindController.Mode.FULL) {
+      return rewrited ? Pair.request(requestPb.toByteArray()) : null;
     }
-    */
 
     // from cache
-    byte[] response = getQueryCache().getQuery(requestPb.getKind(), requestPb.toByteArray());
+    byte[] requestByte = requestPb.toByteArray();
+    byte[] response = getQueryCache().getQuery(requestPb.getKind(), requestByte);
+    controller.queryLookup(requestPb.getKind(), response != null);
     if (response != null) {
+      shapes.remove(requestPb);
       return Pair.response(response);
     }
+    lookedUpQueries.add(requestPb);
+
+    // 書き込みで無効になる前の結果があれば返し、裏で1つだけやり直す
+    Integer staleSecond = settings.getStaleSeconds().get(requestPb.getKind());
+    if (staleSecond != null
+        && StaleWhileRevalidate.isEnabled()
+        && !StaleWhileRevalidate.isRefreshing()) {
+      byte[] stale = getQueryCache().getStaleQuery(requestPb.getKind(), requestByte);
+      if (stale != null) {
+        StaleWhileRevalidate.refresh(Fingerprint.toHex(requestByte), requestByte);
+        lookedUpQueries.remove(requestPb);
+        shapes.remove(requestPb);
+        return Pair.response(stale);
+      }
+    }
 
     // Api継続
-    // return Pair.request(requestPb.toByteArray());
-    return null;
+    return rewrited ? Pair.request(requestByte) : null;
   }
 
   /**
-   * RunQueryが行われた時の後処理として、キャッシュを作成する。
+   * RunQueryが行われた時の後処理として、キャッシュを作成する。<br>
+   * キャッシュするのは、前処理でキャッシュを引いて実行前のKindの世代を読んだQueryの結果だけ。
    * @param requestPb RunQueryのQueryそのもの
    * @param responsePb RunQueryのQueryResultそのもの
    * @return 常に null
@@ -84,6 +123,18 @@ public class QueryCacheStrategy extends RpcVisitor {
     if (isIgnoreKind(requestPb.getKind())) {
       return null;
     }
+    QueryShape shape = shapes.remove(requestPb);
+    resultTracker.runQuery(shape != null ? shape : QueryShape.of(requestPb), responsePb);
+    // preの後でFULLに切り替わった場合、実行前の世代が分からないのでキャッシュしない
+    boolean lookedUp = lookedUpQueries.remove(requestPb);
+    final KindController controller = KindController.get();
+    if (controller.mode(requestPb.getKind()) != KindController.Mode.FULL) {
+      return null;
+    }
+    controller.result(requestPb.getKind(), responsePb.resultSize());
+    if (!lookedUp) {
+      return null;
+    }
 
     logger.finest("QueryResult:hasMoreResults:" + responsePb.hasMoreResults());
     logger.finest("QueryResult:isMoreResults:" + responsePb.isMoreResults());
@@ -99,6 +150,18 @@ public class QueryCacheStrategy extends RpcVisitor {
     return null;
   }
 
+  /**
+   * Nextが行われた時の後処理として、Queryが最後まで読まれたら結果件数を記録する。
+   * @param requestPb
+   * @param responsePb
+   * @return 常に null
+   */
+  @Override
+  public byte[] post_datastore_v3_Next(NextRequest requestPb, QueryResult responsePb) {
+    resultTracker.next(requestPb, responsePb);
+    return null;
+  }
+
   /**
    * DatastoreにPutされたKindについて、Queryのキャッシュを参照不可にする。
    * @param requestPb
@@ -140,7 +203,13 @@ public class QueryCacheStrategy extends RpcVisitor {
     }
     for (String kind : buf.keySet()) {
       logger.fine("remove queryCache: " + kind);
-      getQueryCache().removeQueries(kind);
+      Integer staleSecond = settings.getStaleSeconds().get(kind);
+      if (staleSecond != null && StaleWhileRevalidate.isEnabled()) {
+        // 無効にした結果を、この書き込みから staleSecond 秒の間は古い結果として返せるようにする
+        getQueryCache().removeQueries(kind, staleSecond);
+      } else {
+        getQueryCache().removeQueries(kind);
+      }
     }
     return;
   }
@@ -232,7 +301,11 @@ public class QueryCacheStrategy extends RpcVisitor {
     /** ResetDateを更新しないKindの一覧 */
     Set<String> resetIgnoreKinds = new HashSet<String>();
 
-    static Settings singleton;
+    /** 書き込みで無効になった結果を返しても良い秒数, Kind毎 */
+    Map<String, Integer> staleSeconds = new HashMap<String, Integer>();
+
+    /** クラスの初期化時に作成するので、複数スレッドから同時に呼ばれても1つしか作られない */
+    static final Settings singleton = new Settings();
 
     /**
      * インスタンスを取得する。
@@ -240,9 +313,6 @@ public class QueryCacheStrategy extends RpcVisitor {
      * @author vvakame
      */
     public static Settings getInstance() {
-      if (singleton == null) {
-        singleton = new Settings();
-      }
       return singleton;
     }
 
@@ -278,6 +348,8 @@ public class QueryCacheStrategy extends RpcVisitor {
         resetIgnoreKinds.add("_ah_SESSION");
         resetIgnoreKinds.add(CacheService.RESET_DATE_KIND);
 
+        staleSeconds = StaleWhileRevalidate.parse(properties.getProperty("staleKind"));
+
       } catch (IOException e) {
         logger.log(Level.SEVERE, "cannot load memvache.properties", e);
       }
@@ -322,5 +394,21 @@ public class QueryCacheStrategy extends RpcVisitor {
     public void setResetIgnoreKinds(Set<String> resetIgnoreKinds) {
       this.resetIgnoreKinds = resetIgnoreKinds;
     }
+
+    /**
+     * @return the staleSeconds
+     * @category accessor
+     */
+    public Map<String, Integer> getStaleSeconds() {
+      return staleSeconds;
+    }
+
+    /**
+     * @param staleSeconds the staleSeconds to set
+     * @category accessor
+     */
+    public void setStaleSeconds(Map<String, Integer> staleSeconds) {
+      this.staleSeconds = staleSeconds;
+    }
   }
 }
@@ -13,13 +13,16 @@ import com.google.apphosting.api.DatastorePb.QueryResult;
 import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
 import com.google.storage.onestore.v3.OnestoreEntity.Reference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * "Datastore への Query をKeysOnlyに差し替え" を実装するクラス。<br>
- * Datastore への Query をKeysOnlyに書き換え、取れたKeyに対してMemcacheに照会を実施し不足分についてBatchGetを行う戦略を実装する。
+ * Datastore への Query をKeysOnlyに書き換え、取れたKeyに対してMemcacheに照会を実施し不足分についてBatchGetを行う戦略を実装する。<br>
+ * Memcacheから補填できない形のQueryはBatchGetが増えるだけなので、 {@link QueryShape} 毎に補填できた割合を学習し、
+ * 割合が閾値を下回る形は書き換えない。
  * @author vvakame
  */
 public class QueryKeysOnlyStrategy extends RpcVisitor {
@@ -31,10 +34,25 @@ public class QueryKeysOnlyStrategy extends RpcVisitor {
     return PRIORITY;
   }
 
-  List<Query> rewritedQuery = new ArrayList<Query>();
+  /** 書き換える為に必要なMemcacheから補填できるEntityの割合 */
+  static final double MIN_HIT_RATE =
+      MemcacheServiceWrapper.doubleProperty("memvache.keysonly.minHitRate", 0.5);
+
+  /** 学習が済むまでは必ず書き換える回数 */
+  static final long MIN_EXECUTIONS = 4;
+
+  /** 書き換えない形でも、学習し直すために書き換える間隔 */
+  static final long PROBE_INTERVAL =
+      MemcacheServiceWrapper.longProperty("memvache.keysonly.probe", 16);
+
+  /** KeysOnlyに書き換えたQueryと、その形 */
+  final Map<Query, QueryShape> rewritedQueries = new HashMap<Query, QueryShape>();
 
   List<Cursor> rewritedCursor = new ArrayList<Cursor>();
 
+  /** MemcacheのKeyの作成用 */
+  final EntityKeyEncoder encoder = new EntityKeyEncoder();
+
   /**
    * DatastoreのQueryについて、KeysOnlyがfalseの場合はtrueに書き換える。
    */
@@ -51,14 +69,42 @@ public class QueryKeysOnlyStrategy extends RpcVisitor {
     if (requestPb.getKind().startsWith("__")) {
       return null;
     }
+    if (KindController.get().mode(requestPb.getKind()) == KindController.Mode.BYPASS) {
+      logger.fine("entity cache is bypassed: " + requestPb.getKind());
+      return null;
+    }
+    if (requestPb.propertyNameSize() != 0) {
+      // Projectionの結果はインデックスから作られるので、書き換えても得るものがない
+      return null;
+    }
+    QueryShape shape = QueryShape.of(requestPb);
+    if (!shouldRewrite(shape)) {
+      logger.fine("entity cache hit rate is low: " + requestPb.getKind());
+      return null;
+    }
 
     requestPb.setKeysOnly(true);
-    rewritedQuery.add(requestPb);
+    rewritedQueries.put(requestPb, shape);
 
     logger.fine("rerwite query to keys only: " + requestPb.getKind());
     return Pair.request(requestPb.toByteArray());
   }
 
+  /**
+   * これまでにMemcacheから補填できた割合から、KeysOnlyに書き換えるべきかを判定する。
+   * @param shape
+   * @return 書き換える場合 true
+   */
+  static boolean shouldRewrite(QueryShape shape) {
+    if (shape.getKeysOnlyExecutions() < MIN_EXECUTIONS) {
+      return true;
+    } else if (shape.getKeysOnlyHitRate() >= MIN_HIT_RATE) {
+      return true;
+    }
+    // 書き換えないと学習できないので、時々は書き換えてキャッシュが温まったかを確かめる
+    return shape.keysOnlySkips.incrementAndGet() % PROBE_INTERVAL == 0;
+  }
+
   /**
    * もし、preでKeysOnlyをtrueに書き換えていた場合、取得できたKeyを元にBatchGetを行う。<br>
    * BatchGetの結果を元にKeysOnlyではない、普通のクエリの結果のように肉付けしてやる。<br>
@@ -69,7 +115,8 @@ public class QueryKeysOnlyStrategy extends RpcVisitor {
 
     logger.fine("post_datastore_v3_RunQuery start: " + Thread.currentThread().getId() + " " + this);
 
-    if (!rewritedQuery.contains(requestPb)) {
+    QueryShape shape = rewritedQueries.remove(requestPb);
+    if (shape == null) {
       logger.fine("not rewritedQuery: do nothing.");
       return null;
     }
@@ -80,7 +127,10 @@ public class QueryKeysOnlyStrategy extends RpcVisitor {
       logger.fine("list up cursor: " + responsePb.getCursor());
     }
 
-    reconstructQueryResult(responsePb);
+    int total = responsePb.resultSize();
+    KindController.get().result(requestPb.getKind(), total);
+    int hits = reconstructQueryResult(responsePb);
+    shape.recordKeysOnly(hits, total);
     logger.fine("Query Result reconstructed using cache.");
 
     // TODO compiledQuery, compiledCursor, cursor, index, indexOnly
@@ -120,20 +170,22 @@ public class QueryKeysOnlyStrategy extends RpcVisitor {
    * Memcache呼び出しはGetPutStrategyに任せる
    *
    * @param responsePb
+   * @return Memcacheから補填できたEntityの数
    */
-  void reconstructQueryResult(QueryResult responsePb) {
+  int reconstructQueryResult(QueryResult responsePb) {
 
     // 検索結果(KeysOnly)
-    List<Key> keys;
+    List<Reference> requestedKeys;
+    List<Object> cacheKeys;
     {
       List<EntityProto> protos = responsePb.results();
-      List<Reference> requestedKeys = new ArrayList<Reference>();
+      requestedKeys = new ArrayList<Reference>();
       for (EntityProto proto : protos) {
         requestedKeys.add(proto.getKey());
       }
 
-      keys = PbKeyUtil.toKeys(requestedKeys);
-      logger.info("key count: " + keys.size());
+      cacheKeys = encoder.readKeys(requestedKeys);
+      logger.info("key count: " + cacheKeys.size());
     }
 
     /*
@@ -156,49 +208,52 @@ public class QueryKeysOnlyStrategy extends RpcVisitor {
     */
 
     // MemcacheからEntity部分を取得
-    Map<Key, DatastorePb.GetResponse.Entity> cached;
+    Map<Object, DatastorePb.GetResponse.Entity> cached;
     {
-      Map<Key, Object> all = MemvacheDelegate.getMemcache().getAll(keys);
+      Map<Object, Object> all = MemvacheDelegate.getMemcache().getAll(cacheKeys);
       if (all == null) {
         logger.severe("memcache#getAll returns null. continue.");
-        all = new LinkedHashMap<Key, Object>();
+        all = new LinkedHashMap<Object, Object>();
       }
       cached = MemcacheKeyUtil.conv(all);
-      logger.info("STAT:BatchGetKeysOnly,hit," + cached.size());
+      MemvacheMetrics.get().add("keysonly.hit", cached.size());
+      MemvacheMetrics.get().add("keysonly.miss", cacheKeys.size() - cached.size());
     }
 
     // Memcacheから取得できなかった部分をBatchGet
     Map<Key, Entity> batchGet = null;
-    if (cached.size() != keys.size()) {
+    if (cached.size() != cacheKeys.size()) {
       List<Key> missingKeys = new ArrayList<Key>();
-      for (Key key : keys) {
-        if (!cached.containsKey(key)) {
-          missingKeys.add(key);
+      for (int i = 0; i < cacheKeys.size(); i++) {
+        if (!cached.containsKey(cacheKeys.get(i))) {
+          missingKeys.add(PbKeyUtil.toKey(requestedKeys.get(i)));
         }
       }
 
       DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
       batchGet = datastore.get(missingKeys);
-      logger.info("STAT:BatchGetKeysOnly,miss," + batchGet.size());
+      logger.fine("batchGet count: " + batchGet.size());
     }
 
     // 1つの検索結果であるかのように組み立てる
     responsePb.setKeysOnly(false);
     responsePb.clearResult();
 
-    for (Key key : keys) {
+    for (int i = 0; i < cacheKeys.size(); i++) {
+      DatastorePb.GetResponse.Entity entity = cached.get(cacheKeys.get(i));
+      if (entity != null) {
+        responsePb.addResult(entity.getEntity());
+        continue;
+      }
+      Key key = PbKeyUtil.toKey(requestedKeys.get(i));
       Entity entityByGet = (batchGet == null) ? null : batchGet.get(key);
       if (entityByGet != null) {
         EntityProto proto = EntityTranslatorPublic.convertToPb(entityByGet);
         responsePb.addResult(proto);
       } else {
-        DatastorePb.GetResponse.Entity entity = cached.get(key);
-        if (entity != null) {
-          responsePb.addResult(entity.getEntity());
-        } else {
-          logger.severe("Missing entity: " + key);
-        }
+        logger.severe("Missing entity: " + key);
       }
     }
+    return cached.size();
   }
 }
@@ -0,0 +1,248 @@
+package net.vvakame.memvache;
+
+import com.google.apphosting.api.DatastorePb.Cursor;
+import com.google.apphosting.api.DatastorePb.NextRequest;
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.apphosting.api.DatastorePb.Query.Filter;
+import com.google.apphosting.api.DatastorePb.Query.Order;
+import com.google.apphosting.api.DatastorePb.QueryResult;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import jp.honestyworks.pbcache.Fingerprint;
+
+/**
+ * Queryの形毎の実行結果の統計を保持するクラス。<br>
+ * 形はNamespace, Kind, 祖先の有無, フィルタの演算子とプロパティ名, ソート順で決まり、
+ * フィルタの値やカーソル、件数は含めない。値だけが違うQueryは同じ形として集計される。
+ */
+public class QueryShape {
+
+  /** 保持する形の数の上限。超えたら全て捨てて学習し直す */
+  static final int MAX_SHAPES =
+      (int) MemcacheServiceWrapper.longProperty("memvache.shape.max", 10000);
+
+  /** 指数移動平均の重み */
+  static final double ALPHA = 0.2;
+
+  /** prefetch数で覆う結果件数のパーセンタイル */
+  static final double PREFETCH_PERCENTILE =
+      MemcacheServiceWrapper.doubleProperty("memvache.prefetch.percentile", 0.95);
+
+  /** prefetch数の上限 */
+  static final int MAX_PREFETCH =
+      (int) MemcacheServiceWrapper.longProperty("memvache.prefetch.max", 1000);
+
+  /** prefetch数を結果件数から決めるのに必要な最小の記録数 */
+  static final long MIN_RESULT_SAMPLES = 8;
+
+  /** prefetch数を決めるのに使う、直近の結果件数の数 */
+  static final int RECENT_RESULT_SIZES = 64;
+
+  static final ConcurrentMap<Long, QueryShape> shapes = new ConcurrentHashMap<Long, QueryShape>();
+
+  final long fingerprint;
+
+  /** KeysOnlyに書き換えて実行した回数 */
+  final AtomicLong keysOnlyExecutions = new AtomicLong();
+
+  /** KeysOnlyに書き換えなかった回数 */
+  final AtomicLong keysOnlySkips = new AtomicLong();
+
+  /** KeysOnlyに書き換えた時にMemcacheから補填できたEntityの割合(指数移動平均) */
+  volatile double keysOnlyHitRate;
+
+  /** 最後まで読まれたQueryの結果件数 */
+  final Histogram resultSizes = new Histogram();
+
+  /**
+   * 直近の結果件数。リングバッファとして使う。<br>
+   * {@link Histogram} のパーセンタイルは2の冪のバケットの上限なので、33件が64件になってしまう。
+   * prefetch数は件数そのままのパーセンタイルから決める。
+   */
+  final AtomicIntegerArray recentResultSizes = new AtomicIntegerArray(RECENT_RESULT_SIZES);
+
+  /** {@link #recentResultSizes} に記録した数 */
+  final AtomicLong recentResultCount = new AtomicLong();
+
+  /** 直近の結果件数のパーセンタイル。記録が足りない時は -1 */
+  volatile int resultSizePercentile = -1;
+
+  QueryShape(long fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Queryの形の統計を取得する。
+   * @param query
+   * @return 統計
+   */
+  public static QueryShape of(Query query) {
+    long fingerprint = fingerprint(query);
+    QueryShape shape = shapes.get(fingerprint);
+    if (shape == null) {
+      if (shapes.size() >= MAX_SHAPES) {
+        shapes.clear();
+      }
+      QueryShape newShape = new QueryShape(fingerprint);
+      shape = shapes.putIfAbsent(fingerprint, newShape);
+      if (shape == null) {
+        shape = newShape;
+      }
+    }
+    return shape;
+  }
+
+  /**
+   * 全ての統計を捨てる。
+   */
+  public static void clear() {
+    shapes.clear();
+  }
+
+  /**
+   * 形を決める値を直接ハッシュに渡す。RunQuery毎に文字列を組み立てないようにするため。
+   */
+  static long fingerprint(Query query) {
+    Fingerprint.Hasher hasher = new Fingerprint.Hasher();
+    hasher.putBytes(query.getNameSpaceAsBytes()).putBytes(query.getKindAsBytes());
+    hasher.putByte(query.hasAncestor() ? 1 : 0);
+    int filters = query.filterSize();
+    hasher.putInt(filters);
+    for (int i = 0; i < filters; i++) {
+      Filter filter = query.getFilter(i);
+      int properties = filter.propertySize();
+      hasher.putInt(filter.getOp()).putInt(properties);
+      for (int j = 0; j < properties; j++) {
+        hasher.putBytes(filter.getProperty(j).getNameAsBytes());
+      }
+    }
+    int orders = query.orderSize();
+    hasher.putInt(orders);
+    for (int i = 0; i < orders; i++) {
+      Order order = query.getOrder(i);
+      hasher.putInt(order.getDirection()).putBytes(order.getPropertyAsBytes());
+    }
+    return hasher.toLong();
+  }
+
+  /**
+   * KeysOnlyに書き換えて実行した結果を記録する。
+   * @param hits Memcacheから補填できたEntityの数
+   * @param total 結果のEntityの数
+   */
+  public void recordKeysOnly(int hits, int total) {
+    if (total == 0) {
+      return;
+    }
+    double rate = (double) hits / total;
+    if (keysOnlyExecutions.incrementAndGet() == 1) {
+      keysOnlyHitRate = rate;
+    } else {
+      // 同時に更新されると片方が失われるが、傾向が分かれば良いので許容する
+      keysOnlyHitRate += ALPHA * (rate - keysOnlyHitRate);
+    }
+  }
+
+  /**
+   * これまでの結果件数から、1回のRunQueryで殆どのQueryが終わるprefetch数を求める。
+   * @param query
+   * @param defaultCount 記録が足りない時のprefetch数
+   * @return prefetch数。0 の場合は設定しない
+   */
+  public int prefetchCount(Query query, int defaultCount) {
+    int count = defaultCount;
+    int percentile = resultSizePercentile;
+    if (percentile >= 0) {
+      // ちょうど件数分だと続きがあるかDatastoreには分からないので1件多く取る
+      count = (int) Math.min((long) percentile + 1, MAX_PREFETCH);
+    }
+    if (query.hasLimit() && count > query.getLimit()) {
+      count = query.getLimit();
+    }
+    return count;
+  }
+
+  /**
+   * 最後まで読まれたQueryの結果件数を記録し、prefetch数に使うパーセンタイルを求め直す。<br>
+   * RunQuery毎ではなくQueryが終わった時だけなので、ここで並べ替える。
+   * 同時に記録されると途中の状態から求めることがあるが、次の記録で直るので許容する。
+   * @param size 結果件数
+   */
+  void recordResultSize(int size) {
+    resultSizes.record(size);
+    long recorded = recentResultCount.getAndIncrement();
+    recentResultSizes.set((int) (recorded % RECENT_RESULT_SIZES), size);
+    int samples = (int) Math.min(recorded + 1, RECENT_RESULT_SIZES);
+    if (samples < MIN_RESULT_SAMPLES) {
+      return;
+    }
+    int[] sizes = new int[samples];
+    for (int i = 0; i < samples; i++) {
+      sizes[i] = recentResultSizes.get(i);
+    }
+    Arrays.sort(sizes);
+    int rank = (int) Math.ceil(PREFETCH_PERCENTILE * samples);
+    resultSizePercentile = sizes[Math.min(Math.max(rank, 1), samples) - 1];
+  }
+
+  /**
+   * @return 最後まで読まれたQueryの結果件数
+   */
+  public Histogram getResultSizes() {
+    return resultSizes;
+  }
+
+  /**
+   * @return KeysOnlyに書き換えて実行した回数
+   */
+  public long getKeysOnlyExecutions() {
+    return keysOnlyExecutions.get();
+  }
+
+  /**
+   * @return KeysOnlyに書き換えた時にMemcacheから補填できたEntityの割合
+   */
+  public double getKeysOnlyHitRate() {
+    return keysOnlyHitRate;
+  }
+
+  /**
+   * RunQueryからNextを経て最後まで読まれたQueryの結果件数を、形毎に記録する。<br>
+   * Strategyと同じくリクエスト毎に作られるので、同期はしない。途中で読むのを止めたQueryは記録しない。
+   */
+  static class ResultTracker {
+
+    final Map<Cursor, QueryShape> shapes = new HashMap<Cursor, QueryShape>();
+
+    final Map<Cursor, Integer> counts = new HashMap<Cursor, Integer>();
+
+    void runQuery(QueryShape shape, QueryResult responsePb) {
+      if (responsePb.isMoreResults()) {
+        shapes.put(responsePb.getCursor(), shape);
+        counts.put(responsePb.getCursor(), responsePb.resultSize());
+      } else {
+        shape.recordResultSize(responsePb.resultSize());
+      }
+    }
+
+    void next(NextRequest requestPb, QueryResult responsePb) {
+      Cursor cursor = requestPb.getCursor();
+      Integer count = counts.get(cursor);
+      if (count == null) {
+        return;
+      }
+      int total = count + responsePb.resultSize();
+      if (responsePb.isMoreResults()) {
+        counts.put(cursor, total);
+      } else {
+        shapes.remove(cursor).recordResultSize(total);
+        counts.remove(cursor);
+      }
+    }
+  }
+}
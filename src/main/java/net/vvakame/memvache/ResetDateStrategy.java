@@ -153,7 +153,8 @@ public class ResetDateStrategy extends RpcVisitor {
     /** Queryをキャッシュ"しない"Kindの一覧 */
     Set<String> ignoreKinds = new HashSet<String>();
 
-    static Settings singleton;
+    /** クラスの初期化時に作成するので、複数スレッドから同時に呼ばれても1つしか作られない */
+    static final Settings singleton = new Settings();
 
     /**
      * インスタンスを取得する。
@@ -161,9 +162,6 @@ public class ResetDateStrategy extends RpcVisitor {
      * @author vvakame
      */
     public static Settings getInstance() {
-      if (singleton == null) {
-        singleton = new Settings();
-      }
       return singleton;
     }
 
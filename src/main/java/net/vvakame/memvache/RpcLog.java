@@ -0,0 +1,263 @@
+package net.vvakame.memvache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link RpcRecorder} が書き出すRPCのログの形式。<br>
+ * ログはブロックの並びで、ブロックは1バイトのタグで始まる。
+ * <ul>
+ * <li>ヘッダ: MAGIC(int), VERSION(byte)。追記する度に書かれるので途中にも現れる</li>
+ * <li>リクエスト: 開始時刻(ミリ秒, varint), レコード数(varint), レコードの並び。
+ * 1リクエスト中のRPCを発行順に並べたもの</li>
+ * </ul>
+ * レコードは service, method (varint長 + UTF-8), フラグ(byte), 開始時刻からの経過(ミリ秒, varint),
+ * レイテンシ(マイクロ秒, varint), リクエスト(varint長 + バイト列),
+ * エラーでなければレスポンス(varint長 + バイト列)。<br>
+ * VERSION 1 には時刻がなく、読み込んだ時刻は 0 になる。
+ */
+public class RpcLog {
+
+  static final int MAGIC = 0x4d56524c;
+
+  static final int VERSION = 2;
+
+  static final int TAG_HEADER = 1;
+
+  static final int TAG_REQUEST = 2;
+
+  static final int FLAG_ASYNC = 1;
+
+  static final int FLAG_ERROR = 2;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private RpcLog() {}
+
+  /**
+   * 記録された1回のRPC。
+   */
+  public static class Record {
+
+    final String service;
+
+    final String method;
+
+    final byte[] request;
+
+    final boolean async;
+
+    final long timeMillis;
+
+    volatile byte[] response;
+
+    volatile long latencyMicros = -1;
+
+    volatile boolean error;
+
+    Record(String service, String method, byte[] request, boolean async, long timeMillis) {
+      this.service = service;
+      this.method = method;
+      this.request = request;
+      this.async = async;
+      this.timeMillis = timeMillis;
+    }
+
+    void complete(byte[] response, long nanos) {
+      this.response = response;
+      this.latencyMicros = nanos / 1000;
+    }
+
+    void fail(long nanos) {
+      this.error = true;
+      this.latencyMicros = nanos / 1000;
+    }
+
+    /**
+     * @return 完了したか、失敗した場合 true
+     */
+    boolean isFinished() {
+      return latencyMicros >= 0;
+    }
+
+    /** @return the service */
+    public String getService() {
+      return service;
+    }
+
+    /** @return the method */
+    public String getMethod() {
+      return method;
+    }
+
+    /** @return the request */
+    public byte[] getRequest() {
+      return request;
+    }
+
+    /** @return the response. エラーの場合 null */
+    public byte[] getResponse() {
+      return response;
+    }
+
+    /** @return レイテンシ(マイクロ秒) */
+    public long getLatencyMicros() {
+      return latencyMicros;
+    }
+
+    /** @return RPCを発行した時刻(ミリ秒) */
+    public long getTimeMillis() {
+      return timeMillis;
+    }
+
+    /** @return makeAsyncCall だった場合 true */
+    public boolean isAsync() {
+      return async;
+    }
+
+    /** @return 例外で終わったか、レスポンスが取得されなかった場合 true */
+    public boolean isError() {
+      return error;
+    }
+  }
+
+  /**
+   * ヘッダを書き出す。
+   * @param out
+   * @throws IOException
+   */
+  public static void writeHeader(OutputStream out) throws IOException {
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeByte(TAG_HEADER);
+    dout.writeInt(MAGIC);
+    dout.writeByte(VERSION);
+    dout.flush();
+  }
+
+  /**
+   * 1リクエスト分のレコードを書き出す。完了していないレコードはエラーとして書く。
+   * @param out
+   * @param startMillis リクエストの開始時刻
+   * @param records
+   * @throws IOException
+   */
+  public static void writeRequest(OutputStream out, long startMillis, List<Record> records)
+      throws IOException {
+    out.write(TAG_REQUEST);
+    writeVarLong(out, startMillis);
+    writeVarLong(out, records.size());
+    for (Record record : records) {
+      byte[] response = record.response;
+      boolean error = record.error || !record.isFinished() || response == null;
+      writeBytes(out, record.service.getBytes(UTF8));
+      writeBytes(out, record.method.getBytes(UTF8));
+      out.write((record.async ? FLAG_ASYNC : 0) | (error ? FLAG_ERROR : 0));
+      writeVarLong(out, Math.max(0, record.timeMillis - startMillis));
+      writeVarLong(out, Math.max(0, record.latencyMicros));
+      writeBytes(out, record.request);
+      if (!error) {
+        writeBytes(out, response);
+      }
+    }
+  }
+
+  /**
+   * ログを全て読み込む。
+   * @param in
+   * @return リクエスト毎のレコード
+   * @throws IOException 形式が正しくない場合
+   */
+  public static List<List<Record>> read(InputStream in) throws IOException {
+    DataInputStream din = new DataInputStream(in);
+    List<List<Record>> requests = new ArrayList<List<Record>>();
+    int version = 0;
+    int tag;
+    while ((tag = din.read()) != -1) {
+      if (tag == TAG_HEADER) {
+        if (din.readInt() != MAGIC) {
+          throw new IOException("not a memvache rpc log");
+        }
+        version = din.readUnsignedByte();
+        if (version < 1 || VERSION < version) {
+          throw new IOException("unsupported rpc log version " + version);
+        }
+      } else if (tag == TAG_REQUEST && version != 0) {
+        long startMillis = version < 2 ? 0 : readVarLong(din);
+        int count = (int) readVarLong(din);
+        List<Record> records = new ArrayList<Record>(count);
+        for (int i = 0; i < count; i++) {
+          records.add(readRecord(din, version, startMillis));
+        }
+        requests.add(records);
+      } else {
+        throw new IOException("unexpected block " + tag);
+      }
+    }
+    return requests;
+  }
+
+  static Record readRecord(DataInputStream in, int version, long startMillis)
+      throws IOException {
+    String service = new String(readBytes(in), UTF8);
+    String method = new String(readBytes(in), UTF8);
+    int flags = in.readUnsignedByte();
+    long timeMillis = version < 2 ? 0 : startMillis + readVarLong(in);
+    long latencyMicros = readVarLong(in);
+    boolean async = (flags & FLAG_ASYNC) != 0;
+    Record record = new Record(service, method, readBytes(in), async, timeMillis);
+    if ((flags & FLAG_ERROR) != 0) {
+      record.fail(latencyMicros * 1000);
+    } else {
+      record.complete(readBytes(in), latencyMicros * 1000);
+    }
+    return record;
+  }
+
+  static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+    if (bytes == null) {
+      bytes = new byte[0];
+    }
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    long length = readVarLong(in);
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("too long " + length);
+    }
+    byte[] bytes = new byte[(int) length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  static void writeVarLong(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static long readVarLong(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("malformed varint");
+  }
+}
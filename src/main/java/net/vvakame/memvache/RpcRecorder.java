@@ -0,0 +1,262 @@
+package net.vvakame.memvache;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * アプリケーションが発行したRPCを {@link RpcLog} の形式で記録する {@link Delegate}。<br>
+ * {@link MemvacheDelegate} より外側(後)にインストールすることで、Strategyを通す前のRPCを記録する。
+ * 記録したログはテストの RpcReplayer で任意のStrategyの組み合わせに流せる。
+ * <p>
+ * リクエスト毎に {@link #beginRequest()} で記録するかどうかを決める(システムプロパティ
+ * memvache.record.sample の割合でサンプリング、デフォルト 0.01)。記録中のRPCはメモリに溜め、
+ * {@link #endRequest()} でまとめて書き出す。RPCの処理中にI/Oは行わない。
+ * 1リクエストの記録が memvache.record.maxBytes (デフォルト 256KB) を超えた場合は
+ * そのリクエストを捨てる。
+ * 書き出しに失敗してもリクエストの処理には影響させない。
+ * </p>
+ */
+public class RpcRecorder implements Delegate<Environment> {
+
+  static final Logger logger = Logger.getLogger(RpcRecorder.class.getName());
+
+  final Delegate<Environment> parent;
+
+  final OutputStream out;
+
+  volatile double sampleRate =
+      MemcacheServiceWrapper.doubleProperty("memvache.record.sample", 0.01);
+
+  long maxBytes =
+      MemcacheServiceWrapper.longProperty("memvache.record.maxBytes", 256 * 1024);
+
+  /** 現在のリクエストの記録 */
+  final ThreadLocal<RequestBuffer> currentRequest = new ThreadLocal<RequestBuffer>();
+
+  /** 書き出したリクエストの数 */
+  final AtomicLong recorded = new AtomicLong();
+
+  /** 大きすぎるか、書き出しに失敗して捨てたリクエストの数 */
+  final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * {@link RpcRecorder}を{@link ApiProxy}に設定する。ヘッダを書き出す。
+   * @param out 書き出し先。 {@link #endRequest()} 毎にflushされる
+   * @return 新たに作成した{@link RpcRecorder}
+   * @throws IOException ヘッダの書き出しに失敗した場合
+   */
+  public static RpcRecorder install(OutputStream out) throws IOException {
+    @SuppressWarnings("unchecked")
+    Delegate<Environment> originalDelegate = ApiProxy.getDelegate();
+    RpcLog.writeHeader(out);
+    RpcRecorder newDelegate = new RpcRecorder(originalDelegate, out);
+    ApiProxy.setDelegate(newDelegate);
+    return newDelegate;
+  }
+
+  RpcRecorder(Delegate<Environment> parent, OutputStream out) {
+    this.parent = parent;
+    this.out = out;
+  }
+
+  /**
+   * {@link RpcRecorder}を{@link ApiProxy}からはずす。
+   */
+  public void uninstall() {
+    ApiProxy.setDelegate(parent);
+  }
+
+  /**
+   * サンプリングする割合を設定する。
+   * @param rate 0.0 - 1.0
+   */
+  public void setSampleRate(double rate) {
+    sampleRate = rate;
+  }
+
+  /**
+   * リクエストの開始。サンプリングの割合に従って記録を開始する。
+   * @return 記録する場合 true
+   */
+  public boolean beginRequest() {
+    double rate = sampleRate;
+    boolean sampled = rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    return beginRequest(sampled);
+  }
+
+  /**
+   * リクエストの開始。
+   * @param record 記録する場合 true
+   * @return record
+   */
+  public boolean beginRequest(boolean record) {
+    if (currentRequest.get() != null) {
+      endRequest();
+    }
+    if (record) {
+      currentRequest.set(new RequestBuffer());
+    }
+    return record;
+  }
+
+  /**
+   * リクエストの終了。記録したRPCを書き出す。
+   * @return 書き出した場合 true
+   */
+  public boolean endRequest() {
+    RequestBuffer buffer = currentRequest.get();
+    if (buffer == null) {
+      return false;
+    }
+    currentRequest.remove();
+    if (buffer.overflow) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    if (buffer.records.isEmpty()) {
+      return false;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) buffer.bytes + 64);
+      synchronized (buffer) {
+        RpcLog.writeRequest(bytes, buffer.startMillis, buffer.records);
+      }
+      synchronized (out) {
+        bytes.writeTo(out);
+        out.flush();
+      }
+      recorded.incrementAndGet();
+      return true;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "failed to write rpc log", e);
+      dropped.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * @return 書き出したリクエストの数
+   */
+  public long getRecorded() {
+    return recorded.get();
+  }
+
+  /**
+   * @return 捨てたリクエストの数
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  @Override
+  public byte[] makeSyncCall(Environment env, String service, String method, byte[] request)
+      throws ApiProxyException {
+    RequestBuffer buffer = currentRequest.get();
+    RpcLog.Record record = buffer == null ? null : buffer.add(service, method, request, false);
+    if (record == null) {
+      return parent.makeSyncCall(env, service, method, request);
+    }
+    long start = System.nanoTime();
+    byte[] response;
+    try {
+      response = parent.makeSyncCall(env, service, method, request);
+    } catch (RuntimeException e) {
+      record.fail(System.nanoTime() - start);
+      throw e;
+    }
+    record.complete(response, System.nanoTime() - start);
+    buffer.addBytes(response);
+    return response;
+  }
+
+  @Override
+  public Future<byte[]> makeAsyncCall(
+      Environment env, String service, String method, byte[] request, ApiConfig config) {
+    final RequestBuffer buffer = currentRequest.get();
+    final RpcLog.Record record =
+        buffer == null ? null : buffer.add(service, method, request, true);
+    if (record == null) {
+      return parent.makeAsyncCall(env, service, method, request, config);
+    }
+    final long start = System.nanoTime();
+    Future<byte[]> response = parent.makeAsyncCall(env, service, method, request, config);
+    return new SniffFuture<byte[]>(response) {
+
+      @Override
+      public byte[] processDate(byte[] data) {
+        // 非同期の場合は結果が取得されるまでの時間になる。取得されなかったRPCはエラーとして書かれる
+        if (!record.isFinished()) {
+          record.complete(data, System.nanoTime() - start);
+          buffer.addBytes(data);
+        }
+        return null;
+      }
+    };
+  }
+
+  @Override
+  public void log(Environment env, LogRecord logRecord) {
+    parent.log(env, logRecord);
+  }
+
+  @Override
+  public void flushLogs(Environment env) {
+    parent.flushLogs(env);
+  }
+
+  @Override
+  public List<Thread> getRequestThreads(Environment env) {
+    return parent.getRequestThreads(env);
+  }
+
+  /**
+   * 1リクエスト分の記録。
+   */
+  class RequestBuffer {
+
+    final List<RpcLog.Record> records = new ArrayList<RpcLog.Record>();
+
+    final long startMillis = System.currentTimeMillis();
+
+    long bytes;
+
+    volatile boolean overflow;
+
+    /**
+     * レコードを追加する。
+     * @return 上限を超えた場合 null
+     */
+    synchronized RpcLog.Record add(String service, String method, byte[] request, boolean async) {
+      addBytes(request);
+      if (overflow) {
+        return null;
+      }
+      RpcLog.Record record =
+          new RpcLog.Record(service, method, request, async, System.currentTimeMillis());
+      records.add(record);
+      return record;
+    }
+
+    synchronized void addBytes(byte[] data) {
+      bytes += data == null ? 0 : data.length;
+      if (bytes > maxBytes && !overflow) {
+        overflow = true;
+        records.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package net.vvakame.memvache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 1回のRPCがStrategyのチェインを通過した記録。 {@link RpcTracer} が作成する。
+ */
+public class RpcTrace {
+
+  /**
+   * 1つのStrategyの pre / post の記録。
+   */
+  public static class Step {
+
+    final String strategy;
+
+    final boolean pre;
+
+    final long nanos;
+
+    final String outcome;
+
+    Step(String strategy, boolean pre, long nanos, String outcome) {
+      this.strategy = strategy;
+      this.pre = pre;
+      this.nanos = nanos;
+      this.outcome = outcome;
+    }
+
+    /**
+     * @return Strategyのクラス名
+     */
+    public String getStrategy() {
+      return strategy;
+    }
+
+    /**
+     * @return preProcessの場合 true, postProcessの場合 false
+     */
+    public boolean isPre() {
+      return pre;
+    }
+
+    /**
+     * @return 処理時間(ns)
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * @return preProcessの場合 hit(レスポンスを生成), rewrite(リクエストを改変), pass(素通し)。
+     * postProcessの場合 post
+     */
+    public String getOutcome() {
+      return outcome;
+    }
+  }
+
+  final String service;
+
+  final String method;
+
+  final int depth;
+
+  final long startMillis = System.currentTimeMillis();
+
+  final long startNanos = System.nanoTime();
+
+  final List<Step> steps = Collections.synchronizedList(new ArrayList<Step>());
+
+  volatile String servedBy;
+
+  volatile long requestBytes;
+
+  volatile long responseBytes;
+
+  volatile long parentNanos = -1;
+
+  volatile long totalNanos = -1;
+
+  volatile int memcacheCalls;
+
+  /** 完了していない場合 true。 {@link RpcTracer#liveTraces} を一度だけ減らすために使う */
+  final AtomicBoolean open = new AtomicBoolean(true);
+
+  /** 現在のリクエストの記録に含まれている場合 true */
+  boolean recorded;
+
+  /** JFRのイベント or null */
+  Object event;
+
+  volatile long memcacheNanos;
+
+  RpcTrace(String service, String method, int depth, byte[] request) {
+    this.service = service;
+    this.method = method;
+    this.depth = depth;
+    this.requestBytes = request == null ? 0 : request.length;
+  }
+
+  void addStep(Strategy strategy, boolean pre, long nanos, String outcome) {
+    steps.add(new Step(strategy.getClass().getSimpleName(), pre, nanos, outcome));
+  }
+
+  synchronized void addMemcache(long nanos) {
+    memcacheCalls++;
+    memcacheNanos += nanos;
+  }
+
+  /**
+   * @return サービス名
+   */
+  public String getService() {
+    return service;
+  }
+
+  /**
+   * @return メソッド名
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return RPCの入れ子の深さ。Strategyの中から発行されたRPCは1以上
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * @return 開始時刻
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * @return Strategyの記録
+   */
+  public List<Step> getSteps() {
+    synchronized (steps) {
+      return new ArrayList<Step>(steps);
+    }
+  }
+
+  /**
+   * 結果をどこから得たか。
+   * @return Strategyがレスポンスを作らなかった場合 datastore、
+   * 作った場合はMemcacheを使ったなら memcache、使わなかったなら request
+   */
+  public String getSource() {
+    if (servedBy == null) {
+      return "datastore";
+    }
+    return memcacheCalls > 0 ? "memcache" : "request";
+  }
+
+  /**
+   * @return レスポンスを作ったStrategyのクラス名 or null
+   */
+  public String getServedBy() {
+    return servedBy;
+  }
+
+  /**
+   * @return リクエストのバイト数
+   */
+  public long getRequestBytes() {
+    return requestBytes;
+  }
+
+  /**
+   * @return レスポンスのバイト数
+   */
+  public long getResponseBytes() {
+    return responseBytes;
+  }
+
+  /**
+   * @return 実際のRPCの時間(ns)。RPCを行わなかった場合は -1
+   */
+  public long getParentNanos() {
+    return parentNanos;
+  }
+
+  /**
+   * @return 全体の時間(ns)。完了していない場合は -1
+   */
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * @return RPCの間に行ったMemcacheの呼び出し回数
+   */
+  public int getMemcacheCalls() {
+    return memcacheCalls;
+  }
+
+  /**
+   * @return RPCの間に行ったMemcacheの呼び出し時間の合計(ns)
+   */
+  public long getMemcacheNanos() {
+    return memcacheNanos;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(service).append('.').append(method);
+    builder.append(" depth=").append(depth);
+    builder.append(" total=").append(micros(totalNanos));
+    builder.append(" source=").append(getSource());
+    if (servedBy != null) {
+      builder.append(" servedBy=").append(servedBy);
+    }
+    builder.append(" parent=").append(micros(parentNanos));
+    builder.append(" bytes=").append(requestBytes).append('/').append(responseBytes);
+    builder.append(" memcache=").append(memcacheCalls).append('/').append(micros(memcacheNanos));
+    for (Step step : getSteps()) {
+      builder.append(step.pre ? " pre:" : " post:");
+      builder.append(step.strategy).append('=').append(micros(step.nanos));
+      if (step.pre) {
+        builder.append('(').append(step.outcome).append(')');
+      }
+    }
+    return builder.toString();
+  }
+
+  static String micros(long nanos) {
+    return nanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+  }
+}
@@ -0,0 +1,204 @@
+package net.vvakame.memvache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link MemvacheDelegate} を通過するRPCを記録するトレーサ。<br>
+ * リクエスト毎に {@link #beginRequest()} で記録するかどうかを決め(システムプロパティ
+ * memvache.trace.sample の割合でサンプリング、デフォルト 0)、記録したRPCは
+ * {@link #getCurrentRequest()} で現在のリクエストの分を、 {@link #getRecent()} で
+ * 直近のリクエスト全体の分を取得できる。<br>
+ * 記録しているリクエストが無い間は、RPC毎のコストは {@link AtomicInteger} の読み込みのみ。<br>
+ * JFRが {@link MemvacheRpcEvent} を記録している場合は、サンプリングされていないRPCも
+ * イベントのために記録する(リングバッファには入れない)。
+ */
+public class RpcTracer {
+
+  /** リングバッファの大きさ(2の冪) */
+  static final int BUFFER_SIZE = 1024;
+
+  static volatile double sampleRate =
+      MemcacheServiceWrapper.doubleProperty("memvache.trace.sample", 0);
+
+  /** 記録中のリクエストの数 */
+  static final AtomicInteger tracingRequests = new AtomicInteger();
+
+  static final AtomicReferenceArray<RpcTrace> buffer =
+      new AtomicReferenceArray<RpcTrace>(BUFFER_SIZE);
+
+  static final AtomicLong sequence = new AtomicLong();
+
+  /** 完了していないRPCの記録の数 */
+  static final AtomicInteger liveTraces = new AtomicInteger();
+
+  /** 現在のリクエストの記録 */
+  static final ThreadLocal<List<RpcTrace>> currentRequest = new ThreadLocal<List<RpcTrace>>();
+
+  /** 処理中のRPC。Strategyの中から発行されたRPCとMemcacheの呼び出しの紐付けに使う */
+  static final ThreadLocal<RpcTrace> activeTrace = new ThreadLocal<RpcTrace>();
+
+  private RpcTracer() {}
+
+  /**
+   * サンプリングする割合を設定する。
+   * @param rate 0.0 - 1.0
+   */
+  public static void setSampleRate(double rate) {
+    sampleRate = rate;
+  }
+
+  /**
+   * リクエストの開始。サンプリングの割合に従って記録を開始する。
+   * @return 記録する場合 true
+   */
+  public static boolean beginRequest() {
+    double rate = sampleRate;
+    boolean sampled = rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    return beginRequest(sampled);
+  }
+
+  /**
+   * リクエストの開始。
+   * @param trace 記録する場合 true
+   * @return trace
+   */
+  public static boolean beginRequest(boolean trace) {
+    if (currentRequest.get() != null) {
+      endRequest();
+    }
+    if (trace) {
+      currentRequest.set(new ArrayList<RpcTrace>());
+      tracingRequests.incrementAndGet();
+    }
+    return trace;
+  }
+
+  /**
+   * リクエストの終了。<br>
+   * 結果を取得されなかった非同期のRPCは完了しないので、ここで処理中の数から外す。
+   * @return 現在のリクエストで記録したRPC
+   */
+  public static List<RpcTrace> endRequest() {
+    List<RpcTrace> traces = currentRequest.get();
+    if (traces == null) {
+      return new ArrayList<RpcTrace>();
+    }
+    for (RpcTrace trace : traces) {
+      if (trace.open.compareAndSet(true, false)) {
+        liveTraces.decrementAndGet();
+      }
+    }
+    currentRequest.remove();
+    activeTrace.remove();
+    tracingRequests.decrementAndGet();
+    return traces;
+  }
+
+  /**
+   * @return 現在のリクエストで記録したRPC
+   */
+  public static List<RpcTrace> getCurrentRequest() {
+    List<RpcTrace> traces = currentRequest.get();
+    return traces == null ? new ArrayList<RpcTrace>() : new ArrayList<RpcTrace>(traces);
+  }
+
+  /**
+   * @return 直近に完了したRPCの記録。古い順
+   */
+  public static List<RpcTrace> getRecent() {
+    long end = sequence.get();
+    long start = Math.max(0, end - BUFFER_SIZE);
+    List<RpcTrace> traces = new ArrayList<RpcTrace>((int) (end - start));
+    for (long i = start; i < end; i++) {
+      RpcTrace trace = buffer.get((int) (i & (BUFFER_SIZE - 1)));
+      if (trace != null) {
+        traces.add(trace);
+      }
+    }
+    return traces;
+  }
+
+  /**
+   * RPCの記録を開始する。
+   * @return 現在のリクエストを記録しておらず、JFRのイベントも記録しない場合は null
+   */
+  static RpcTrace start(String service, String method, byte[] request) {
+    List<RpcTrace> traces = tracingRequests.get() == 0 ? null : currentRequest.get();
+    Object event = JfrEvents.beginRpc();
+    if (traces == null && event == null) {
+      return null;
+    }
+    RpcTrace parent = activeTrace.get();
+    RpcTrace trace = new RpcTrace(service, method, parent == null ? 0 : parent.depth + 1, request);
+    trace.event = event;
+    if (traces != null) {
+      trace.recorded = true;
+      traces.add(trace);
+    }
+    liveTraces.incrementAndGet();
+    return trace;
+  }
+
+  /**
+   * RPCの記録を完了し、リングバッファに入れる。
+   */
+  static void finish(RpcTrace trace, byte[] response) {
+    if (!trace.open.compareAndSet(true, false)) {
+      // Future#get が複数回呼ばれた、またはリクエストが先に終了した
+      return;
+    }
+    trace.responseBytes = response == null ? 0 : response.length;
+    trace.totalNanos = System.nanoTime() - trace.startNanos;
+    liveTraces.decrementAndGet();
+    if (trace.recorded) {
+      buffer.set((int) (sequence.getAndIncrement() & (BUFFER_SIZE - 1)), trace);
+    }
+    if (trace.event != null) {
+      JfrEvents.commitRpc(trace.event, trace);
+    }
+  }
+
+  /**
+   * Strategyの処理を開始する。この間のMemcacheの呼び出しとRPCはtraceに紐付けられる。
+   * @param trace null の場合は何もしない
+   * @return 直前の処理中のRPC
+   */
+  static RpcTrace enter(RpcTrace trace) {
+    if (trace == null) {
+      return null;
+    }
+    RpcTrace previous = activeTrace.get();
+    activeTrace.set(trace);
+    return previous;
+  }
+
+  /**
+   * Strategyの処理を終了する。
+   * @param trace
+   * @param previous {@link #enter(RpcTrace)} の返り値
+   */
+  static void exit(RpcTrace trace, RpcTrace previous) {
+    if (trace != null) {
+      activeTrace.set(previous);
+    }
+  }
+
+  /**
+   * Memcacheの呼び出しを処理中のRPCに記録する。
+   * @param nanos
+   */
+  static void recordMemcache(long nanos) {
+    if (liveTraces.get() == 0) {
+      return;
+    }
+    RpcTrace trace = activeTrace.get();
+    if (trace != null) {
+      trace.addMemcache(nanos);
+    }
+  }
+}
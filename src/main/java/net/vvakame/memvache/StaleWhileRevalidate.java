@@ -0,0 +1,139 @@
+package net.vvakame.memvache;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * キャッシュしたQueryの結果を、Kindへの書き込みで無効になった後もしばらく返し続けるための補助クラス。<br>
+ * 古い結果を返す間、裏で1つだけQueryをやり直してキャッシュを差し替える。
+ * やり直すのが1つだけになるよう、Memcacheに ADD_ONLY_IF_NOT_PRESENT でロックを置く。
+ * <p>
+ * 対象は memvache.properties の staleKind に "Kind:秒,Kind:秒" の形で指定したKindだけ。
+ * 秒は結果をキャッシュしてから古い結果として返して良い時間。
+ * </p>
+ * <p>
+ * やり直しは {@link #setExecutor(Executor)} で設定したExecutorで実行する。App Engineでは素のスレッドから
+ * APIを呼べないので、APIを呼べるスレッドで実行するExecutorを渡すこと。例えば手動/基本スケーリングなら
+ * {@code ThreadManager.backgroundThreadFactory()} で作ったスレッドプール。
+ * 設定されていない間は古い結果を返さず、通常通りQueryを実行する。
+ * </p>
+ */
+public class StaleWhileRevalidate {
+
+  static final Logger logger = Logger.getLogger(StaleWhileRevalidate.class.getName());
+
+  static final String LOCK_PREFIX = "memvache.refresh@";
+
+  /** やり直しが終わらなかった時に、ロックが外れるまでの秒数 */
+  static final int LOCK_SECONDS = 30;
+
+  static final ThreadLocal<Boolean> refreshing = new ThreadLocal<Boolean>();
+
+  static volatile Executor executor;
+
+  /**
+   * やり直しを実行するExecutorを設定する。<br>
+   * Executorのスレッドは、App EngineのAPIを呼べるものでなければならない。
+   * @param executor null の場合は古い結果を返さない
+   */
+  public static void setExecutor(Executor executor) {
+    StaleWhileRevalidate.executor = executor;
+  }
+
+  /**
+   * @return やり直しを実行するExecutorが設定されている場合 true。設定されていなければ古い結果を返してはいけない
+   */
+  public static boolean isEnabled() {
+    return executor != null;
+  }
+
+  /**
+   * staleKind の設定値を読み取る。
+   * @param value "Kind:秒,Kind:秒"
+   * @return Kind毎の秒数
+   */
+  static Map<String, Integer> parse(String value) {
+    Map<String, Integer> map = new HashMap<String, Integer>();
+    if (value == null || "".equals(value)) {
+      return map;
+    }
+    for (String pair : value.split(",")) {
+      int index = pair.lastIndexOf(':');
+      if (index <= 0) {
+        logger.warning("invalid staleKind: " + pair);
+        continue;
+      }
+      map.put(pair.substring(0, index).trim(), Integer.parseInt(pair.substring(index + 1).trim()));
+    }
+    return map;
+  }
+
+  /**
+   * @return 現在のスレッドがやり直しのQueryを実行中の場合 true。この間は古い結果を返してはいけない
+   */
+  public static boolean isRefreshing() {
+    return refreshing.get() != null;
+  }
+
+  /**
+   * 他で実行中でなければ、裏でQueryをやり直す。<br>
+   * やり直しのRunQueryは通常通り各Strategyを通るので、その後処理でキャッシュが差し替わる。
+   * ロックの書き込みは {@link MemcacheServiceWrapper} のタイムアウトで打ち切られ、その場合は始めない。
+   * @param lockKey Queryを識別するKey
+   * @param request RunQueryのリクエスト
+   * @return やり直しを始めた場合 true。Executorが設定されていない場合は false
+   */
+  public static boolean refresh(String lockKey, final byte[] request) {
+    Executor current = executor;
+    if (current == null) {
+      return false;
+    }
+    final MemcacheService memcache = MemvacheDelegate.getMemcache();
+    final String key = LOCK_PREFIX + lockKey;
+    if (!memcache.put(
+        key, 1, Expiration.byDeltaSeconds(LOCK_SECONDS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+      return false;
+    }
+    final Thread caller = Thread.currentThread();
+    try {
+      current.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              refreshing.set(Boolean.TRUE);
+              try {
+                ApiProxy.makeSyncCall(MemvacheDelegate.DATASTORE_V3, "RunQuery", request);
+                MemvacheMetrics.get().increment("query.refresh");
+              } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "cannot refresh query.", e);
+              } finally {
+                refreshing.remove();
+                memcache.delete(key);
+                // 使い回されるスレッドに、このやり直しのStrategyを残さない
+                if (Thread.currentThread() != caller) {
+                  @SuppressWarnings("unchecked")
+                  Delegate<Environment> delegate = ApiProxy.getDelegate();
+                  if (delegate instanceof MemvacheDelegate) {
+                    ((MemvacheDelegate) delegate).initStrategies();
+                  }
+                }
+              }
+            }
+          });
+      return true;
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "cannot start refreshing query.", e);
+      memcache.delete(key);
+      return false;
+    }
+  }
+}
@@ -3,8 +3,13 @@ package jp.honestyworks.pbcache;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import net.vvakame.memvache.CircuitBreaker;
+import net.vvakame.memvache.MemcacheServiceWrapper;
 import org.junit.Test;
 import org.slim3.tester.AppEngineTestCase;
 
@@ -64,4 +69,115 @@ public class CacheServiceTest extends AppEngineTestCase {
       CacheService.CACHE_SIZE_LIMIT = originalLimit;
     }
   }
+
+  @Test
+  public void generation_isInitializedAndIncremented() {
+    CacheService cache = new CacheService();
+    cache.useLocalCache(false);
+
+    assertThat(
+        "a read does not create the counter",
+        cache.getGeneration("generation-test"),
+        nullValue());
+    Long initial = cache.initGeneration("generation-test");
+    assertThat(initial, notNullValue());
+    assertThat(cache.getGeneration("generation-test"), is(initial));
+    assertThat(cache.initGeneration("generation-test"), is(initial));
+
+    Long bumped = cache.incrementGeneration("generation-test");
+
+    assertThat(bumped, is(initial + 1));
+    assertThat(cache.getGeneration("generation-test"), is(bumped));
+  }
+
+  @Test
+  public void getGeneration_breakerOpenIsMiss() {
+    CacheService cache = new CacheService();
+    cache.useLocalCache(false);
+    Long initial = cache.initGeneration("breaker-test");
+    CircuitBreaker breaker = MemcacheServiceWrapper.getCircuitBreaker();
+    try {
+      while (breaker.getState() == CircuitBreaker.State.CLOSED) {
+        breaker.onFailure();
+      }
+      assertThat(cache.getGeneration("breaker-test"), nullValue());
+      assertThat(cache.initGeneration("breaker-test"), nullValue());
+    } finally {
+      breaker.reset();
+    }
+    assertThat(cache.getGeneration("breaker-test"), is(initial));
+  }
+
+  @Test
+  public void get_chunkOfOtherWriteIsMiss() {
+    int originalLimit = CacheService.CACHE_SIZE_LIMIT;
+    CacheService.CACHE_SIZE_LIMIT = 4;
+    try {
+      CacheService cache = new CacheService();
+      cache.useLocalCache(false);
+      byte[] value = new byte[] {1, 2, 3, 4, 5, 6, 7};
+
+      cache.put("mixed-bytes", value);
+      MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+      ChunkManifest manifest =
+          ChunkManifest.parse("mixed-bytes", (String) memcache.get("mixed-bytes"));
+      // one of the chunks was broken
+      memcache.put(manifest.getChunkKeys().get(1), new byte[] {9, 9, 9});
+
+      assertThat(cache.get("mixed-bytes"), nullValue());
+    } finally {
+      CacheService.CACHE_SIZE_LIMIT = originalLimit;
+    }
+  }
+
+  @Test
+  public void put_chunksOfEachWriteHaveOwnKeys() {
+    int originalLimit = CacheService.CACHE_SIZE_LIMIT;
+    CacheService.CACHE_SIZE_LIMIT = 4;
+    try {
+      CacheService cache = new CacheService();
+      cache.useLocalCache(false);
+      MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+      cache.put("rewritten-bytes", new byte[] {1, 2, 3, 4, 5, 6, 7});
+      String first = (String) memcache.get("rewritten-bytes");
+      cache.put("rewritten-bytes", new byte[] {7, 6, 5, 4, 3, 2, 1});
+
+      // the chunks of the first write are not overwritten by the second
+      List<String> firstKeys = ChunkManifest.parse("rewritten-bytes", first).getChunkKeys();
+      List<String> secondKeys =
+          ChunkManifest.parse("rewritten-bytes", (String) memcache.get("rewritten-bytes"))
+              .getChunkKeys();
+      assertThat(firstKeys.get(0).equals(secondKeys.get(0)), is(false));
+      assertThat(memcache.contains(firstKeys.get(0)), is(true));
+      assertThat((byte[]) cache.get("rewritten-bytes"), is(new byte[] {7, 6, 5, 4, 3, 2, 1}));
+    } finally {
+      CacheService.CACHE_SIZE_LIMIT = originalLimit;
+    }
+  }
+
+  @Test
+  public void put_storesEncodedBytes() {
+    CacheService cache = new CacheService();
+    cache.useLocalCache(false);
+    CacheItem item = new CacheItem(new byte[] {1, 2, 3}, 7L);
+
+    cache.put("encoded-item", item);
+
+    Object raw = MemcacheServiceFactory.getMemcacheService().get("encoded-item");
+    assertThat(raw, instanceOf(byte[].class));
+    CacheItem cached = cache.getCacheItem("encoded-item");
+    assertThat((byte[]) cached.getData(), is(new byte[] {1, 2, 3}));
+    assertThat(cached.getGeneration(), is(7L));
+  }
+
+  @Test
+  public void get_legacyValueIsReturnedAsIs() {
+    CacheService cache = new CacheService();
+    cache.useLocalCache(false);
+
+    MemcacheServiceFactory.getMemcacheService().put("legacy-value", "legacy");
+
+    assertThat((String) cache.get("legacy-value"), is("legacy"));
+  }
 }
@@ -0,0 +1,47 @@
+package jp.honestyworks.pbcache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * {@link ChunkUtil} のテストケース。
+ */
+public class ChunkUtilTest {
+
+  @Test
+  public void chunkOutputStream_splitsIntoChunkSize() {
+    ChunkUtil.ChunkOutputStream output = new ChunkUtil.ChunkOutputStream(10000);
+    byte[] data = new byte[25000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+
+    output.write(data, 0, data.length);
+    List<byte[]> chunks = output.getChunks();
+
+    assertThat(output.size(), is(25000L));
+    assertThat(chunks.size(), is(3));
+    assertThat(chunks.get(0).length, is(10000));
+    assertThat(chunks.get(2).length, is(5000));
+    assertThat(ChunkUtil.packChunks(chunks), is(data));
+  }
+
+  @Test
+  public void writeAndToObject_roundTripWithoutPacking() throws Exception {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      builder.append(i);
+    }
+    String value = builder.toString();
+
+    ChunkUtil.ChunkOutputStream output = new ChunkUtil.ChunkOutputStream(100);
+    Codecs.getDefault().write(value, output);
+    List<byte[]> chunks = output.getChunks();
+
+    assertThat(chunks.size() > 1, is(true));
+    assertThat((String) StreamUtil.toObject(ChunkUtil.newInputStream(chunks)), is(value));
+  }
+}
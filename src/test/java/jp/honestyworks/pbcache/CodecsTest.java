@@ -0,0 +1,121 @@
+package jp.honestyworks.pbcache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.apphosting.api.DatastorePb.Query;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * {@link Codecs} のテストケース。
+ */
+public class CodecsTest {
+
+  @Test
+  public void builtInCodecs_roundTrip() {
+    byte[] bytes = new byte[] {1, 2, 3};
+    Date date = new Date(1234567890L);
+
+    assertThat(StreamUtil.toBytes(bytes)[0], is(Codecs.BYTES_ID));
+    assertThat((byte[]) StreamUtil.toObject(StreamUtil.toBytes(bytes)), is(bytes));
+    assertThat(StreamUtil.toBytes("文字列")[0], is(Codecs.STRING_ID));
+    assertThat((String) StreamUtil.toObject(StreamUtil.toBytes("文字列")), is("文字列"));
+    assertThat(StreamUtil.toBytes(date)[0], is(Codecs.DATE_ID));
+    assertThat((Date) StreamUtil.toObject(StreamUtil.toBytes(date)), is(date));
+  }
+
+  @Test
+  public void cacheItem_roundTrip() {
+    CacheItem item = new CacheItem(new byte[] {4, 5, 6}, 42L, new byte[] {7, 8});
+
+    byte[] encoded = StreamUtil.toBytes(item);
+    CacheItem decoded = (CacheItem) StreamUtil.toObject(encoded);
+
+    assertThat(encoded[0], is(Codecs.CACHE_ITEM_ID));
+    assertThat((byte[]) decoded.getData(), is(new byte[] {4, 5, 6}));
+    assertThat(decoded.getGeneration(), is(42L));
+    assertThat(decoded.getRequest(), is(new byte[] {7, 8}));
+    assertThat(decoded.getTimestamp(), is(item.getTimestamp()));
+  }
+
+  @Test
+  public void protocolMessage_roundTrip() {
+    Query query = new Query();
+    query.setApp("app");
+    query.setKind("hoge");
+
+    byte[] encoded = StreamUtil.toBytes(query);
+    Query decoded = (Query) StreamUtil.toObject(encoded);
+
+    assertThat(encoded[0], is(Codecs.PROTOCOL_MESSAGE_ID));
+    assertThat(decoded.getKind(), is("hoge"));
+  }
+
+  @Test
+  public void protocolMessage_otherClassIsNotInstantiated() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeUTF(ArrayList.class.getName());
+    Codecs.writeBytes(out, new byte[0]);
+    out.close();
+
+    try {
+      new Codecs.ProtocolMessageCodec()
+          .decode(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage(), is("not a ProtocolMessage: java.util.ArrayList"));
+    }
+  }
+
+  @Test
+  public void corruptLength_isMiss() throws Exception {
+    ByteArrayOutputStream negative = new ByteArrayOutputStream();
+    negative.write(Codecs.BYTES_ID);
+    new DataOutputStream(negative).writeInt(-5);
+    assertThat(StreamUtil.toObject(negative.toByteArray()), nullValue());
+
+    ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+    truncated.write(Codecs.STRING_ID);
+    DataOutputStream out = new DataOutputStream(truncated);
+    out.writeInt(Integer.MAX_VALUE);
+    out.write(new byte[] {1, 2, 3});
+    assertThat(StreamUtil.toObject(truncated.toByteArray()), nullValue());
+
+    CacheItem item = new CacheItem(new byte[] {4}, 1L, new byte[] {7, 8});
+    byte[] encoded = StreamUtil.toBytes(item);
+    // request length follows the id, timestamp and generation
+    encoded[1 + 8 + 8] = (byte) 0x80;
+    assertThat(StreamUtil.toObject(encoded), nullValue());
+  }
+
+  @Test
+  public void otherObjects_useJavaSerialization() {
+    List<String> list = new ArrayList<String>();
+    list.add("a");
+
+    byte[] encoded = StreamUtil.toBytes(list);
+
+    assertThat(encoded[0], is(Codecs.JAVA_ID));
+    assertThat(StreamUtil.toObject(encoded), is((Object) list));
+  }
+
+  @Test
+  public void legacyJavaSerializedValue_isReadable() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject("legacy");
+    oos.close();
+
+    assertThat((String) StreamUtil.toObject(baos.toByteArray()), is("legacy"));
+  }
+}
@@ -0,0 +1,39 @@
+package jp.honestyworks.pbcache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link Fingerprint} のテストケース。
+ */
+public class FingerprintTest {
+
+  @Test
+  public void toHex_knownValue() throws Exception {
+    byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+
+    assertThat(Fingerprint.toHex(data), is("e34bbc7bbc071b6c7a433ca9c49a9347"));
+  }
+
+  @Test
+  public void toHex_isFixedLength() {
+    assertThat(Fingerprint.toHex(new byte[0]).length(), is(32));
+    assertThat(Fingerprint.toHex(new byte[1000]).length(), is(32));
+    assertThat(Fingerprint.toHex(new byte[] {1}), not(Fingerprint.toHex(new byte[] {2})));
+  }
+
+  @Test
+  public void hasher_matchesToLong() {
+    for (int length = 0; length <= 40; length++) {
+      byte[] data = new byte[length];
+      Fingerprint.Hasher hasher = new Fingerprint.Hasher();
+      for (int i = 0; i < length; i++) {
+        data[i] = (byte) (i * 31 + 7);
+        hasher.putByte(data[i]);
+      }
+      assertThat(hasher.toLong(), is(Fingerprint.toLong(data)));
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package jp.honestyworks.pbcache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link LocalCache} のテストケース。
+ */
+public class LocalCacheTest {
+
+  @Test
+  public void putAndGet_countsHitsAndMisses() {
+    LocalCache cache = new LocalCache(1024 * 1024, 60000);
+
+    cache.put("a", "value");
+
+    assertThat((String) cache.get("a"), is("value"));
+    assertThat(cache.get("b"), nullValue());
+    assertThat(cache.getHitCount(), is(1L));
+    assertThat(cache.getMissCount(), is(1L));
+  }
+
+  @Test
+  public void put_nullRemovesEntry() {
+    LocalCache cache = new LocalCache(1024 * 1024, 60000);
+
+    cache.put("a", "value");
+    cache.put("a", null);
+
+    assertThat(cache.containsKey("a"), is(false));
+  }
+
+  @Test
+  public void get_expiredEntryIsMissing() throws InterruptedException {
+    LocalCache cache = new LocalCache(1024 * 1024, 60000);
+
+    cache.put("a", "value", 1);
+    Thread.sleep(10);
+
+    assertThat(cache.get("a"), nullValue());
+    assertThat(cache.size(), is(0));
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyUsedWhenOverBytes() {
+    // 16 segments * 2000 bytes
+    LocalCache cache = new LocalCache(16 * 2000, 60000);
+
+    for (int i = 0; i < 1000; i++) {
+      cache.put("key" + i, new byte[500]);
+    }
+
+    assertThat(cache.getWeightedSize() <= 16 * 2000, is(true));
+    assertThat(cache.getEvictionCount() > 0, is(true));
+    assertThat(cache.get("key999"), notNullValue());
+  }
+
+  @Test
+  public void put_tooLargeValueIsNotCached() {
+    LocalCache cache = new LocalCache(16 * 100, 60000);
+
+    cache.put("a", new byte[2000]);
+
+    assertThat(cache.containsKey("a"), is(false));
+  }
+
+  @Test
+  public void put_valueLargerThanSegmentShareIsCached() {
+    LocalCache cache = new LocalCache(16 * 2000, 60000);
+    for (int i = 0; i < 100; i++) {
+      cache.put("key" + i, new byte[500]);
+    }
+
+    // larger than 1/16 of the budget, evicts entries of the other segments
+    cache.put("large", new byte[20000]);
+
+    assertThat(cache.get("large"), notNullValue());
+    assertThat(cache.getWeightedSize() <= 16 * 2000, is(true));
+  }
+}
@@ -0,0 +1,73 @@
+package jp.honestyworks.pbcache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * {@link QueryCache} のテストケース。
+ */
+public class QueryCacheTest extends AppEngineTestCase {
+
+  @Test
+  public void getStaleQuery_returnsResultOfOldGeneration() {
+    QueryCache queryCache = CacheContext.getInstance().getQueryCache();
+    byte[] request = new byte[] {1, 2, 3};
+    byte[] response = new byte[] {4, 5};
+
+    cacheQuery(queryCache, "stale-test", request, response);
+    assertThat(queryCache.getQuery("stale-test", request), is(response));
+
+    assertThat("not invalidated yet", queryCache.getStaleQuery("stale-test", request), nullValue());
+
+    queryCache.removeQueries("stale-test", 60);
+
+    assertThat(queryCache.getQuery("stale-test", request), nullValue());
+    assertThat(queryCache.getStaleQuery("stale-test", request), is(response));
+    assertThat(queryCache.getStaleQuery("stale-test", new byte[] {9}), nullValue());
+
+    queryCache.removeQueries("stale-test", 60);
+    assertThat(
+        "not current just before the last write",
+        queryCache.getStaleQuery("stale-test", request),
+        nullValue());
+  }
+
+  @Test
+  public void getStaleQuery_withoutStaleSecondsIsMiss() {
+    QueryCache queryCache = CacheContext.getInstance().getQueryCache();
+    byte[] request = new byte[] {1, 2, 3};
+    cacheQuery(queryCache, "no-stale-test", request, new byte[] {4, 5});
+
+    queryCache.removeQueries("no-stale-test");
+
+    assertThat(queryCache.getStaleQuery("no-stale-test", request), nullValue());
+  }
+
+  @Test
+  public void putQuery_withoutObservedGenerationIsNotCached() {
+    QueryCache queryCache = CacheContext.getInstance().getQueryCache();
+    byte[] request = new byte[] {1, 2, 3};
+    byte[] response = new byte[] {4, 5};
+    cacheQuery(queryCache, "observed-test", request, new byte[] {6});
+
+    // the generation was not read before the query, so it may include a concurrent write
+    queryCache.removeQueries("observed-test");
+    queryCache.putQuery("observed-test", request, response);
+
+    assertThat(queryCache.getQuery("observed-test", request), nullValue());
+  }
+
+  /**
+   * Cache the result through getQuery, as only results whose generation was observed are cached.
+   * The first round creates the generation counter and the second one caches the result.
+   */
+  static void cacheQuery(QueryCache queryCache, String kind, byte[] request, byte[] response) {
+    for (int i = 0; i < 2; i++) {
+      queryCache.getQuery(kind, request);
+      queryCache.putQuery(kind, request, response);
+    }
+  }
+}
@@ -4,11 +4,16 @@ import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
 import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.apphosting.api.DatastorePb;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import net.vvakame.memvache.AggressiveQueryCacheStrategy.Settings;
 import org.junit.Test;
 import org.slim3.datastore.Datastore;
@@ -210,10 +215,131 @@ public class AggressiveQueryCacheStrategyTest extends ControllerTestCase {
     assertThat(query.asEntityList().size(), is(2));
   }
 
+  /**
+   * テストケース。
+   */
+  @Test
+  public void prefetchSize_adaptive() {
+    for (int i = 1; i <= 10; i++) {
+      Datastore.put(new Entity("kind", i));
+    }
+    Map<String, Integer> countMap = countDelegate.countMap;
+    for (int i = 0; i < QueryShape.MIN_RESULT_SAMPLES; i++) {
+      MemvacheDelegate.getMemcache().clearAll();
+      int size =
+          DatastoreServiceFactory.getDatastoreService()
+              .prepare(new com.google.appengine.api.datastore.Query("kind"))
+              .asList(FetchOptions.Builder.withPrefetchSize(2).chunkSize(2))
+              .size();
+      assertThat(size, is(10));
+    }
+    assertThat("Nextで最後まで読んだ件数", countMap.get("datastore_v3@Next") > 0, is(true));
+    assertThat(QueryShape.shapes.size(), is(1));
+    QueryShape shape = QueryShape.shapes.values().iterator().next();
+    assertThat(shape.getResultSizes().getCount(), is(QueryShape.MIN_RESULT_SAMPLES));
+    assertThat(shape.prefetchCount(new DatastorePb.Query(), 1000), is(11));
+    DatastorePb.Query limited = new DatastorePb.Query();
+    limited.setLimit(5);
+    assertThat(shape.prefetchCount(limited, 1000), is(5));
+
+    MemvacheDelegate.getMemcache().clearAll();
+    countMap.clear();
+    assertThat(Datastore.query("kind").asEntityList().size(), is(10));
+    assertThat("結果件数を覆うので1回で終わる", countMap.get("datastore_v3@Next"), is(0));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void prefetchCount_isExactPercentile() {
+    QueryShape shape = new QueryShape(0);
+    for (int i = 0; i < QueryShape.MIN_RESULT_SAMPLES - 1; i++) {
+      shape.recordResultSize(33);
+    }
+    assertThat("記録が足りない", shape.prefetchCount(new DatastorePb.Query(), 20), is(20));
+
+    for (int i = 0; i < 32; i++) {
+      shape.recordResultSize(33);
+    }
+    shape.recordResultSize(100);
+    assertThat(shape.getResultSizes().getPercentile(0.95), is(63L));
+    assertThat("バケットの上限ではなく件数から", shape.prefetchCount(new DatastorePb.Query(), 20), is(34));
+
+    for (int i = 0; i < QueryShape.RECENT_RESULT_SIZES; i++) {
+      shape.recordResultSize(5);
+    }
+    assertThat("直近の件数に追従する", shape.prefetchCount(new DatastorePb.Query(), 20), is(6));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void staleWhileRevalidate() {
+    Settings settings = Settings.getInstance();
+    Map<String, Integer> original = settings.getStaleSeconds();
+    Map<String, Integer> staleSeconds = new HashMap<String, Integer>();
+    staleSeconds.put("hoge", 60);
+    settings.setStaleSeconds(staleSeconds);
+    // やり直しをその場で実行させる
+    StaleWhileRevalidate.setExecutor(
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            command.run();
+          }
+        });
+    try {
+      Datastore.put(new Entity("hoge", 1));
+      Datastore.put(new Entity("fuga", 1));
+      assertThat(Datastore.query("hoge").asEntityList().size(), is(1));
+      assertThat(Datastore.query("fuga").asEntityList().size(), is(1));
+
+      Datastore.put(new Entity("hoge", 2));
+      Datastore.put(new Entity("fuga", 2));
+      Map<String, Integer> countMap = countDelegate.countMap;
+      countMap.clear();
+      assertThat("古い結果を返す", Datastore.query("hoge").asEntityList().size(), is(1));
+      assertThat("裏でやり直した", countMap.get("datastore_v3@RunQuery"), is(1));
+      assertThat("対象外", Datastore.query("fuga").asEntityList().size(), is(2));
+
+      countMap.clear();
+      assertThat("差し替わった", Datastore.query("hoge").asEntityList().size(), is(2));
+      assertThat(countMap.get("datastore_v3@RunQuery"), is(0));
+    } finally {
+      settings.setStaleSeconds(original);
+      StaleWhileRevalidate.setExecutor(null);
+    }
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void staleWhileRevalidate_withoutExecutor() {
+    Settings settings = Settings.getInstance();
+    Map<String, Integer> original = settings.getStaleSeconds();
+    Map<String, Integer> staleSeconds = new HashMap<String, Integer>();
+    staleSeconds.put("hoge", 60);
+    settings.setStaleSeconds(staleSeconds);
+    try {
+      Datastore.put(new Entity("hoge", 1));
+      assertThat(Datastore.query("hoge").asEntityList().size(), is(1));
+
+      Datastore.put(new Entity("hoge", 2));
+      assertThat("古い結果を返さない", Datastore.query("hoge").asEntityList().size(), is(2));
+    } finally {
+      settings.setStaleSeconds(original);
+    }
+  }
+
   @Override
   public void setUp() throws Exception {
     super.setUp();
 
+    QueryShape.clear();
+
     // かならず RpcCounterDelegate が最初
     countDelegate = RpcCounterDelegate.install();
 
@@ -0,0 +1,312 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslatorPublic;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyTranslatorPublic;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.DatastorePb.GetRequest;
+import com.google.apphosting.api.DatastorePb.NextRequest;
+import com.google.apphosting.api.DatastorePb.PutRequest;
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.apphosting.api.DatastorePb.QueryResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * Strategyを1つずつ適用した時の、RPC1回あたりのアロケーション量が予算内に収まっているかのテストケース。<br>
+ * 予算は allocation-budgets.properties に Strategy名.メソッド名=バイト数 で書く。
+ * 親の {@link Delegate} (スタブ)の中でのアロケーションは含めない。
+ * 予算が書かれていないものは検査せず、1つも無いStrategyのテストはスキップする。
+ * <p>
+ * {@code -Dallocation.report=true} で計測値を標準出力に出す。予算を決める・見直す時に使うこと。
+ * </p>
+ */
+public class AllocationBudgetTest extends AppEngineTestCase {
+
+  static final String KIND = "Allocation";
+
+  static final int ENTITIES = 20;
+
+  static final int BATCH = 10;
+
+  static final int PAGE_SIZE = 5;
+
+  static final int WARMUP = 20;
+
+  static final int ITERATIONS = 50;
+
+  static final String[] METHODS = {"Get", "Put", "RunQuery", "Next"};
+
+  static final com.sun.management.ThreadMXBean threadMXBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  static final Properties budgets = loadBudgets();
+
+  int queries;
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void none() {
+    assertBudgets(null);
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void getPutCache() {
+    assertBudgets(GetPutCacheStrategy.class);
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void putCache() {
+    assertBudgets(PutCacheStrategy.class);
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void queryKeysOnly() {
+    assertBudgets(QueryKeysOnlyStrategy.class);
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void aggressiveQueryCache() {
+    assertBudgets(AggressiveQueryCacheStrategy.class);
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void queryCache() {
+    assertBudgets(QueryCacheStrategy.class);
+  }
+
+  void assertBudgets(Class<? extends Strategy> clazz) {
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    String name = clazz == null ? "none" : clazz.getSimpleName();
+    AllocationDelegate allocation = AllocationDelegate.install();
+    StrategyBuilder builder = StrategyBuilder.newBuilder();
+    if (clazz != null) {
+      builder.addStrategy(MemvacheDelegate.DATASTORE_V3, clazz);
+    }
+    MemvacheDelegate memvache = MemvacheDelegate.install(builder.buid());
+    try {
+      for (int i = 1; i <= ENTITIES; i++) {
+        DatastoreServiceFactory.getDatastoreService().put(entity(i));
+      }
+      List<String> overs = new ArrayList<String>();
+      boolean budgeted = false;
+      for (String method : METHODS) {
+        long bytes = measure(memvache, allocation, method);
+        Long budget = budget(name + "." + method);
+        if (Boolean.getBoolean("allocation.report")) {
+          System.out.println(name + "." + method + "=" + bytes + " (budget " + budget + ")");
+        }
+        if (budget == null) {
+          continue;
+        }
+        budgeted = true;
+        if (bytes > budget) {
+          overs.add(name + "." + method + " allocated " + bytes + " bytes, budget " + budget);
+        }
+      }
+      assertThat(overs.toString(), overs.isEmpty(), is(true));
+      // 計測はしたが、検査する予算が無い
+      Assume.assumeTrue(budgeted);
+    } finally {
+      memvache.uninstall();
+      allocation.uninstall();
+    }
+  }
+
+  /**
+   * RPC1回あたりのアロケーション量の平均を計測する。
+   */
+  long measure(MemvacheDelegate memvache, AllocationDelegate allocation, String method) {
+    Environment env = ApiProxy.getCurrentEnvironment();
+    long total = 0;
+    for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+      // 1回を1リクエストとみなす
+      memvache.initStrategies();
+      byte[] request = request(memvache, env, method);
+
+      allocation.parentBytes = 0;
+      long start = threadMXBean.getCurrentThreadAllocatedBytes();
+      memvache.makeSyncCall(env, MemvacheDelegate.DATASTORE_V3, method, request);
+      long bytes = threadMXBean.getCurrentThreadAllocatedBytes() - start - allocation.parentBytes;
+      if (WARMUP <= i) {
+        total += bytes;
+      }
+    }
+    return total / ITERATIONS;
+  }
+
+  byte[] request(MemvacheDelegate memvache, Environment env, String method) {
+    if ("Get".equals(method)) {
+      GetRequest requestPb = new GetRequest();
+      for (int i = 1; i <= BATCH; i++) {
+        requestPb.addKey(KeyTranslatorPublic.convertToPb(key(i)));
+      }
+      return requestPb.toByteArray();
+    } else if ("Put".equals(method)) {
+      PutRequest requestPb = new PutRequest();
+      for (int i = 1; i <= BATCH; i++) {
+        requestPb.addEntity(EntityTranslatorPublic.convertToPb(entity(i)));
+      }
+      return requestPb.toByteArray();
+    } else if ("RunQuery".equals(method)) {
+      return query(env, ENTITIES).toByteArray();
+    } else {
+      // Queryのキャッシュに当たらないよう毎回違うQueryを投げてCursorを得る
+      Query query = query(env, PAGE_SIZE);
+      query.setLimit(ENTITIES + queries++);
+      byte[] response =
+          memvache.makeSyncCall(
+              env, MemvacheDelegate.DATASTORE_V3, "RunQuery", query.toByteArray());
+      QueryResult resultPb = new QueryResult();
+      resultPb.mergeFrom(response);
+      NextRequest requestPb = new NextRequest();
+      requestPb.getMutableCursor().copyFrom(resultPb.getCursor());
+      requestPb.setCount(PAGE_SIZE);
+      return requestPb.toByteArray();
+    }
+  }
+
+  Query query(Environment env, int count) {
+    Query query = new Query();
+    query.setApp(env.getAppId());
+    query.setKind(KIND);
+    query.setCount(count);
+    return query;
+  }
+
+  static Key key(long id) {
+    return KeyFactory.createKey(KIND, id);
+  }
+
+  static Entity entity(long id) {
+    Entity entity = new Entity(key(id));
+    entity.setProperty("name", "name" + id);
+    entity.setProperty("value", id);
+    return entity;
+  }
+
+  /**
+   * 予算を取得する。書かれていなければ {@code null} 。
+   */
+  static Long budget(String key) {
+    String budget = budgets.getProperty(key, budgets.getProperty("default"));
+    if (budget == null) {
+      return null;
+    }
+    return Long.valueOf(budget.trim());
+  }
+
+  static Properties loadBudgets() {
+    Properties properties = new Properties();
+    InputStream is =
+        AllocationBudgetTest.class.getResourceAsStream("/allocation-budgets.properties");
+    try {
+      properties.load(is);
+      is.close();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return properties;
+  }
+
+  /**
+   * 親の {@link Delegate} の中で、呼び出したスレッドがアロケーションしたバイト数を数える {@link Delegate}。
+   */
+  static class AllocationDelegate implements Delegate<Environment> {
+
+    final Delegate<Environment> parent;
+
+    long parentBytes;
+
+    static AllocationDelegate install() {
+      @SuppressWarnings("unchecked")
+      Delegate<Environment> originalDelegate = ApiProxy.getDelegate();
+      AllocationDelegate newDelegate = new AllocationDelegate(originalDelegate);
+      ApiProxy.setDelegate(newDelegate);
+      return newDelegate;
+    }
+
+    AllocationDelegate(Delegate<Environment> parent) {
+      this.parent = parent;
+    }
+
+    void uninstall() {
+      ApiProxy.setDelegate(parent);
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment env, String service, String method, byte[] request)
+        throws ApiProxyException {
+      long start = threadMXBean.getCurrentThreadAllocatedBytes();
+      try {
+        return parent.makeSyncCall(env, service, method, request);
+      } finally {
+        parentBytes += threadMXBean.getCurrentThreadAllocatedBytes() - start;
+      }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(
+        Environment env, String service, String method, byte[] request, ApiConfig config) {
+      long start = threadMXBean.getCurrentThreadAllocatedBytes();
+      try {
+        return parent.makeAsyncCall(env, service, method, request, config);
+      } finally {
+        parentBytes += threadMXBean.getCurrentThreadAllocatedBytes() - start;
+      }
+    }
+
+    @Override
+    public void log(Environment env, LogRecord logRecord) {
+      parent.log(env, logRecord);
+    }
+
+    @Override
+    public void flushLogs(Environment env) {
+      parent.flushLogs(env);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment env) {
+      return parent.getRequestThreads(env);
+    }
+  }
+}
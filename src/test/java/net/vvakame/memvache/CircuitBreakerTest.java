@@ -0,0 +1,54 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link CircuitBreaker} のテストケース。
+ */
+public class CircuitBreakerTest {
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void opensAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onSuccess();
+    breaker.onFailure();
+    breaker.onFailure();
+    assertThat("連続していないのでCLOSED", breaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+    breaker.onFailure();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    assertThat(breaker.allowRequest(), is(false));
+    assertThat(breaker.getRejectedCount(), is(1L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void halfOpen_allowsOneProbe() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 0);
+    breaker.onFailure();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+
+    assertThat(breaker.allowRequest(), is(true));
+    assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+    assertThat("probe中は他を通さない", breaker.allowRequest(), is(false));
+
+    breaker.onFailure();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+
+    assertThat(breaker.allowRequest(), is(true));
+    breaker.onSuccess();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    assertThat(breaker.allowRequest(), is(true));
+  }
+}
@@ -0,0 +1,262 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * 他のリクエストの書き込みが割り込んだ時に、古い値がキャッシュに残らないことを確かめるテストケース。<br>
+ * {@link StressBenchmark} の一貫性の検査で見つかった競合を、RPCの前後に決まった順で割り込ませて再現する。
+ * 割り込ませる処理は別のスレッド(別のリクエスト)で最後まで実行する。
+ */
+public class ConsistencyTest extends AppEngineTestCase {
+
+  final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  InterleavingDelegate interleaving;
+
+  MemvacheDelegate memvacheDelegate;
+
+  /**
+   * QueryがDatastoreで実行されてから結果をキャッシュするまでの間に、他のリクエストがPutする。
+   */
+  @Test
+  public void query_putWhileQueryRuns() {
+    datastore.put(new Entity("hoge", 1));
+    interleaving.after(
+        "RunQuery",
+        new Runnable() {
+          @Override
+          public void run() {
+            datastore.put(new Entity("hoge", 2));
+          }
+        });
+
+    assertThat("Putより前に実行された結果", query("hoge").size(), is(1));
+    assertThat(interleaving.fired, is(true));
+    assertThat("古い結果がキャッシュされていない", query("hoge").size(), is(2));
+  }
+
+  /**
+   * Putの前のカウンタのインクリメントとPutの間に、他のリクエストがQueryを実行する。
+   */
+  @Test
+  public void query_runBetweenInvalidationAndPut() {
+    datastore.put(new Entity("hoge", 1));
+    interleaving.before(
+        "Put",
+        new Runnable() {
+          @Override
+          public void run() {
+            assertThat(query("hoge").size(), is(1));
+          }
+        });
+
+    datastore.put(new Entity("hoge", 2));
+    assertThat(interleaving.fired, is(true));
+    assertThat("古い結果がキャッシュされていない", query("hoge").size(), is(2));
+  }
+
+  /**
+   * GetがDatastoreから読んでからキャッシュに入れるまでの間に、他のリクエストがPutする。
+   */
+  @Test
+  public void get_putWhileReading() throws Exception {
+    final Entity entity = new Entity("hoge", 1);
+    entity.setProperty("version", 1L);
+    final Key key = datastore.put(entity);
+    MemvacheDelegate.getMemcache().clearAll();
+    interleaving.after(
+        "Get",
+        new Runnable() {
+          @Override
+          public void run() {
+            entity.setProperty("version", 2L);
+            datastore.put(entity);
+          }
+        });
+
+    assertThat("Putより前に読んだ値", (Long) datastore.get(key).getProperty("version"), is(1L));
+    assertThat(interleaving.fired, is(true));
+    assertThat("新しい値を古い値で上書きしていない", (Long) datastore.get(key).getProperty("version"), is(2L));
+  }
+
+  List<Entity> query(String kind) {
+    return datastore.prepare(new Query(kind)).asList(FetchOptions.Builder.withDefaults());
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    QueryShape.clear();
+    interleaving = InterleavingDelegate.install();
+    memvacheDelegate =
+        MemvacheDelegate.install(
+            StrategyBuilder.newBuilder()
+                .addStrategy(MemvacheDelegate.DATASTORE_V3, AggressiveQueryCacheStrategy.class)
+                .addStrategy(MemvacheDelegate.DATASTORE_V3, QueryKeysOnlyStrategy.class)
+                .addStrategy(MemvacheDelegate.DATASTORE_V3, GetPutCacheStrategy.class)
+                .buid());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    memvacheDelegate.uninstall();
+    interleaving.uninstall();
+    super.tearDown();
+  }
+
+  /**
+   * datastore_v3 の指定したmethodのRPCの前か後で、一度だけ別のスレッドで処理を最後まで実行する {@link Delegate}。<br>
+   * {@link MemvacheDelegate} の下に置くので、Strategyの前処理と後処理の間に割り込ませられる。
+   */
+  static class InterleavingDelegate implements Delegate<Environment> {
+
+    final Delegate<Environment> parent;
+
+    String method;
+
+    boolean afterCall;
+
+    Runnable action;
+
+    volatile boolean fired;
+
+    static InterleavingDelegate install() {
+      @SuppressWarnings("unchecked")
+      Delegate<Environment> originalDelegate = ApiProxy.getDelegate();
+      InterleavingDelegate newDelegate = new InterleavingDelegate(originalDelegate);
+      ApiProxy.setDelegate(newDelegate);
+      return newDelegate;
+    }
+
+    InterleavingDelegate(Delegate<Environment> parent) {
+      this.parent = parent;
+    }
+
+    void uninstall() {
+      ApiProxy.setDelegate(parent);
+    }
+
+    synchronized void before(String method, Runnable action) {
+      this.method = method;
+      this.afterCall = false;
+      this.action = action;
+    }
+
+    synchronized void after(String method, Runnable action) {
+      this.method = method;
+      this.afterCall = true;
+      this.action = action;
+    }
+
+    synchronized Runnable take(String service, String method, boolean afterCall) {
+      if (action == null
+          || !MemvacheDelegate.DATASTORE_V3.equals(service)
+          || !method.equals(this.method)
+          || afterCall != this.afterCall) {
+        return null;
+      }
+      Runnable taken = action;
+      action = null;
+      return taken;
+    }
+
+    /**
+     * 別のスレッドで処理を最後まで実行する。
+     */
+    void interleave(Environment env, Runnable action) {
+      if (action == null) {
+        return;
+      }
+      fired = true;
+      final Environment environment = env;
+      final Runnable runnable = action;
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      Thread thread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  ApiProxy.setEnvironmentForCurrentThread(environment);
+                  try {
+                    runnable.run();
+                  } catch (Throwable e) {
+                    failure.set(e);
+                  } finally {
+                    ApiProxy.clearEnvironmentForCurrentThread();
+                  }
+                }
+              },
+              "interleaving");
+      thread.start();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      if (failure.get() != null) {
+        throw new IllegalStateException(failure.get());
+      }
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment env, String service, String method, byte[] request)
+        throws ApiProxyException {
+      interleave(env, take(service, method, false));
+      byte[] response = parent.makeSyncCall(env, service, method, request);
+      interleave(env, take(service, method, true));
+      return response;
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(
+        Environment env, String service, String method, byte[] request, ApiConfig config) {
+      interleave(env, take(service, method, false));
+      Future<byte[]> response = parent.makeAsyncCall(env, service, method, request, config);
+      Runnable action = take(service, method, true);
+      if (action != null) {
+        // Datastoreでの処理が終わってから割り込ませる
+        try {
+          response.get();
+        } catch (Exception e) {
+          // 結果は呼び出し元が受け取る
+        }
+        interleave(env, action);
+      }
+      return response;
+    }
+
+    @Override
+    public void log(Environment env, LogRecord logRecord) {
+      parent.log(env, logRecord);
+    }
+
+    @Override
+    public void flushLogs(Environment env) {
+      parent.flushLogs(env);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment env) {
+      return parent.getRequestThreads(env);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyTranslatorPublic;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.DatastorePb;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * {@link EntityKeyEncoder} のテストケース。
+ */
+public class EntityKeyEncoderTest extends AppEngineTestCase {
+
+  EntityKeyEncoder.Format original;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    original = EntityKeyEncoder.getFormat();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    EntityKeyEncoder.setFormat(original);
+    super.tearDown();
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void encode_distinguishesKeys() {
+    EntityKeyEncoder encoder = new EntityKeyEncoder();
+    Key parent = Datastore.createKey("hoge", "a:b");
+    Key child = Datastore.createKey(parent, "fuga", 1);
+
+    assertThat(encoder.encode(Datastore.createKey("hoge", 1)), is("E||hoge:1"));
+    assertThat(encoder.encode(Datastore.createKey("hoge", 36)), is("E||hoge:10"));
+    assertThat(encoder.encode(Datastore.createKey("hoge", "1")), is("E||hoge\"1"));
+    assertThat(encoder.encode(parent), is("E||hoge\"a\\:b"));
+    assertThat(encoder.encode(child), is("E||hoge\"a\\:b|fuga:1"));
+    assertThat(encoder.encode(KeyTranslatorPublic.convertToPb(child)), is(encoder.encode(child)));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void encode_withNamespace() {
+    EntityKeyEncoder encoder = new EntityKeyEncoder();
+    Key key = KeyFactory.createKey("hoge", 1);
+    Reference reference = KeyTranslatorPublic.convertToPb(key);
+    reference.setNameSpace("ns|1");
+
+    assertThat(encoder.encode(reference), is("E|ns\\|1|hoge:1"));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void writeKeys_byFormat() {
+    EntityKeyEncoder encoder = new EntityKeyEncoder();
+    Key key = Datastore.createKey("hoge", 1);
+    List<Reference> references = Arrays.asList(KeyTranslatorPublic.convertToPb(key));
+
+    EntityKeyEncoder.setFormat(EntityKeyEncoder.Format.LEGACY);
+    assertThat(encoder.readKey(references.get(0)), is((Object) key));
+    assertThat(encoder.writeKeys(references), is(Arrays.<Object>asList(key)));
+
+    EntityKeyEncoder.setFormat(EntityKeyEncoder.Format.DUAL);
+    assertThat(encoder.readKey(references.get(0)), is((Object) key));
+    assertThat(encoder.writeKeys(references), is(Arrays.<Object>asList(key, "E||hoge:1")));
+
+    EntityKeyEncoder.setFormat(EntityKeyEncoder.Format.COMPACT);
+    assertThat(encoder.readKey(references.get(0)), is((Object) "E||hoge:1"));
+    assertThat(encoder.writeKeys(references), is(Arrays.<Object>asList("E||hoge:1")));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void putWriteKeys_dual() {
+    EntityKeyEncoder encoder = new EntityKeyEncoder();
+    Key key = Datastore.createKey("hoge", 1);
+    DatastorePb.GetResponse.Entity entity = new DatastorePb.GetResponse.Entity();
+
+    EntityKeyEncoder.setFormat(EntityKeyEncoder.Format.DUAL);
+    Map<Object, DatastorePb.GetResponse.Entity> map =
+        new HashMap<Object, DatastorePb.GetResponse.Entity>();
+    encoder.putWriteKeys(map, KeyTranslatorPublic.convertToPb(key), entity);
+    MemcacheServiceFactory.getMemcacheService().putAll(map);
+
+    assertThat(map.size(), is(2));
+    assertThat(MemcacheServiceFactory.getMemcacheService().contains(key), is(true));
+    assertThat(MemcacheServiceFactory.getMemcacheService().contains("E||hoge:1"), is(true));
+  }
+}
@@ -0,0 +1,464 @@
+package net.vvakame.memvache;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.repackaged.com.google.protobuf.InvalidProtocolBufferException;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiDeadlineExceededException;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * レイテンシと障害を注入する {@link Delegate}。<br>
+ * service, method 毎に {@link Rule} を設定し、レイテンシ、タイムアウト、エラー、
+ * MemcacheのミスとEvictionを起こす。 {@link MemvacheDelegate#install(Map)} より前にインストールすると、
+ * Strategyと {@link MemcacheServiceWrapper} から見たスタブが遅く、壊れやすくなる。
+ * <p>
+ * 非同期のRPCは、発行してから {@link Future#get()} で結果が取れるまでにレイテンシを掛ける。
+ * {@link Future#get(long, TimeUnit)} のタイムアウトの方が短ければ {@link TimeoutException} になる。
+ * レイテンシはマイクロ秒のまま {@link System#nanoTime()} で待つので、1ミリ秒未満でも切り捨てない。
+ * </p>
+ */
+class FaultInjectionDelegate implements Delegate<Environment> {
+
+  final Delegate<Environment> parent;
+
+  final Map<String, Rule> rules = new ConcurrentHashMap<String, Rule>();
+
+  final Random random;
+
+  final AtomicInteger timeouts = new AtomicInteger();
+
+  final AtomicInteger errors = new AtomicInteger();
+
+  final AtomicInteger misses = new AtomicInteger();
+
+  final AtomicInteger evictions = new AtomicInteger();
+
+  public static FaultInjectionDelegate install() {
+    return install(1L);
+  }
+
+  /**
+   * {@link FaultInjectionDelegate}を{@link ApiProxy}に設定する。
+   * @param seed 障害を起こすかどうかを決める乱数のシード
+   * @return 新たに作成した{@link FaultInjectionDelegate}
+   */
+  public static FaultInjectionDelegate install(long seed) {
+    @SuppressWarnings("unchecked")
+    Delegate<Environment> originalDelegate = ApiProxy.getDelegate();
+    FaultInjectionDelegate newDelegate = new FaultInjectionDelegate(originalDelegate, seed);
+    ApiProxy.setDelegate(newDelegate);
+    return newDelegate;
+  }
+
+  FaultInjectionDelegate(Delegate<Environment> parent, long seed) {
+    this.parent = parent;
+    this.random = new Random(seed);
+  }
+
+  public void uninstall() {
+    ApiProxy.setDelegate(parent);
+  }
+
+  /**
+   * 規則を取得する。無ければ作成する。
+   * @param service
+   * @param method "*" で全てのmethod
+   * @return {@link Rule}
+   */
+  public Rule rule(String service, String method) {
+    String key = service + "." + method;
+    Rule rule = rules.get(key);
+    if (rule == null) {
+      rule = new Rule();
+      rules.put(key, rule);
+    }
+    return rule;
+  }
+
+  /**
+   * 全ての規則を取り除く。
+   */
+  public void clear() {
+    rules.clear();
+  }
+
+  Rule ruleFor(String service, String method) {
+    Rule rule = rules.get(service + "." + method);
+    return rule != null ? rule : rules.get(service + ".*");
+  }
+
+  boolean chance(double rate) {
+    return rate > 0 && random.nextDouble() < rate;
+  }
+
+  @Override
+  public byte[] makeSyncCall(Environment env, String service, String method, byte[] request)
+      throws ApiProxyException {
+    Rule rule = ruleFor(service, method);
+    if (rule == null) {
+      return parent.makeSyncCall(env, service, method, request);
+    }
+    sleep(TimeUnit.MICROSECONDS.toNanos(rule.latency.nextMicros(random)));
+    if (chance(rule.timeoutRate)) {
+      timeouts.incrementAndGet();
+      sleep(TimeUnit.MILLISECONDS.toNanos(rule.timeoutMillis));
+      throw new ApiDeadlineExceededException(service, method);
+    }
+    if (chance(rule.errorRate)) {
+      errors.incrementAndGet();
+      throw new RPCFailedException(service, method);
+    }
+    byte[] response = parent.makeSyncCall(env, service, method, request);
+    return inject(env, service, method, request, response, rule);
+  }
+
+  @Override
+  public Future<byte[]> makeAsyncCall(
+      final Environment env,
+      final String service,
+      final String method,
+      final byte[] request,
+      ApiConfig config) {
+    final Rule rule = ruleFor(service, method);
+    if (rule == null) {
+      return parent.makeAsyncCall(env, service, method, request, config);
+    }
+    long delayNanos = TimeUnit.MICROSECONDS.toNanos(rule.latency.nextMicros(random));
+    final ApiProxyException failure;
+    if (chance(rule.timeoutRate)) {
+      timeouts.incrementAndGet();
+      delayNanos += TimeUnit.MILLISECONDS.toNanos(rule.timeoutMillis);
+      failure = new ApiDeadlineExceededException(service, method);
+    } else if (chance(rule.errorRate)) {
+      errors.incrementAndGet();
+      failure = new RPCFailedException(service, method);
+    } else {
+      failure = null;
+    }
+    final Future<byte[]> response =
+        failure == null ? parent.makeAsyncCall(env, service, method, request, config) : null;
+    final long readyAt = System.nanoTime() + delayNanos;
+    return new Future<byte[]>() {
+
+      byte[] result;
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        return response != null && response.cancel(mayInterruptIfRunning);
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return response != null && response.isCancelled();
+      }
+
+      @Override
+      public boolean isDone() {
+        return System.nanoTime() - readyAt >= 0 && (response == null || response.isDone());
+      }
+
+      @Override
+      public byte[] get() throws InterruptedException, ExecutionException {
+        parkUntil(readyAt);
+        return complete(response == null ? null : response.get());
+      }
+
+      @Override
+      public byte[] get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException, TimeoutException {
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        if (readyAt - start > timeoutNanos) {
+          parkUntil(start + timeoutNanos);
+          throw new TimeoutException();
+        }
+        parkUntil(readyAt);
+        if (response == null) {
+          return complete(null);
+        }
+        // 遅らせた分を差し引いた残りの時間だけ待つ
+        long remaining = Math.max(0, timeoutNanos - (System.nanoTime() - start));
+        return complete(response.get(remaining, TimeUnit.NANOSECONDS));
+      }
+
+      synchronized byte[] complete(byte[] data) throws ExecutionException {
+        if (failure != null) {
+          throw new ExecutionException(failure);
+        }
+        if (result == null) {
+          result = inject(env, service, method, request, data, rule);
+        }
+        return result;
+      }
+    };
+  }
+
+  /**
+   * MemcacheのミスとEvictionを起こす。
+   */
+  byte[] inject(
+      Environment env, String service, String method, byte[] request, byte[] response, Rule rule) {
+    if (!"memcache".equals(service)) {
+      return response;
+    }
+    try {
+      if ("Get".equals(method) && rule.missRate > 0) {
+        MemcacheGetResponse responsePb = MemcacheGetResponse.parseFrom(response);
+        MemcacheGetResponse.Builder builder = responsePb.toBuilder().clearItem();
+        for (MemcacheGetResponse.Item item : responsePb.getItemList()) {
+          if (chance(rule.missRate)) {
+            misses.incrementAndGet();
+          } else {
+            builder.addItem(item);
+          }
+        }
+        return builder.build().toByteArray();
+      } else if ("Set".equals(method) && rule.evictionRate > 0) {
+        // 書き込めた後に追い出されたことにする
+        MemcacheSetRequest requestPb = MemcacheSetRequest.parseFrom(request);
+        MemcacheDeleteRequest.Builder builder =
+            MemcacheDeleteRequest.newBuilder().setNameSpace(requestPb.getNameSpace());
+        for (MemcacheSetRequest.Item item : requestPb.getItemList()) {
+          if (chance(rule.evictionRate)) {
+            builder.addItem(MemcacheDeleteRequest.Item.newBuilder().setKey(item.getKey()));
+          }
+        }
+        if (builder.getItemCount() != 0) {
+          evictions.addAndGet(builder.getItemCount());
+          parent.makeSyncCall(env, service, "Delete", builder.build().toByteArray());
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("raise exception at " + service + ", " + method, e);
+    }
+    return response;
+  }
+
+  static void sleep(long nanos) {
+    if (nanos <= 0) {
+      return;
+    }
+    try {
+      parkUntil(System.nanoTime() + nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * {@link System#nanoTime()} が deadline に達するまで待つ。
+   * @param deadline
+   * @throws InterruptedException
+   */
+  static void parkUntil(long deadline) throws InterruptedException {
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(remaining);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  @Override
+  public void log(Environment env, LogRecord logRecord) {
+    parent.log(env, logRecord);
+  }
+
+  @Override
+  public void flushLogs(Environment env) {
+    parent.flushLogs(env);
+  }
+
+  @Override
+  public List<Thread> getRequestThreads(Environment env) {
+    return parent.getRequestThreads(env);
+  }
+
+  /**
+   * service, method 毎の障害の起こし方。
+   */
+  static class Rule {
+
+    volatile Latency latency = Latency.NONE;
+
+    volatile double timeoutRate;
+
+    volatile long timeoutMillis;
+
+    volatile double errorRate;
+
+    volatile double missRate;
+
+    volatile double evictionRate;
+
+    Rule latency(Latency latency) {
+      this.latency = latency;
+      return this;
+    }
+
+    /**
+     * @param rate タイムアウトさせる割合
+     * @param millis タイムアウトするまでにかかる時間
+     * @return this
+     */
+    Rule timeouts(double rate, long millis) {
+      this.timeoutRate = rate;
+      this.timeoutMillis = millis;
+      return this;
+    }
+
+    Rule errors(double rate) {
+      this.errorRate = rate;
+      return this;
+    }
+
+    /**
+     * @param rate memcache.Get でミスにするアイテムの割合
+     * @return this
+     */
+    Rule misses(double rate) {
+      this.missRate = rate;
+      return this;
+    }
+
+    /**
+     * @param rate memcache.Set の後に追い出すアイテムの割合
+     * @return this
+     */
+    Rule evictions(double rate) {
+      this.evictionRate = rate;
+      return this;
+    }
+  }
+
+  /**
+   * 注入するレイテンシの分布。
+   */
+  abstract static class Latency {
+
+    static final Latency NONE = fixed(0);
+
+    /**
+     * @param random
+     * @return レイテンシ(マイクロ秒)
+     */
+    abstract long nextMicros(Random random);
+
+    static Latency fixed(final long millis) {
+      return new Latency() {
+
+        @Override
+        long nextMicros(Random random) {
+          return TimeUnit.MILLISECONDS.toMicros(millis);
+        }
+      };
+    }
+
+    /**
+     * 対数正規分布。
+     * @param medianMillis 中央値
+     * @param sigma log の標準偏差。大きいほど裾が長い
+     * @return {@link Latency}
+     */
+    static Latency logNormal(final double medianMillis, final double sigma) {
+      return new Latency() {
+
+        @Override
+        long nextMicros(Random random) {
+          return (long) (medianMillis * 1000 * Math.exp(sigma * random.nextGaussian()));
+        }
+      };
+    }
+
+    /**
+     * 記録したレイテンシから重複ありで選ぶ。
+     * @param micros
+     * @return {@link Latency}
+     */
+    static Latency empirical(long[] micros) {
+      final long[] samples = micros.clone();
+      Arrays.sort(samples);
+      return new Latency() {
+
+        @Override
+        long nextMicros(Random random) {
+          return samples.length == 0 ? 0 : samples[random.nextInt(samples.length)];
+        }
+      };
+    }
+
+    /**
+     * {@link Histogram} のバケットの分布に従う。値はナノ秒として扱い、バケットの上限を返す。
+     * @param histogram
+     * @return {@link Latency}
+     */
+    static Latency histogram(Histogram histogram) {
+      final long[] counts = new long[histogram.buckets.length()];
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        total += histogram.buckets.get(i);
+        counts[i] = total;
+      }
+      final long sum = total;
+      return new Latency() {
+
+        @Override
+        long nextMicros(Random random) {
+          if (sum == 0) {
+            return 0;
+          }
+          long target = (long) (random.nextDouble() * sum);
+          for (int i = 0; i < counts.length; i++) {
+            if (target < counts[i]) {
+              return TimeUnit.NANOSECONDS.toMicros(Histogram.upperBound(i));
+            }
+          }
+          return TimeUnit.NANOSECONDS.toMicros(Histogram.upperBound(counts.length - 1));
+        }
+      };
+    }
+
+    /**
+     * {@link RpcRecorder} で記録したログの service, method のレイテンシから選ぶ。
+     * @param requests
+     * @param service
+     * @param method
+     * @return {@link Latency}
+     */
+    static Latency fromLog(List<List<RpcLog.Record>> requests, String service, String method) {
+      List<Long> micros = new ArrayList<Long>();
+      for (List<RpcLog.Record> records : requests) {
+        for (RpcLog.Record record : records) {
+          if (service.equals(record.getService()) && method.equals(record.getMethod())) {
+            micros.add(record.getLatencyMicros());
+          }
+        }
+      }
+      long[] samples = new long[micros.size()];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = micros.get(i);
+      }
+      return empirical(samples);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyTranslatorPublic;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiDeadlineExceededException;
+import com.google.apphosting.api.ApiProxy.RPCFailedException;
+import com.google.apphosting.api.DatastorePb.GetRequest;
+import java.util.Random;
+import net.vvakame.memvache.FaultInjectionDelegate.Latency;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * {@link FaultInjectionDelegate} のテストケース。
+ */
+public class FaultInjectionDelegateTest extends AppEngineTestCase {
+
+  FaultInjectionDelegate faults;
+
+  /**
+   * テストケース。
+   * @throws Exception
+   */
+  @Test
+  public void latency() throws Exception {
+    Key key = DatastoreServiceFactory.getDatastoreService().put(new Entity("hoge", 1));
+    faults.rule(MemvacheDelegate.DATASTORE_V3, "Get").latency(Latency.fixed(50));
+
+    long start = System.currentTimeMillis();
+    DatastoreServiceFactory.getDatastoreService().get(key);
+    assertThat(System.currentTimeMillis() - start >= 50, is(true));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test(expected = RPCFailedException.class)
+  public void error() {
+    faults.rule(MemvacheDelegate.DATASTORE_V3, "*").errors(1.0);
+    ApiProxy.makeSyncCall(MemvacheDelegate.DATASTORE_V3, "Get", getRequest());
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void timeout() {
+    faults.rule(MemvacheDelegate.DATASTORE_V3, "Get").timeouts(1.0, 10);
+    try {
+      ApiProxy.makeSyncCall(MemvacheDelegate.DATASTORE_V3, "Get", getRequest());
+      fail();
+    } catch (ApiDeadlineExceededException e) {
+      assertThat(faults.timeouts.get(), is(1));
+    }
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void memcacheMiss() {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    memcache.put("hoge", "fuga");
+    faults.rule("memcache", "Get").misses(1.0);
+
+    assertThat(memcache.get("hoge"), nullValue());
+    assertThat(faults.misses.get(), is(1));
+
+    faults.clear();
+    assertThat("ミスにしただけで残っている", (String) memcache.get("hoge"), is("fuga"));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void memcacheEviction() {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    faults.rule("memcache", "Set").evictions(1.0);
+    memcache.put("hoge", "fuga");
+
+    faults.clear();
+    assertThat(memcache.get("hoge"), nullValue());
+    assertThat(faults.evictions.get(), is(1));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void wrapperTimeout() {
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    memcache.put("hoge", "fuga");
+    faults.rule("memcache", "Get").latency(Latency.fixed(500));
+
+    long start = System.currentTimeMillis();
+    assertThat(new MemcacheServiceWrapper(100).get("hoge"), nullValue());
+    assertThat(
+        "非同期のRPCにもレイテンシが掛かり、タイムアウトする",
+        System.currentTimeMillis() - start < 500,
+        is(true));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void latencyDistribution() {
+    Random random = new Random(1);
+    long sum = 0;
+    for (int i = 0; i < 1000; i++) {
+      sum += Latency.logNormal(10, 0.5).nextMicros(random);
+    }
+    assertThat("平均は中央値より少し大きい", sum / 1000 > 10000, is(true));
+
+    Histogram histogram = new Histogram();
+    histogram.record(1000000);
+    assertThat(Latency.histogram(histogram).nextMicros(random), is(1048L));
+
+    assertThat(Latency.empirical(new long[] {42}).nextMicros(random), is(42L));
+  }
+
+  byte[] getRequest() {
+    GetRequest requestPb = new GetRequest();
+    requestPb.addKey(KeyTranslatorPublic.convertToPb(KeyFactory.createKey("hoge", 1)));
+    return requestPb.toByteArray();
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    faults = FaultInjectionDelegate.install();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    faults.uninstall();
+    super.tearDown();
+  }
+}
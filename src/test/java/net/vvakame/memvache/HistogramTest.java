@@ -0,0 +1,44 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link Histogram} のテストケース。
+ */
+public class HistogramTest {
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void percentile_isUpperBoundOfBucket() {
+    Histogram histogram = new Histogram();
+    assertThat(histogram.getPercentile(0.5), is(0L));
+
+    for (int i = 0; i < 99; i++) {
+      histogram.record(5);
+    }
+    histogram.record(1000);
+
+    assertThat(histogram.getCount(), is(100L));
+    assertThat(histogram.getSum(), is(99L * 5 + 1000));
+    assertThat(histogram.getPercentile(0.5), is(7L));
+    assertThat(histogram.getPercentile(0.99), is(7L));
+    assertThat(histogram.getPercentile(1.0), is(1023L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void record_zeroAndNegative() {
+    Histogram histogram = new Histogram();
+    histogram.record(0);
+    histogram.record(-1);
+
+    assertThat(histogram.getPercentile(1.0), is(0L));
+  }
+}
@@ -0,0 +1,469 @@
+package net.vvakame.memvache;
+
+import com.google.apphosting.api.DatastorePb.DeleteRequest;
+import com.google.apphosting.api.DatastorePb.GetRequest;
+import com.google.apphosting.api.DatastorePb.GetResponse;
+import com.google.apphosting.api.DatastorePb.PutRequest;
+import com.google.apphosting.api.DatastorePb.PutResponse;
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.storage.onestore.v3.OnestoreEntity.Path;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jp.honestyworks.pbcache.Fingerprint;
+
+/**
+ * Entityのキー、Queryのフィンガープリント、書き込みの列からキャッシュのヒット率を見積もるシミュレータ。<br>
+ * {@link RpcRecorder} で記録したログから列を作り、設定の組み合わせ毎に流す。
+ * <ul>
+ * <li>ローカルキャッシュ: jp.honestyworks.pbcache.LocalCache と同じくバイト数で上限を決めたLRUで、
+ * エントリ毎にTTL(CacheService.LOCAL_CACHE_TTL, localcache.ttl)で失効する。
+ * 書き込まれたキーは取り除く</li>
+ * <li>Memcache: 容量は無制限とみなす。GetPutCacheStrategyと同じく、読み込みで無ければ入れ、
+ * 書き込みで上書き、削除で取り除く。TTLは指定した場合のみ</li>
+ * <li>Query: QueryCacheStrategy, AggressiveQueryCacheStrategyと同じく expireSecond で失効し、
+ * 同じKindへの書き込みで無効になる</li>
+ * </ul>
+ * アドミッションは、ローカルキャッシュに常に入れる {@link Admission#ALWAYS} と、
+ * 2回目のミスで初めて入れる {@link Admission#SECOND_HIT} を比べられる。
+ * <p>
+ * 大きなログは {@link #sample(double)} でキーを空間サンプリング(SHARDS)して流す。
+ * ローカルキャッシュの容量はサンプリングの割合で縮めて扱う。
+ * Kindの無効化は全ての書き込みで行うので、Queryのヒット率は偏らない。
+ * </p>
+ */
+class HitRateSimulator {
+
+  static final byte READ = 0;
+
+  static final byte WRITE = 1;
+
+  static final byte DELETE = 2;
+
+  static final byte QUERY = 3;
+
+  /** サンプリングで落としたキーへの書き込み。Kindの無効化だけ行う */
+  static final byte INVALIDATE = 4;
+
+  /** LocalCache のエントリ毎のオーバーヘッド */
+  static final int ENTRY_OVERHEAD = 64;
+
+  /** SHARDSのサンプリングの分解能 */
+  static final int SAMPLE_MODULUS = 1 << 24;
+
+  /**
+   * ローカルキャッシュへのアドミッションの方針。
+   */
+  enum Admission {
+    /** ミスしたら常に入れる */
+    ALWAYS,
+    /** 同じキーで2回ミスしたら入れる */
+    SECOND_HIT
+  }
+
+  int size;
+
+  long[] times = new long[1024];
+
+  long[] keys = new long[1024];
+
+  byte[] types = new byte[1024];
+
+  int[] kinds = new int[1024];
+
+  int[] bytes = new int[1024];
+
+  final Map<String, Integer> kindIds = new HashMap<String, Integer>();
+
+  double sampleRate = 1.0;
+
+  /**
+   * 記録したログから列を作る。トランザクション下のGetとQueryはキャッシュされないので含めない。
+   * @param requests {@link RpcLog#read(java.io.InputStream)} の結果
+   * @return シミュレータ
+   */
+  static HitRateSimulator fromLog(List<List<RpcLog.Record>> requests) {
+    HitRateSimulator simulator = new HitRateSimulator();
+    for (List<RpcLog.Record> records : requests) {
+      for (RpcLog.Record record : records) {
+        if (!MemvacheDelegate.DATASTORE_V3.equals(record.getService())
+            || record.getResponse() == null) {
+          continue;
+        }
+        simulator.addRecord(record);
+      }
+    }
+    return simulator;
+  }
+
+  void addRecord(RpcLog.Record record) {
+    String method = record.getMethod();
+    long time = record.getTimeMillis();
+    if ("Get".equals(method)) {
+      GetRequest requestPb = new GetRequest();
+      requestPb.mergeFrom(record.getRequest());
+      if (requestPb.getTransaction().hasApp()) {
+        return;
+      }
+      GetResponse responsePb = new GetResponse();
+      responsePb.mergeFrom(record.getResponse());
+      List<Reference> references = requestPb.keys();
+      List<GetResponse.Entity> entitys = responsePb.entitys();
+      for (int i = 0; i < references.size(); i++) {
+        Reference reference = references.get(i);
+        int length = -1;
+        if (i < entitys.size() && entitys.get(i).hasEntity()) {
+          length = entitys.get(i).getEntity().toByteArray().length;
+        }
+        read(time, keyOf(reference), kindOf(reference), length);
+      }
+    } else if ("Put".equals(method)) {
+      PutRequest requestPb = new PutRequest();
+      requestPb.mergeFrom(record.getRequest());
+      PutResponse responsePb = new PutResponse();
+      responsePb.mergeFrom(record.getResponse());
+      List<Reference> references = responsePb.keys();
+      for (int i = 0; i < references.size() && i < requestPb.entitySize(); i++) {
+        Reference reference = references.get(i);
+        int length = requestPb.entitys().get(i).toByteArray().length;
+        write(time, keyOf(reference), kindOf(reference), length);
+      }
+    } else if ("Delete".equals(method)) {
+      DeleteRequest requestPb = new DeleteRequest();
+      requestPb.mergeFrom(record.getRequest());
+      for (Reference reference : requestPb.keys()) {
+        delete(time, keyOf(reference), kindOf(reference));
+      }
+    } else if ("RunQuery".equals(method)) {
+      Query requestPb = new Query();
+      requestPb.mergeFrom(record.getRequest());
+      if (requestPb.getTransaction().hasApp()) {
+        return;
+      }
+      query(
+          time,
+          Fingerprint.toLong(record.getRequest()),
+          requestPb.getKind(),
+          record.getResponse().length);
+    }
+  }
+
+  static long keyOf(Reference reference) {
+    return Fingerprint.toLong(reference.toByteArray());
+  }
+
+  static String kindOf(Reference reference) {
+    Path path = reference.getPath();
+    return path.getElement(path.elementSize() - 1).getType();
+  }
+
+  /**
+   * Entityの読み込みを追加する。
+   * @param time
+   * @param key
+   * @param kind
+   * @param length Entityのバイト数。存在しなかった場合は負の数
+   */
+  void read(long time, long key, String kind, int length) {
+    add(READ, time, key, kind, length);
+  }
+
+  void write(long time, long key, String kind, int length) {
+    add(WRITE, time, key, kind, length);
+  }
+
+  void delete(long time, long key, String kind) {
+    add(DELETE, time, key, kind, 0);
+  }
+
+  void query(long time, long key, String kind, int length) {
+    add(QUERY, time, key, kind, length);
+  }
+
+  void add(byte type, long time, long key, String kind, int length) {
+    if (size == times.length) {
+      int capacity = size * 2;
+      times = Arrays.copyOf(times, capacity);
+      keys = Arrays.copyOf(keys, capacity);
+      types = Arrays.copyOf(types, capacity);
+      kinds = Arrays.copyOf(kinds, capacity);
+      bytes = Arrays.copyOf(bytes, capacity);
+    }
+    Integer kindId = kindIds.get(kind);
+    if (kindId == null) {
+      kindId = kindIds.size();
+      kindIds.put(kind, kindId);
+    }
+    times[size] = time;
+    keys[size] = key;
+    types[size] = type;
+    kinds[size] = kindId;
+    bytes[size] = length;
+    size++;
+  }
+
+  /**
+   * キーを空間サンプリングした列を作る。
+   * @param rate 0.0 - 1.0
+   * @return サンプリングしたシミュレータ
+   */
+  HitRateSimulator sample(double rate) {
+    HitRateSimulator sampled = new HitRateSimulator();
+    sampled.kindIds.putAll(kindIds);
+    sampled.sampleRate = sampleRate * rate;
+    long threshold = (long) (rate * SAMPLE_MODULUS);
+    String[] kindNames = new String[kindIds.size()];
+    for (Map.Entry<String, Integer> entry : kindIds.entrySet()) {
+      kindNames[entry.getValue()] = entry.getKey();
+    }
+    for (int i = 0; i < size; i++) {
+      boolean hit = (mix(keys[i]) & (SAMPLE_MODULUS - 1)) < threshold;
+      byte type = types[i];
+      if (!hit && (type == WRITE || type == DELETE)) {
+        type = INVALIDATE;
+      } else if (!hit) {
+        continue;
+      }
+      sampled.add(type, times[i], keys[i], kindNames[kinds[i]], bytes[i]);
+    }
+    return sampled;
+  }
+
+  static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  /**
+   * 全ての組み合わせの設定を作る。
+   * @param localBytes ローカルキャッシュの容量。0 はローカルキャッシュなし
+   * @param localTtlMillis ローカルキャッシュのTTL
+   * @param admissions
+   * @param expireSeconds QueryのTTL
+   * @return 設定
+   */
+  static List<Config> grid(
+      long[] localBytes, long[] localTtlMillis, Admission[] admissions, int[] expireSeconds) {
+    List<Config> configs = new ArrayList<Config>();
+    for (long bytes : localBytes) {
+      for (long ttl : localTtlMillis) {
+        for (Admission admission : admissions) {
+          for (int expireSecond : expireSeconds) {
+            Config config = new Config();
+            config.localBytes = bytes;
+            config.localTtlMillis = ttl;
+            config.admission = admission;
+            config.expireSecond = expireSecond;
+            configs.add(config);
+          }
+        }
+      }
+    }
+    return configs;
+  }
+
+  /**
+   * 設定毎にシミュレーションする。
+   * @param configs
+   * @return 結果
+   */
+  List<Result> sweep(List<Config> configs) {
+    List<Result> results = new ArrayList<Result>(configs.size());
+    for (Config config : configs) {
+      results.add(simulate(config));
+    }
+    return results;
+  }
+
+  /**
+   * シミュレーションする。
+   * @param config
+   * @return 結果
+   */
+  Result simulate(Config config) {
+    Result result = new Result(config);
+    long capacity = (long) (config.localBytes * sampleRate);
+    long queryTtlMillis = config.expireSecond * 1000L;
+    LinkedHashMap<Long, long[]> local = new LinkedHashMap<Long, long[]>(1024, 0.75f, true);
+    long used = 0;
+    Map<Long, Long> memcache = new HashMap<Long, Long>();
+    Map<Long, long[]> queries = new HashMap<Long, long[]>();
+    long[] kindVersions = new long[kindIds.size()];
+    Set<Long> doorkeeper = new HashSet<Long>();
+
+    for (int i = 0; i < size; i++) {
+      long time = times[i];
+      Long key = keys[i];
+      switch (types[i]) {
+        case READ:
+          result.reads++;
+          long[] entry = local.get(key);
+          if (entry != null && time < entry[0]) {
+            result.localHits++;
+            break;
+          }
+          if (entry != null) {
+            local.remove(key);
+            used -= entry[1];
+          }
+          Long expireAt = memcache.get(key);
+          if (expireAt != null && time < expireAt) {
+            result.memcacheHits++;
+          } else if (bytes[i] < 0) {
+            // 存在しないEntityはキャッシュされない
+            break;
+          } else {
+            memcache.put(key, expireAt(time, config.memcacheTtlMillis));
+          }
+          if (capacity == 0) {
+            break;
+          }
+          if (config.admission == Admission.SECOND_HIT && !doorkeeper.remove(key)) {
+            if (doorkeeper.size() > (1 << 20)) {
+              doorkeeper.clear();
+            }
+            doorkeeper.add(key);
+            break;
+          }
+          long weight = bytes[i] + ENTRY_OVERHEAD;
+          if (weight > capacity) {
+            break;
+          }
+          local.put(key, new long[] {expireAt(time, config.localTtlMillis), weight});
+          used += weight;
+          Iterator<long[]> iterator = local.values().iterator();
+          while (used > capacity) {
+            used -= iterator.next()[1];
+            iterator.remove();
+            result.evictions++;
+          }
+          break;
+        case WRITE:
+          kindVersions[kinds[i]]++;
+          memcache.put(key, expireAt(time, config.memcacheTtlMillis));
+          used -= removeLocal(local, key);
+          break;
+        case DELETE:
+          kindVersions[kinds[i]]++;
+          memcache.remove(key);
+          used -= removeLocal(local, key);
+          break;
+        case INVALIDATE:
+          kindVersions[kinds[i]]++;
+          break;
+        case QUERY:
+          result.queries++;
+          long[] cached = queries.get(key);
+          if (cached != null && time < cached[0] && cached[1] == kindVersions[kinds[i]]) {
+            result.queryHits++;
+          } else {
+            queries.put(key, new long[] {time + queryTtlMillis, kindVersions[kinds[i]]});
+          }
+          break;
+        default:
+          throw new IllegalStateException("unknown type " + types[i]);
+      }
+    }
+    return result;
+  }
+
+  static long removeLocal(Map<Long, long[]> local, Long key) {
+    long[] entry = local.remove(key);
+    return entry == null ? 0 : entry[1];
+  }
+
+  static long expireAt(long time, long ttlMillis) {
+    return ttlMillis <= 0 ? Long.MAX_VALUE : time + ttlMillis;
+  }
+
+  /**
+   * シミュレーションの設定。
+   */
+  static class Config {
+
+    /** ローカルキャッシュの容量(バイト)。0 はローカルキャッシュなし */
+    long localBytes = 16 * 1024 * 1024;
+
+    /** ローカルキャッシュのTTL。 CacheService.LOCAL_CACHE_TTL と同じ */
+    long localTtlMillis = 5000;
+
+    Admission admission = Admission.ALWAYS;
+
+    /** MemcacheのEntityのTTL。0 は無期限 */
+    long memcacheTtlMillis;
+
+    /** QueryのTTL。memvache.properties の expireSecond と同じ */
+    int expireSecond = 300;
+
+    @Override
+    public String toString() {
+      return String.format(
+          "local=%dKB/%dms %s expireSecond=%d",
+          localBytes / 1024,
+          localTtlMillis,
+          admission,
+          expireSecond);
+    }
+  }
+
+  /**
+   * シミュレーションの結果。
+   */
+  static class Result {
+
+    final Config config;
+
+    long reads;
+
+    long localHits;
+
+    long memcacheHits;
+
+    long evictions;
+
+    long queries;
+
+    long queryHits;
+
+    Result(Config config) {
+      this.config = config;
+    }
+
+    double localHitRate() {
+      return reads == 0 ? 0 : (double) localHits / reads;
+    }
+
+    /**
+     * @return ローカルキャッシュかMemcacheでヒットした割合
+     */
+    double hitRate() {
+      return reads == 0 ? 0 : (double) (localHits + memcacheHits) / reads;
+    }
+
+    double queryHitRate() {
+      return queries == 0 ? 0 : (double) queryHits / queries;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%-50s reads=%d local=%.3f total=%.3f queries=%d query=%.3f evictions=%d",
+          config,
+          reads,
+          localHitRate(),
+          hitRate(),
+          queries,
+          queryHitRate(),
+          evictions);
+    }
+  }
+}
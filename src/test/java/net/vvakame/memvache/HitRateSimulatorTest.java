@@ -0,0 +1,191 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+import net.vvakame.memvache.HitRateSimulator.Admission;
+import net.vvakame.memvache.HitRateSimulator.Config;
+import net.vvakame.memvache.HitRateSimulator.Result;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * {@link HitRateSimulator} のテストケース。<br>
+ * {@code mvn test -Dtest=HitRateSimulatorTest -Dhitrate.log=<RpcRecorderのログ>} で
+ * 記録したログに対して設定の組み合わせを流し、結果を出力する。
+ */
+public class HitRateSimulatorTest {
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void localHit() {
+    HitRateSimulator simulator = new HitRateSimulator();
+    simulator.read(0, 1, "hoge", 100);
+    simulator.read(1000, 1, "hoge", 100);
+    simulator.read(10000, 1, "hoge", 100);
+
+    Result result = simulator.simulate(new Config());
+    assertThat(result.reads, is(3L));
+    assertThat("2回目はローカル", result.localHits, is(1L));
+    assertThat("3回目はローカルのTTL切れでMemcache", result.memcacheHits, is(1L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void notFound() {
+    HitRateSimulator simulator = new HitRateSimulator();
+    simulator.read(0, 1, "hoge", -1);
+    simulator.read(1, 1, "hoge", -1);
+
+    Result result = simulator.simulate(new Config());
+    assertThat(result.localHits + result.memcacheHits, is(0L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void evictLeastRecentlyUsed() {
+    HitRateSimulator simulator = new HitRateSimulator();
+    simulator.read(0, 1, "hoge", 100);
+    simulator.read(1, 2, "hoge", 100);
+    simulator.read(2, 1, "hoge", 100);
+    simulator.read(3, 3, "hoge", 100);
+    simulator.read(4, 1, "hoge", 100);
+    simulator.read(5, 2, "hoge", 100);
+
+    Config config = new Config();
+    config.localBytes = 2 * (100 + HitRateSimulator.ENTRY_OVERHEAD);
+    Result result = simulator.simulate(config);
+    assertThat(result.localHits, is(2L));
+    assertThat("2は3を入れた時に追い出される", result.memcacheHits, is(1L));
+    assertThat(result.evictions, is(2L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void writeInvalidatesLocal() {
+    HitRateSimulator simulator = new HitRateSimulator();
+    simulator.read(0, 1, "hoge", 100);
+    simulator.write(1, 1, "hoge", 100);
+    simulator.read(2, 1, "hoge", 100);
+
+    Result result = simulator.simulate(new Config());
+    assertThat(result.localHits, is(0L));
+    assertThat("書き込みでMemcacheは更新される", result.memcacheHits, is(1L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void secondHitAdmission() {
+    HitRateSimulator simulator = new HitRateSimulator();
+    simulator.read(0, 1, "hoge", 100);
+    simulator.read(1, 1, "hoge", 100);
+    simulator.read(2, 1, "hoge", 100);
+
+    Config config = new Config();
+    config.admission = Admission.SECOND_HIT;
+    Result result = simulator.simulate(config);
+    assertThat("2回目のミスで入る", result.memcacheHits, is(1L));
+    assertThat(result.localHits, is(1L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void query() {
+    HitRateSimulator simulator = new HitRateSimulator();
+    simulator.query(0, 10, "hoge", 100);
+    simulator.query(1000, 10, "hoge", 100);
+    simulator.write(2000, 1, "fuga", 100);
+    simulator.query(2500, 10, "hoge", 100);
+    simulator.write(4000, 2, "hoge", 100);
+    simulator.query(5000, 10, "hoge", 100);
+    simulator.query(10000, 10, "hoge", 100);
+
+    Config config = new Config();
+    config.expireSecond = 3;
+    Result result = simulator.simulate(config);
+    assertThat(result.queries, is(5L));
+    assertThat("他のKindへの書き込みでは無効にならない", result.queryHits, is(2L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void sample() {
+    HitRateSimulator simulator = new HitRateSimulator();
+    for (int i = 0; i < 10000; i++) {
+      simulator.read(i, i % 100, "hoge", 100);
+      if (i % 10 == 0) {
+        simulator.write(i, i % 1000 + 1000, "hoge", 100);
+      }
+    }
+
+    HitRateSimulator all = simulator.sample(1.0);
+    assertThat(all.size, is(simulator.size));
+    Result expected = simulator.simulate(new Config());
+    Result actual = all.simulate(new Config());
+    assertThat(actual.localHits, is(expected.localHits));
+
+    HitRateSimulator half = simulator.sample(0.5);
+    assertThat(half.size < simulator.size, is(true));
+    assertThat("書き込みはKindの無効化のために残る", half.size > simulator.size / 10, is(true));
+    double error = Math.abs(half.simulate(new Config()).hitRate() - expected.hitRate());
+    assertThat(error < 0.05, is(true));
+  }
+
+  /**
+   * 記録したログに対して設定の組み合わせを流す。
+   * @throws Exception
+   */
+  @Test
+  public void sweepLog() throws Exception {
+    String log = System.getProperty("hitrate.log");
+    Assume.assumeTrue(log != null && !"".equals(log));
+
+    InputStream in = new BufferedInputStream(new FileInputStream(log));
+    HitRateSimulator simulator;
+    try {
+      simulator = HitRateSimulator.fromLog(RpcLog.read(in));
+    } finally {
+      in.close();
+    }
+    double rate = Double.parseDouble(System.getProperty("hitrate.sample", "1.0"));
+    if (rate < 1.0) {
+      simulator = simulator.sample(rate);
+    }
+    List<Config> configs =
+        HitRateSimulator.grid(
+            new long[] {0, 1 << 20, 4 << 20, 16 << 20, 64 << 20},
+            new long[] {1000, 5000, 30000},
+            Admission.values(),
+            new int[] {60, 300, 3600});
+    long start = System.nanoTime();
+    List<Result> results = simulator.sweep(configs);
+    for (Result result : results) {
+      System.out.println(result);
+    }
+    System.out.println(
+        configs.size()
+            + " configs, "
+            + simulator.size
+            + " events in "
+            + (System.nanoTime() - start) / 1000000
+            + "ms");
+  }
+}
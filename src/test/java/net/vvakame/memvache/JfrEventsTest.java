@@ -0,0 +1,62 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+/**
+ * {@link JfrEvents} のテストケース。
+ */
+public class JfrEventsTest {
+
+  /**
+   * テストケース。
+   * @throws Exception
+   */
+  @Test
+  public void recorded() throws Exception {
+    Path file = Files.createTempFile("memvache", ".jfr");
+    Recording recording = new Recording();
+    try {
+      recording.enable("net.vvakame.memvache.MemvacheInvalidation");
+      recording.enable("net.vvakame.memvache.MemvacheCacheLookup");
+      recording.start();
+
+      JfrEvents.invalidation("generation", "RunQuery:hoge", 5);
+      MemcacheServiceWrapper.recordLookup(JfrEvents.beginLookup(), "getAll", 3, 2, false);
+
+      recording.stop();
+      recording.dump(file);
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+      assertThat(events.size(), is(2));
+      RecordedEvent invalidation = events.get(0);
+      assertThat(
+          invalidation.getEventType().getName(), is("net.vvakame.memvache.MemvacheInvalidation"));
+      assertThat(invalidation.getString("key"), is("RunQuery:hoge"));
+      assertThat(invalidation.getLong("value"), is(5L));
+      RecordedEvent lookup = events.get(1);
+      assertThat(lookup.getInt("keys"), is(3));
+      assertThat(lookup.getInt("hits"), is(2));
+    } finally {
+      recording.close();
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void notRecording() {
+    assertThat(JfrEvents.beginRpc(), nullValue());
+    assertThat(JfrEvents.beginLookup(), nullValue());
+  }
+}
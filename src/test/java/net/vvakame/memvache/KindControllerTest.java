@@ -0,0 +1,211 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.apphosting.api.DatastorePb.QueryResult;
+import java.util.Map;
+import jp.honestyworks.pbcache.CacheContext;
+import jp.honestyworks.pbcache.QueryCache;
+import net.vvakame.memvache.KindController.Mode;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * {@link KindController} のテストケース。
+ */
+public class KindControllerTest extends AppEngineTestCase {
+
+  long now;
+
+  KindController controller;
+
+  RpcCounterDelegate countDelegate;
+
+  MemvacheDelegate memvacheDelegate;
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void writeHeavy() {
+    for (int i = 0; i < 100; i++) {
+      controller.lookup("hoge", false);
+      controller.write("hoge");
+      controller.lookup("fuga", true);
+    }
+    assertThat("窓が切り替わるまでは公開されない", controller.mode("hoge"), is(Mode.FULL));
+
+    now += KindController.WINDOW_MILLIS;
+    controller.read("piyo");
+    assertThat(controller.mode("hoge"), is(Mode.BYPASS));
+    assertThat(controller.mode("fuga"), is(Mode.FULL));
+    assertThat("記録が足りない", controller.mode("piyo"), is(Mode.FULL));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void lowHitRate() {
+    for (int i = 0; i < 100; i++) {
+      controller.lookup("hoge", i % 20 == 0);
+      controller.lookup("fuga", true);
+      controller.queryLookup("fuga", false);
+    }
+    controller.publish();
+    assertThat(controller.mode("hoge"), is(Mode.BYPASS));
+    assertThat(controller.mode("fuga"), is(Mode.ENTITY_ONLY));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void largeResult() {
+    for (int i = 0; i < 100; i++) {
+      controller.result("hoge", 1000);
+      controller.result("fuga", 10);
+    }
+    controller.publish();
+    assertThat(controller.mode("hoge"), is(Mode.ENTITY_ONLY));
+    assertThat(controller.mode("fuga"), is(Mode.FULL));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void slidingWindow() {
+    for (int i = 0; i < 100; i++) {
+      controller.write("hoge");
+    }
+    controller.publish();
+    assertThat(controller.mode("hoge"), is(Mode.BYPASS));
+
+    now += KindController.WINDOW_MILLIS * (KindController.WINDOWS - 1);
+    controller.publish();
+    assertThat("まだ窓の中", controller.mode("hoge"), is(Mode.BYPASS));
+
+    for (int i = 0; i < 200; i++) {
+      controller.read("hoge");
+    }
+    now += KindController.WINDOW_MILLIS;
+    controller.publish();
+    assertThat("古い書き込みは窓から外れた", controller.mode("hoge"), is(Mode.FULL));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void disabled() {
+    controller.enabled = false;
+    for (int i = 0; i < 100; i++) {
+      controller.write("hoge");
+    }
+    controller.publish();
+    assertThat(controller.mode("hoge"), is(Mode.FULL));
+    assertThat(controller.stats.size(), is(0));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void bypassGet() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key key = datastore.put(new Entity("hoge"));
+
+    KindController shared = KindController.get();
+    boolean enabled = shared.enabled;
+    shared.enabled = true;
+    try {
+      for (int i = 0; i < 100; i++) {
+        shared.write("hoge");
+      }
+      shared.publish();
+      Map<String, Integer> countMap = countDelegate.countMap;
+      countMap.clear();
+
+      datastore.get(key);
+      assertThat("キャッシュを参照しない", countMap.get("memcache@Get"), is(0));
+      assertThat(countMap.get("memcache@Set"), is(0));
+      assertThat(countMap.get("datastore_v3@Get"), is(1));
+
+      datastore.put(new Entity(key));
+      assertThat("書き込みはキャッシュに反映する", countMap.get("memcache@Set"), is(1));
+    } finally {
+      shared.enabled = enabled;
+      shared.reset();
+    }
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void queryCache_becomesFullDuringQuery() {
+    Query query = new Query();
+    query.setApp(ApiProxy.getCurrentEnvironment().getAppId());
+    query.setKind("hoge");
+    QueryResult result = new QueryResult();
+    result.setMoreResults(false);
+    QueryCacheStrategy strategy = new QueryCacheStrategy();
+
+    KindController shared = KindController.get();
+    boolean enabled = shared.enabled;
+    shared.enabled = true;
+    try {
+      for (int i = 0; i < 100; i++) {
+        shared.write("hoge");
+      }
+      shared.publish();
+      assertThat(strategy.pre_datastore_v3_RunQuery(query), nullValue());
+    } finally {
+      shared.enabled = enabled;
+      shared.reset();
+    }
+    // preとpostの間でFULLに切り替わった
+    assertThat(shared.mode("hoge"), is(Mode.FULL));
+    strategy.post_datastore_v3_RunQuery(query, result);
+
+    QueryCache queryCache = CacheContext.getInstance().getQueryCache();
+    assertThat(
+        "実行前の世代が分からない結果はキャッシュしない",
+        queryCache.getQuery("hoge", query.toByteArray()),
+        nullValue());
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    controller =
+        new KindController(true) {
+          @Override
+          long currentMillis() {
+            return now;
+          }
+        };
+
+    countDelegate = RpcCounterDelegate.install();
+    memvacheDelegate =
+        MemvacheDelegate.install(
+            StrategyBuilder.newBuilder()
+                .addStrategy(MemvacheDelegate.DATASTORE_V3, GetPutCacheStrategy.class)
+                .buid());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    memvacheDelegate.uninstall();
+    countDelegate.uninstall();
+    super.tearDown();
+  }
+}
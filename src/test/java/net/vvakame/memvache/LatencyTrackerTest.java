@@ -0,0 +1,45 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link LatencyTracker} のテストケース。
+ */
+public class LatencyTrackerTest {
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void percentile() {
+    LatencyTracker tracker = new LatencyTracker();
+    assertThat("サンプル不足", tracker.percentile(0.5), is(-1L));
+
+    for (int i = 1; i <= 100; i++) {
+      tracker.record(i);
+    }
+    assertThat(tracker.percentile(0.5), is(50L));
+    assertThat(tracker.percentile(0.99), is(99L));
+    assertThat(tracker.percentile(1.0), is(100L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void percentile_keepsRecentSamplesOnly() {
+    LatencyTracker tracker = new LatencyTracker();
+    for (int i = 0; i < LatencyTracker.SIZE; i++) {
+      tracker.record(1000);
+    }
+    assertThat(tracker.percentile(0.99), is(1000L));
+
+    for (int i = 0; i < LatencyTracker.SIZE; i++) {
+      tracker.record(1);
+    }
+    assertThat(tracker.percentile(0.99), is(1L));
+  }
+}
@@ -0,0 +1,154 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.vvakame.memvache.FaultInjectionDelegate.Latency;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * {@link MemcacheServiceWrapper} のテストケース。
+ */
+public class MemcacheServiceWrapperTest extends AppEngineTestCase {
+
+  FaultInjectionDelegate faults;
+
+  CircuitBreaker breaker;
+
+  double hedgeBudget;
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void breakerClosesAfterLatencyRises() {
+    MemcacheServiceFactory.getMemcacheService().put("hoge", "fuga");
+    MemcacheServiceWrapper wrapper = new MemcacheServiceWrapper(1000);
+    for (int i = 0; i < 64; i++) {
+      assertThat((String) wrapper.get("hoge"), is("fuga"));
+    }
+    assertThat("速い間はタイムアウトが短い", wrapper.adaptiveTimeout() < 300, is(true));
+
+    faults.rule("memcache", "Get").latency(Latency.fixed(300));
+    for (int i = 0; i < 20 && breaker.getState() == CircuitBreaker.State.CLOSED; i++) {
+      assertThat(wrapper.get("hoge"), nullValue());
+    }
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    assertThat(
+        "タイムアウトもレイテンシとして記録する",
+        MemcacheServiceWrapper.latency.count.get(),
+        is(64L + breaker.failureThreshold));
+
+    // OPENの時間を過ぎたことにする
+    breaker.openedAt = System.nanoTime() - breaker.openNanos;
+    assertThat("試しのRPCは指定されたタイムアウトで待つ", (String) wrapper.get("hoge"), is("fuga"));
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void hedge_firstWins() {
+    prepareHedge(100);
+    faults.rule("memcache", "Get").latency(sequence(40, 300));
+    long hedges = MemvacheMetrics.get().getCount("memcache.hedge");
+
+    long start = System.currentTimeMillis();
+    assertThat((String) new MemcacheServiceWrapper(1000).get("hoge"), is("fuga"));
+    assertThat("投げ直しを待たない", System.currentTimeMillis() - start < 300, is(true));
+    assertThat(MemvacheMetrics.get().getCount("memcache.hedge"), is(hedges + 1));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void hedge_hedgeWins() {
+    prepareHedge(100);
+    faults.rule("memcache", "Get").latency(sequence(300, 0));
+    long hedges = MemvacheMetrics.get().getCount("memcache.hedge");
+
+    long start = System.currentTimeMillis();
+    assertThat((String) new MemcacheServiceWrapper(1000).get("hoge"), is("fuga"));
+    assertThat("最初のRPCを待たない", System.currentTimeMillis() - start < 300, is(true));
+    assertThat(MemvacheMetrics.get().getCount("memcache.hedge"), is(hedges + 1));
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void hedge_budgetExhausted() {
+    prepareHedge(1);
+    faults.rule("memcache", "Get").latency(sequence(100, 0));
+    long hedges = MemvacheMetrics.get().getCount("memcache.hedge");
+
+    long start = System.currentTimeMillis();
+    assertThat((String) new MemcacheServiceWrapper(1000).get("hoge"), is("fuga"));
+    assertThat("最初のRPCを待つ", System.currentTimeMillis() - start >= 100, is(true));
+    assertThat(MemvacheMetrics.get().getCount("memcache.hedge"), is(hedges));
+    assertThat(
+        "2つ目のRPCは発行されていない",
+        faults.rule("memcache", "Get").latency.nextMicros(null),
+        is(0L));
+  }
+
+  /**
+   * p95が20ms, p99が200msになるようにレイテンシを記録し、投げ直しの予算を設定する。
+   * @param budget 投げ直す割合の上限%
+   */
+  void prepareHedge(double budget) {
+    MemcacheServiceFactory.getMemcacheService().put("hoge", "fuga");
+    for (int i = 0; i < 62; i++) {
+      MemcacheServiceWrapper.latency.record(TimeUnit.MILLISECONDS.toNanos(20));
+    }
+    for (int i = 0; i < 2; i++) {
+      MemcacheServiceWrapper.latency.record(TimeUnit.MILLISECONDS.toNanos(200));
+    }
+    MemcacheServiceWrapper.HEDGE_BUDGET = budget;
+    MemcacheServiceWrapper.hedgeTokens.set(0);
+  }
+
+  /**
+   * 呼ばれる毎に順にレイテンシを返す。使い切った後は 0。
+   * @param millis
+   * @return {@link Latency}
+   */
+  static Latency sequence(final long... millis) {
+    return new Latency() {
+
+      int index;
+
+      @Override
+      long nextMicros(Random random) {
+        return index < millis.length ? TimeUnit.MILLISECONDS.toMicros(millis[index++]) : 0;
+      }
+    };
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    faults = FaultInjectionDelegate.install();
+    breaker = MemcacheServiceWrapper.getCircuitBreaker();
+    breaker.reset();
+    MemcacheServiceWrapper.latency.reset();
+    hedgeBudget = MemcacheServiceWrapper.HEDGE_BUDGET;
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    faults.uninstall();
+    breaker.reset();
+    MemcacheServiceWrapper.latency.reset();
+    MemcacheServiceWrapper.HEDGE_BUDGET = hedgeBudget;
+    MemcacheServiceWrapper.hedgeTokens.set(0);
+    super.tearDown();
+  }
+}
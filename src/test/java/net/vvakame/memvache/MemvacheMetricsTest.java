@@ -0,0 +1,114 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import java.util.Map;
+import org.junit.Test;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.ControllerTestCase;
+
+/**
+ * {@link MemvacheMetrics} のテストケース。
+ */
+public class MemvacheMetricsTest extends ControllerTestCase {
+
+  MemvacheDelegate memvacheDelegate;
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void get_recordsHookAndRpc() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key key = Datastore.put(new Entity("hoge", 1));
+    MemvacheMetrics metrics = MemvacheMetrics.get();
+    metrics.reset();
+
+    datastore.get(key);
+    datastore.get(key);
+
+    assertThat(metrics.getCount("entity.hit.hoge"), is(2L));
+    assertThat(metrics.getCount("hook.hit.datastore_v3.Get.GetPutCacheStrategy"), is(2L));
+    Histogram pre = metrics.histogram("hook.pre.datastore_v3.Get.GetPutCacheStrategy");
+    assertThat(pre.getCount(), is(2L));
+
+    Map<String, Long> histograms = metrics.getHistograms();
+    assertThat(histograms.get("hook.pre.datastore_v3.Get.GetPutCacheStrategy.count"), is(2L));
+    assertThat(metrics.getCounters().get("entity.hit.hoge"), is(2L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void put_recordsParentRpc() {
+    MemvacheMetrics metrics = MemvacheMetrics.get();
+    metrics.reset();
+
+    Datastore.put(new Entity("hoge", 1));
+
+    long sync = metrics.histogram("rpc.datastore_v3.Put").getCount();
+    long async = metrics.histogram("rpc.async.datastore_v3.Put").getCount();
+    assertThat(sync + async, is(1L));
+    assertThat(metrics.getCount("rpc.bytes.datastore_v3.Put") > 0, is(true));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void kindCounters_surviveReset() {
+    MemvacheMetrics metrics = MemvacheMetrics.get();
+    MemvacheMetrics.KindCounters counters = metrics.kindCounters("test.kind.");
+    counters.get("hoge").increment();
+    assertThat(counters.get("hoge"), sameInstance(counters.get("hoge")));
+    assertThat(metrics.getCount("test.kind.hoge"), is(1L));
+
+    metrics.reset();
+    assertThat(metrics.getCount("test.kind.hoge"), is(0L));
+    counters.get("hoge").increment();
+    assertThat(metrics.getCount("test.kind.hoge"), is(1L));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void hookMetrics_surviveReset() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key key = Datastore.put(new Entity("hoge", 1));
+    MemvacheMetrics metrics = MemvacheMetrics.get();
+    datastore.get(key);
+    Histogram pre = metrics.histogram("hook.pre.datastore_v3.Get.GetPutCacheStrategy");
+    assertThat(pre.getCount() > 0, is(true));
+
+    metrics.reset();
+    assertThat(pre.getCount(), is(0L));
+    datastore.get(key);
+    assertThat(
+        metrics.histogram("hook.pre.datastore_v3.Get.GetPutCacheStrategy"), sameInstance(pre));
+    assertThat(pre.getCount(), is(1L));
+    assertThat(metrics.getCount("hook.hit.datastore_v3.Get.GetPutCacheStrategy"), is(1L));
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    memvacheDelegate =
+        MemvacheDelegate.install(
+            StrategyBuilder.newBuilder()
+                .addStrategy(MemvacheDelegate.DATASTORE_V3, GetPutCacheStrategy.class)
+                .buid());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    memvacheDelegate.uninstall();
+    super.tearDown();
+  }
+}
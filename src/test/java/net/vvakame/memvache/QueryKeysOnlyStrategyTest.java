@@ -3,8 +3,13 @@ package net.vvakame.memvache;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityTranslatorPublic;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.apphosting.api.DatastorePb;
 import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
@@ -200,6 +205,59 @@ public class QueryKeysOnlyStrategyTest extends ControllerTestCase {
     assertThat("素通し", countMap.get("datastore_v3@RunQuery"), is(1));
   }
 
+  /**
+   * テストケース。
+   */
+  @Test
+  public void queryKeysOnly_learnMissingCache() {
+    for (int i = 1; i <= 10; i++) {
+      Entity entity = new Entity("hoge", i);
+      entity.setProperty("v", i);
+      Datastore.put(entity);
+    }
+
+    Map<String, Integer> countMap = countDelegate.countMap;
+    for (int i = 1; i <= QueryKeysOnlyStrategy.MIN_EXECUTIONS; i++) {
+      MemvacheDelegate.getMemcache().clearAll();
+      countMap.clear();
+      assertThat(
+          Datastore.query("hoge").filter("v", FilterOperator.EQUAL, i).asEntityList().size(),
+          is(1));
+      assertThat("学習するまでは書き換える", countMap.get("datastore_v3@Get"), is(1));
+    }
+
+    MemvacheDelegate.getMemcache().clearAll();
+    countMap.clear();
+    List<Entity> entities =
+        Datastore.query("hoge").filter("v", FilterOperator.EQUAL, 10).asEntityList();
+    assertThat(entities.size(), is(1));
+    assertThat((Long) entities.get(0).getProperty("v"), is(10L));
+    assertThat("値だけ違うQueryは同じ形", countMap.get("datastore_v3@Get"), is(0));
+    assertThat(countMap.get("memcache@Get"), is(0));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void queryKeysOnly_projection() {
+    Entity entity = new Entity("hoge", 1);
+    entity.setProperty("v1", 1);
+    entity.setProperty("v2", 2);
+    Datastore.put(entity);
+
+    Map<String, Integer> countMap = countDelegate.countMap;
+    countMap.clear();
+    Query query = new Query("hoge").addProjection(new PropertyProjection("v1", Long.class));
+    List<Entity> entities =
+        DatastoreServiceFactory.getDatastoreService()
+            .prepare(query)
+            .asList(FetchOptions.Builder.withDefaults());
+    assertThat(entities.size(), is(1));
+    assertThat(entities.get(0).hasProperty("v2"), is(false));
+    assertThat("素通し", countMap.get("datastore_v3@Get"), is(0));
+  }
+
   /**
    * テストケース。
    * @author vvakame
@@ -322,6 +380,8 @@ public class QueryKeysOnlyStrategyTest extends ControllerTestCase {
   public void setUp() throws Exception {
     super.setUp();
 
+    QueryShape.clear();
+
     // かならず RpcCounterDelegate が最初
     countDelegate = RpcCounterDelegate.install();
 
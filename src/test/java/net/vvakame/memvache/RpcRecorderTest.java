@@ -0,0 +1,132 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * {@link RpcRecorder} と RpcReplayer のテストケース。
+ */
+public class RpcRecorderTest extends AppEngineTestCase {
+
+  final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  /**
+   * テストケース。
+   * @throws Exception
+   */
+  @Test
+  public void record() throws Exception {
+    Key key = datastore.put(new Entity(KeyFactory.createKey("hoge", 1)));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RpcRecorder recorder = RpcRecorder.install(out);
+    try {
+      assertThat(recorder.beginRequest(true), is(true));
+      datastore.get(key);
+      datastore.put(new Entity("hoge"));
+      assertThat(recorder.endRequest(), is(true));
+
+      assertThat(recorder.beginRequest(false), is(false));
+      datastore.get(key);
+      assertThat(recorder.endRequest(), is(false));
+    } finally {
+      recorder.uninstall();
+    }
+
+    List<List<RpcLog.Record>> requests = RpcLog.read(new ByteArrayInputStream(out.toByteArray()));
+    assertThat(requests.size(), is(1));
+    List<RpcLog.Record> records = requests.get(0);
+    assertThat(records.size(), is(2));
+    assertThat(records.get(0).getService(), is("datastore_v3"));
+    assertThat(records.get(0).getMethod(), is("Get"));
+    assertThat(records.get(0).getResponse(), notNullValue());
+    assertThat(records.get(0).isError(), is(false));
+    assertThat(records.get(1).getMethod(), is("Put"));
+    assertThat(recorder.getRecorded(), is(1L));
+  }
+
+  /**
+   * テストケース。
+   * @throws Exception
+   */
+  @Test
+  public void record_overflow() throws Exception {
+    Key key = datastore.put(new Entity(KeyFactory.createKey("hoge", 1)));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RpcRecorder recorder = RpcRecorder.install(out);
+    recorder.maxBytes = 1;
+    try {
+      recorder.beginRequest(true);
+      datastore.get(key);
+      assertThat(recorder.endRequest(), is(false));
+    } finally {
+      recorder.uninstall();
+    }
+
+    assertThat(recorder.getDropped(), is(1L));
+    assertThat(RpcLog.read(new ByteArrayInputStream(out.toByteArray())).size(), is(0));
+  }
+
+  /**
+   * テストケース。
+   * @throws Exception
+   */
+  @Test
+  public void replay() throws Exception {
+    for (int i = 1; i <= 10; i++) {
+      Entity entity = new Entity(KeyFactory.createKey("hoge", i));
+      entity.setProperty("group", i % 2);
+      datastore.put(entity);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RpcRecorder recorder = RpcRecorder.install(out);
+    try {
+      for (int i = 0; i < 5; i++) {
+        recorder.beginRequest(true);
+        datastore.get(KeyFactory.createKey("hoge", 1));
+        datastore.get(KeyFactory.createKey("hoge", 2));
+        // Nextが発行されるようにする
+        datastore
+            .prepare(new Query("hoge"))
+            .asList(FetchOptions.Builder.withLimit(10).prefetchSize(2).chunkSize(2))
+            .size();
+        recorder.endRequest();
+      }
+    } finally {
+      recorder.uninstall();
+    }
+    List<List<RpcLog.Record>> requests = RpcLog.read(new ByteArrayInputStream(out.toByteArray()));
+    assertThat(requests.size(), is(5));
+
+    RpcReplayer.Result none =
+        new RpcReplayer(StrategyBuilder.newBuilder().buid()).replay(requests);
+    assertThat(none.toString(), none.errors, is(0));
+    assertThat(none.toString(), none.datastore, is(none.recordedDatastore));
+    assertThat(none.memcache, is(0));
+
+    RpcReplayer.Result cached =
+        new RpcReplayer(
+                StrategyBuilder.newBuilder()
+                    .addStrategy(MemvacheDelegate.DATASTORE_V3, GetPutCacheStrategy.class)
+                    .buid())
+            .replay(requests);
+    assertThat(cached.toString(), cached.errors, is(0));
+    assertThat(cached.toString(), cached.datastore < none.datastore, is(true));
+    assertThat(cached.avoided() > 0, is(true));
+  }
+}
@@ -0,0 +1,407 @@
+package net.vvakame.memvache;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyTranslatorPublic;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.DatastorePb.BeginTransactionRequest;
+import com.google.apphosting.api.DatastorePb.DeleteRequest;
+import com.google.apphosting.api.DatastorePb.GetRequest;
+import com.google.apphosting.api.DatastorePb.GetResponse;
+import com.google.apphosting.api.DatastorePb.NextRequest;
+import com.google.apphosting.api.DatastorePb.PutRequest;
+import com.google.apphosting.api.DatastorePb.PutResponse;
+import com.google.apphosting.api.DatastorePb.Query;
+import com.google.apphosting.api.DatastorePb.QueryResult;
+import com.google.apphosting.api.DatastorePb.Transaction;
+import com.google.storage.onestore.v3.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3.OnestoreEntity.Path;
+import com.google.storage.onestore.v3.OnestoreEntity.Reference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link RpcRecorder} で記録したログを、任意のStrategyの組み合わせでローカルのスタブに流し直す。<br>
+ * 新しいキャッシュの方針が実際のトラフィックでどれだけDatastoreのRPCを減らすかを、
+ * デプロイ前に見積もるのに使う。
+ * <ul>
+ * <li>ログのGet/RunQuery/Nextのレスポンスに含まれるEntityを、先にスタブに入れておく</li>
+ * <li>AppIdは現在の {@link ApiProxy.Environment} のものに差し替える</li>
+ * <li>トランザクションのハンドルとカーソルは、流し直した時のものに対応付ける</li>
+ * <li>Putのキーはログのレスポンスのキーに揃え、後続のGetが同じEntityを指すようにする</li>
+ * <li>datastore_v3 と memcache 以外のRPCは流さない。非同期のRPCも同期で流す</li>
+ * </ul>
+ * 流し終わったら、入れたEntityと書き込まれたEntityは削除する。
+ */
+class RpcReplayer {
+
+  final Map<String, List<Class<? extends Strategy>>> config;
+
+  final String appId = ApiProxy.getCurrentEnvironment().getAppId();
+
+  /** ログのトランザクションのハンドル → 流し直した時のハンドル */
+  final Map<Long, Long> transactions = new HashMap<Long, Long>();
+
+  /** ログのカーソル → 流し直した時のカーソル */
+  final Map<Long, Long> cursors = new HashMap<Long, Long>();
+
+  /** 後片付けで削除するキー */
+  final Map<Key, Reference> written = new LinkedHashMap<Key, Reference>();
+
+  /**
+   * the constructor.
+   * @param config 適用するStrategy。 Strategyなしの場合は空のMap
+   * @category constructor
+   */
+  RpcReplayer(Map<String, List<Class<? extends Strategy>>> config) {
+    this.config = config;
+  }
+
+  /**
+   * ログを流し直す。
+   * @param requests {@link RpcLog#read(java.io.InputStream)} の結果
+   * @return 結果
+   */
+  Result replay(List<List<RpcLog.Record>> requests) {
+    transactions.clear();
+    cursors.clear();
+    MemvacheDelegate.getMemcache().clearAll();
+    prime(requests);
+
+    Result result = new Result();
+    RpcCounterDelegate counter = RpcCounterDelegate.install();
+    MemvacheDelegate memvache = config.isEmpty() ? null : MemvacheDelegate.install(config);
+    try {
+      for (List<RpcLog.Record> records : requests) {
+        // 記録した1リクエストを1リクエストとして流す
+        if (memvache != null) {
+          memvache.initStrategies();
+        }
+        result.requests++;
+        for (RpcLog.Record record : records) {
+          replay(record, result);
+        }
+      }
+    } finally {
+      if (memvache != null) {
+        memvache.uninstall();
+      }
+      counter.uninstall();
+      cleanUp();
+    }
+    for (Map.Entry<String, Integer> entry : counter.countMap.entrySet()) {
+      if (entry.getKey().startsWith(MemvacheDelegate.DATASTORE_V3 + "@")) {
+        result.datastore += entry.getValue();
+      } else if (entry.getKey().startsWith("memcache@")) {
+        result.memcache += entry.getValue();
+      }
+    }
+    return result;
+  }
+
+  void replay(RpcLog.Record record, Result result) {
+    String service = record.getService();
+    if (!MemvacheDelegate.DATASTORE_V3.equals(service) && !"memcache".equals(service)) {
+      result.skipped++;
+      return;
+    }
+    if (MemvacheDelegate.DATASTORE_V3.equals(service)) {
+      result.recordedDatastore++;
+    }
+    result.recordedMicros += record.getLatencyMicros();
+    byte[] request = rewrite(record);
+    if (request == null) {
+      result.errors++;
+      return;
+    }
+    long start = System.nanoTime();
+    byte[] response;
+    try {
+      response = ApiProxy.makeSyncCall(service, record.getMethod(), request);
+    } catch (ApiProxyException e) {
+      result.errors++;
+      return;
+    } finally {
+      result.replayedMicros += (System.nanoTime() - start) / 1000;
+    }
+    result.rpcs++;
+    mapResponse(record, response);
+  }
+
+  /**
+   * リクエストを流し直せる形に書き換える。
+   * @return 流せない場合 null
+   */
+  byte[] rewrite(RpcLog.Record record) {
+    String method = record.getMethod();
+    byte[] request = record.getRequest();
+    if (!MemvacheDelegate.DATASTORE_V3.equals(record.getService())) {
+      return request;
+    }
+    if ("Get".equals(method)) {
+      GetRequest requestPb = new GetRequest();
+      requestPb.mergeFrom(request);
+      for (Reference key : requestPb.keys()) {
+        key.setApp(appId);
+      }
+      if (requestPb.getTransaction().hasApp()) {
+        retarget(requestPb.getMutableTransaction());
+      }
+      return requestPb.toByteArray();
+    } else if ("Put".equals(method)) {
+      PutRequest requestPb = new PutRequest();
+      requestPb.mergeFrom(request);
+      List<Reference> keys = new ArrayList<Reference>();
+      if (record.getResponse() != null) {
+        PutResponse responsePb = new PutResponse();
+        responsePb.mergeFrom(record.getResponse());
+        keys = responsePb.keys();
+      }
+      List<EntityProto> entitys = requestPb.mutableEntitys();
+      for (int i = 0; i < entitys.size(); i++) {
+        EntityProto entity = entitys.get(i);
+        if (keys.size() == entitys.size()) {
+          // 採番されたIDを記録時と揃える
+          Reference key = keys.get(i);
+          entity.getMutableKey().copyFrom(key);
+          Path group = entity.getMutableEntityGroup();
+          group.clearElement();
+          group.addElement().copyFrom(key.getPath().getElement(0));
+        }
+        entity.getMutableKey().setApp(appId);
+      }
+      if (requestPb.getTransaction().hasApp()) {
+        retarget(requestPb.getMutableTransaction());
+      }
+      return requestPb.toByteArray();
+    } else if ("Delete".equals(method)) {
+      DeleteRequest requestPb = new DeleteRequest();
+      requestPb.mergeFrom(request);
+      for (Reference key : requestPb.keys()) {
+        key.setApp(appId);
+      }
+      if (requestPb.getTransaction().hasApp()) {
+        retarget(requestPb.getMutableTransaction());
+      }
+      return requestPb.toByteArray();
+    } else if ("RunQuery".equals(method)) {
+      Query requestPb = new Query();
+      requestPb.mergeFrom(request);
+      requestPb.setApp(appId);
+      if (requestPb.hasAncestor()) {
+        requestPb.getMutableAncestor().setApp(appId);
+      }
+      if (requestPb.getTransaction().hasApp()) {
+        retarget(requestPb.getMutableTransaction());
+      }
+      return requestPb.toByteArray();
+    } else if ("Next".equals(method)) {
+      NextRequest requestPb = new NextRequest();
+      requestPb.mergeFrom(request);
+      Long cursor = cursors.get(requestPb.getCursor().getCursor());
+      if (cursor == null) {
+        return null;
+      }
+      requestPb.getMutableCursor().setApp(appId).setCursor(cursor);
+      return requestPb.toByteArray();
+    } else if ("BeginTransaction".equals(method)) {
+      BeginTransactionRequest requestPb = new BeginTransactionRequest();
+      requestPb.mergeFrom(request);
+      requestPb.setApp(appId);
+      return requestPb.toByteArray();
+    } else if ("Commit".equals(method) || "Rollback".equals(method)) {
+      Transaction requestPb = new Transaction();
+      requestPb.mergeFrom(request);
+      retarget(requestPb);
+      return requestPb.toByteArray();
+    } else {
+      return request;
+    }
+  }
+
+  void retarget(Transaction tx) {
+    tx.setApp(appId);
+    Long handle = transactions.get(tx.getHandle());
+    if (handle != null) {
+      tx.setHandle(handle);
+    }
+  }
+
+  /**
+   * 記録時と流し直した時のレスポンスから、ハンドルとカーソルを対応付ける。
+   */
+  void mapResponse(RpcLog.Record record, byte[] response) {
+    String method = record.getMethod();
+    if (!MemvacheDelegate.DATASTORE_V3.equals(record.getService())) {
+      return;
+    }
+    if ("Put".equals(method)) {
+      PutResponse responsePb = new PutResponse();
+      responsePb.mergeFrom(response);
+      for (Reference key : responsePb.keys()) {
+        written.put(KeyTranslatorPublic.createFromPb(key), key);
+      }
+    }
+    if (record.getResponse() == null) {
+      return;
+    }
+    if ("BeginTransaction".equals(method)) {
+      Transaction recorded = new Transaction();
+      recorded.mergeFrom(record.getResponse());
+      Transaction replayed = new Transaction();
+      replayed.mergeFrom(response);
+      transactions.put(recorded.getHandle(), replayed.getHandle());
+    } else if ("RunQuery".equals(method) || "Next".equals(method)) {
+      QueryResult recorded = new QueryResult();
+      recorded.mergeFrom(record.getResponse());
+      QueryResult replayed = new QueryResult();
+      replayed.mergeFrom(response);
+      if (recorded.hasCursor() && replayed.hasCursor()) {
+        cursors.put(recorded.getCursor().getCursor(), replayed.getCursor().getCursor());
+      }
+    }
+  }
+
+  /**
+   * ログのレスポンスに含まれるEntityを、最初に現れた時の状態でスタブに入れる。
+   */
+  void prime(List<List<RpcLog.Record>> requests) {
+    Map<Key, EntityProto> entities = new LinkedHashMap<Key, EntityProto>();
+    for (List<RpcLog.Record> records : requests) {
+      for (RpcLog.Record record : records) {
+        if (!MemvacheDelegate.DATASTORE_V3.equals(record.getService())
+            || record.getResponse() == null) {
+          continue;
+        }
+        String method = record.getMethod();
+        if ("Get".equals(method)) {
+          GetResponse responsePb = new GetResponse();
+          responsePb.mergeFrom(record.getResponse());
+          for (GetResponse.Entity entity : responsePb.entitys()) {
+            if (entity.hasEntity()) {
+              addEntity(entities, entity.getEntity());
+            }
+          }
+        } else if ("RunQuery".equals(method) || "Next".equals(method)) {
+          QueryResult responsePb = new QueryResult();
+          responsePb.mergeFrom(record.getResponse());
+          if (!responsePb.isKeysOnly()) {
+            for (EntityProto entity : responsePb.results()) {
+              addEntity(entities, entity);
+            }
+          }
+        }
+      }
+    }
+    PutRequest requestPb = new PutRequest();
+    for (EntityProto entity : entities.values()) {
+      requestPb.addEntity(entity);
+      if (requestPb.entitySize() == 500) {
+        put(requestPb);
+        requestPb = new PutRequest();
+      }
+    }
+    if (requestPb.entitySize() != 0) {
+      put(requestPb);
+    }
+  }
+
+  void addEntity(Map<Key, EntityProto> entities, EntityProto entity) {
+    EntityProto copy = new EntityProto();
+    copy.copyFrom(entity);
+    Reference reference = copy.getMutableKey();
+    reference.setApp(appId);
+    if (copy.getEntityGroup().elementSize() == 0) {
+      copy.getMutableEntityGroup().addElement().copyFrom(reference.getPath().getElement(0));
+    }
+    Key key = KeyTranslatorPublic.createFromPb(copy.getKey());
+    if (!entities.containsKey(key)) {
+      entities.put(key, copy);
+    }
+  }
+
+  void put(PutRequest requestPb) {
+    byte[] response =
+        ApiProxy.makeSyncCall(MemvacheDelegate.DATASTORE_V3, "Put", requestPb.toByteArray());
+    PutResponse responsePb = new PutResponse();
+    responsePb.mergeFrom(response);
+    for (Reference key : responsePb.keys()) {
+      written.put(KeyTranslatorPublic.createFromPb(key), key);
+    }
+  }
+
+  void cleanUp() {
+    if (written.isEmpty()) {
+      return;
+    }
+    DeleteRequest requestPb = new DeleteRequest();
+    for (Reference key : written.values()) {
+      requestPb.addKey(key);
+    }
+    ApiProxy.makeSyncCall(MemvacheDelegate.DATASTORE_V3, "Delete", requestPb.toByteArray());
+    written.clear();
+    MemvacheDelegate.getMemcache().clearAll();
+  }
+
+  /**
+   * 流し直した結果。
+   */
+  static class Result {
+
+    int requests;
+
+    /** 流したRPCの数 */
+    int rpcs;
+
+    /** 対象外で流さなかったRPCの数 */
+    int skipped;
+
+    /** 流せなかったか、例外になったRPCの数 */
+    int errors;
+
+    /** ログに記録されていたDatastoreのRPCの数 */
+    int recordedDatastore;
+
+    /** スタブまで届いたDatastoreのRPCの数 */
+    int datastore;
+
+    /** スタブまで届いたMemcacheのRPCの数 */
+    int memcache;
+
+    long recordedMicros;
+
+    long replayedMicros;
+
+    /**
+     * @return Strategyによって減ったDatastoreのRPCの数
+     */
+    int avoided() {
+      return recordedDatastore - datastore;
+    }
+
+    @Override
+    public String toString() {
+      return "requests="
+          + requests
+          + ", rpcs="
+          + rpcs
+          + ", skipped="
+          + skipped
+          + ", errors="
+          + errors
+          + ", datastore="
+          + datastore
+          + "/"
+          + recordedDatastore
+          + ", memcache="
+          + memcache
+          + ", recorded(us)="
+          + recordedMicros
+          + ", replayed(us)="
+          + replayedMicros;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import java.util.List;
+import org.junit.Test;
+import org.slim3.datastore.Datastore;
+import org.slim3.tester.ControllerTestCase;
+
+/**
+ * {@link RpcTracer} のテストケース。
+ */
+public class RpcTracerTest extends ControllerTestCase {
+
+  MemvacheDelegate memvacheDelegate;
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void notTraced() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key key = Datastore.put(new Entity("hoge", 1));
+
+    RpcTracer.beginRequest(false);
+    datastore.get(key);
+
+    assertThat(RpcTracer.getCurrentRequest().size(), is(0));
+    assertThat(RpcTracer.endRequest().size(), is(0));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void traced() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key key = Datastore.put(new Entity("hoge", 1));
+    MemvacheDelegate.getMemcache().clearAll();
+
+    RpcTracer.beginRequest(true);
+    datastore.get(key);
+    datastore.get(key);
+    List<RpcTrace> traces = RpcTracer.endRequest();
+
+    assertThat(traces.size(), is(2));
+
+    RpcTrace miss = traces.get(0);
+    assertThat(miss.getService(), is("datastore_v3"));
+    assertThat(miss.getMethod(), is("Get"));
+    assertThat(miss.getSource(), is("datastore"));
+    assertThat(miss.getParentNanos() >= 0, is(true));
+    assertThat(miss.getSteps().size(), is(2));
+    assertThat(miss.getSteps().get(0).isPre(), is(true));
+    assertThat(miss.getSteps().get(0).getStrategy(), is("GetPutCacheStrategy"));
+
+    RpcTrace hit = traces.get(1);
+    assertThat(hit.getSource(), is("memcache"));
+    assertThat(hit.getServedBy(), is("GetPutCacheStrategy"));
+    assertThat(hit.getParentNanos(), is(-1L));
+    assertThat(hit.getTotalNanos() >= 0, is(true));
+    assertThat(hit.getMemcacheCalls() > 0, is(true));
+
+    assertThat(RpcTracer.getRecent().contains(hit), is(true));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void endRequest_closesOpenTraces() throws Exception {
+    int live = RpcTracer.liveTraces.get();
+
+    RpcTracer.beginRequest(true);
+    RpcTrace trace = RpcTracer.start("datastore_v3", "Get", new byte[0]);
+    assertThat(RpcTracer.liveTraces.get(), is(live + 1));
+
+    // 結果を取得されないままリクエストが終わった
+    RpcTracer.endRequest();
+    assertThat(RpcTracer.liveTraces.get(), is(live));
+
+    RpcTracer.finish(trace, new byte[0]);
+    assertThat("二重に減らさない", RpcTracer.liveTraces.get(), is(live));
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    memvacheDelegate =
+        MemvacheDelegate.install(
+            StrategyBuilder.newBuilder()
+                .addStrategy(MemvacheDelegate.DATASTORE_V3, GetPutCacheStrategy.class)
+                .buid());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    RpcTracer.endRequest();
+    memvacheDelegate.uninstall();
+    super.tearDown();
+  }
+}
@@ -0,0 +1,383 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * Strategyの組み合わせごとに決まったシナリオを流し、RPCの回数とレイテンシを比較するベンチマーク。<br>
+ * Strategyなしの場合を基準に、減ったDatastoreのRPCと増えたMemcacheのRPCを出力する。
+ * ローカルのスタブ上で動くので、レイテンシは組み合わせ同士の相対的な比較にのみ使うこと。
+ * <p>
+ * 通常のテストでは実行されない。 {@code mvn test -Dtest=ScenarioBenchmark} で実行する。
+ * 操作の回数とシードはシステムプロパティ scenario.ops, scenario.seed で変えられる。
+ * </p>
+ */
+public class ScenarioBenchmark extends AppEngineTestCase {
+
+  /** 組み合わせを作るStrategy */
+  static final List<Class<? extends Strategy>> CANDIDATES =
+      Arrays.<Class<? extends Strategy>>asList(
+          QueryKeysOnlyStrategy.class,
+          GetPutCacheStrategy.class,
+          QueryCacheStrategy.class,
+          AggressiveQueryCacheStrategy.class);
+
+  static final int ENTITIES = 50;
+
+  static final int GROUPS = 5;
+
+  static final int PAGE_SIZE = 10;
+
+  final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  int runs;
+
+  /**
+   * 全てのシナリオを全てのStrategyの組み合わせで実行する。
+   */
+  @Test
+  public void run() {
+    int ops = Integer.getInteger("scenario.ops", 200);
+    long seed = Long.getLong("scenario.seed", 1L);
+    List<List<Class<? extends Strategy>>> combinations = combinations();
+
+    StringBuilder report = new StringBuilder();
+    report.append(
+        String.format(
+            "%-14s %-58s %6s %7s %6s %6s %9s %9s %9s%n",
+            "workload",
+            "strategies",
+            "ds",
+            "avoided",
+            "mc",
+            "added",
+            "p50(us)",
+            "p95(us)",
+            "p99(us)"));
+    for (Workload workload : workloads()) {
+      // JITのウォームアップ
+      run(workload, combinations.get(0), ops, seed);
+
+      Result baseline = null;
+      for (List<Class<? extends Strategy>> strategies : combinations) {
+        Result result = run(workload, strategies, ops, seed);
+        if (baseline == null) {
+          baseline = result;
+        }
+        report.append(
+            String.format(
+                "%-14s %-58s %6d %7d %6d %6d %9.1f %9.1f %9.1f%n",
+                workload.name,
+                name(strategies),
+                result.datastore,
+                baseline.datastore - result.datastore,
+                result.memcache,
+                result.memcache - baseline.memcache,
+                result.percentile(0.50) / 1000.0,
+                result.percentile(0.95) / 1000.0,
+                result.percentile(0.99) / 1000.0));
+      }
+      assertThat(baseline.memcache, is(0));
+    }
+    System.out.println(report);
+  }
+
+  /**
+   * シナリオを1回実行する。実行ごとにKindを変えて、前の実行のキャッシュが影響しないようにする。
+   */
+  Result run(Workload workload, List<Class<? extends Strategy>> strategies, int ops, long seed) {
+    String kind = "Scenario" + runs++;
+    RpcCounterDelegate counter = RpcCounterDelegate.install();
+    MemvacheDelegate memvache = null;
+    if (!strategies.isEmpty()) {
+      StrategyBuilder builder = StrategyBuilder.newBuilder();
+      for (Class<? extends Strategy> clazz : strategies) {
+        builder.addStrategy(MemvacheDelegate.DATASTORE_V3, clazz);
+      }
+      memvache = MemvacheDelegate.install(builder.buid());
+    }
+    try {
+      workload.seed(kind);
+      counter.countMap.clear();
+
+      Random random = new Random(seed);
+      long[] nanos = new long[ops];
+      for (int i = 0; i < ops; i++) {
+        // 1操作を1リクエストとみなす
+        if (memvache != null) {
+          memvache.initStrategies();
+        }
+        long start = System.nanoTime();
+        workload.step(random, kind);
+        nanos[i] = System.nanoTime() - start;
+      }
+      return new Result(counter.countMap, nanos);
+    } finally {
+      if (memvache != null) {
+        memvache.uninstall();
+      }
+      counter.uninstall();
+    }
+  }
+
+  /**
+   * Strategyなしを先頭に、全ての組み合わせを作成する。組み合わせの中は優先度の順。
+   */
+  static List<List<Class<? extends Strategy>>> combinations() {
+    List<List<Class<? extends Strategy>>> combinations =
+        new ArrayList<List<Class<? extends Strategy>>>();
+    for (int mask = 0; mask < (1 << CANDIDATES.size()); mask++) {
+      List<Class<? extends Strategy>> strategies = new ArrayList<Class<? extends Strategy>>();
+      for (int i = 0; i < CANDIDATES.size(); i++) {
+        if ((mask & (1 << i)) != 0) {
+          strategies.add(CANDIDATES.get(i));
+        }
+      }
+      Collections.sort(
+          strategies,
+          new Comparator<Class<? extends Strategy>>() {
+
+            @Override
+            public int compare(Class<? extends Strategy> o1, Class<? extends Strategy> o2) {
+              return Integer.compare(priority(o1), priority(o2));
+            }
+          });
+      combinations.add(strategies);
+    }
+    return combinations;
+  }
+
+  static int priority(Class<? extends Strategy> clazz) {
+    try {
+      return clazz.newInstance().getPriority();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String name(List<Class<? extends Strategy>> strategies) {
+    if (strategies.isEmpty()) {
+      return "none";
+    }
+    StringBuilder builder = new StringBuilder();
+    for (Class<? extends Strategy> clazz : strategies) {
+      if (builder.length() != 0) {
+        builder.append('+');
+      }
+      builder.append(clazz.getSimpleName().replace("Strategy", ""));
+    }
+    return builder.toString();
+  }
+
+  Key key(String kind, long id) {
+    return KeyFactory.createKey(kind, id);
+  }
+
+  void putEntity(String kind, long id, long value) {
+    Entity entity = new Entity(key(kind, id));
+    entity.setProperty("group", id % GROUPS);
+    entity.setProperty("value", value);
+    datastore.put(entity);
+  }
+
+  void seedEntities(String kind) {
+    for (int i = 1; i <= ENTITIES; i++) {
+      putEntity(kind, i, 0);
+    }
+  }
+
+  Entity get(String kind, long id) {
+    try {
+      return datastore.get(key(kind, id));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  void batchGet(Random random, String kind, int size) {
+    List<Key> keys = new ArrayList<Key>(size);
+    for (int i = 0; i < size; i++) {
+      keys.add(key(kind, 1 + random.nextInt(ENTITIES)));
+    }
+    datastore.get(keys);
+  }
+
+  void queryGroup(Random random, String kind) {
+    Query query = new Query(kind);
+    query.addFilter("group", FilterOperator.EQUAL, (long) random.nextInt(GROUPS));
+    datastore.prepare(query).asList(FetchOptions.Builder.withLimit(ENTITIES));
+  }
+
+  void scan(String kind) {
+    Query query = new Query(kind);
+    Cursor cursor = null;
+    do {
+      FetchOptions options = FetchOptions.Builder.withLimit(PAGE_SIZE);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      QueryResultList<Entity> page = datastore.prepare(query).asQueryResultList(options);
+      cursor = page.size() < PAGE_SIZE ? null : page.getCursor();
+    } while (cursor != null);
+  }
+
+  void update(String kind, long id) {
+    Transaction tx = datastore.beginTransaction();
+    try {
+      Entity entity = datastore.get(tx, key(kind, id));
+      entity.setProperty("value", (Long) entity.getProperty("value") + 1);
+      datastore.put(tx, entity);
+      tx.commit();
+    } catch (EntityNotFoundException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  List<Workload> workloads() {
+    List<Workload> workloads = new ArrayList<Workload>();
+    workloads.add(
+        new Workload("read-heavy") {
+
+          @Override
+          void step(Random random, String kind) {
+            int r = random.nextInt(100);
+            if (r < 80) {
+              get(kind, 1 + random.nextInt(ENTITIES));
+            } else if (r < 90) {
+              batchGet(random, kind, 5);
+            } else if (r < 98) {
+              queryGroup(random, kind);
+            } else {
+              putEntity(kind, 1 + random.nextInt(ENTITIES), random.nextInt());
+            }
+          }
+        });
+    workloads.add(
+        new Workload("write-heavy") {
+
+          @Override
+          void step(Random random, String kind) {
+            int r = random.nextInt(100);
+            if (r < 60) {
+              putEntity(kind, 1 + random.nextInt(ENTITIES), random.nextInt());
+            } else if (r < 90) {
+              get(kind, 1 + random.nextInt(ENTITIES));
+            } else {
+              queryGroup(random, kind);
+            }
+          }
+        });
+    workloads.add(
+        new Workload("paginated") {
+
+          @Override
+          void step(Random random, String kind) {
+            if (random.nextInt(10) == 0) {
+              putEntity(kind, 1 + random.nextInt(ENTITIES), random.nextInt());
+            } else {
+              scan(kind);
+            }
+          }
+        });
+    workloads.add(
+        new Workload("transactional") {
+
+          @Override
+          void step(Random random, String kind) {
+            long id = 1 + random.nextInt(ENTITIES);
+            if (random.nextInt(10) < 3) {
+              get(kind, id);
+            } else {
+              update(kind, id);
+            }
+          }
+        });
+    return workloads;
+  }
+
+  /**
+   * ベンチマークのシナリオ。
+   */
+  abstract class Workload {
+
+    final String name;
+
+    Workload(String name) {
+      this.name = name;
+    }
+
+    /**
+     * シナリオの前準備。RPCの回数には含めない。
+     * @param kind
+     */
+    void seed(String kind) {
+      seedEntities(kind);
+    }
+
+    /**
+     * シナリオの1操作を行う。
+     * @param random
+     * @param kind
+     */
+    abstract void step(Random random, String kind);
+  }
+
+  /**
+   * 1回の実行の結果。
+   */
+  static class Result {
+
+    final int datastore;
+
+    final int memcache;
+
+    final long[] nanos;
+
+    Result(Map<String, Integer> countMap, long[] nanos) {
+      int datastore = 0;
+      int memcache = 0;
+      for (Map.Entry<String, Integer> entry : countMap.entrySet()) {
+        if (entry.getKey().startsWith(MemvacheDelegate.DATASTORE_V3 + "@")) {
+          datastore += entry.getValue();
+        } else if (entry.getKey().startsWith("memcache@")) {
+          memcache += entry.getValue();
+        }
+      }
+      this.datastore = datastore;
+      this.memcache = memcache;
+      this.nanos = nanos.clone();
+      Arrays.sort(this.nanos);
+    }
+
+    long percentile(double p) {
+      int index = (int) Math.ceil(p * nanos.length) - 1;
+      return nanos[Math.max(0, Math.min(index, nanos.length - 1))];
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.api.DatastorePb.Query;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * {@link StaleWhileRevalidate} のテストケース。
+ */
+public class StaleWhileRevalidateTest extends AppEngineTestCase {
+
+  final List<Runnable> pending = new ArrayList<Runnable>();
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void parse() {
+    Map<String, Integer> map = StaleWhileRevalidate.parse("hoge:10, fuga:60,piyo");
+    assertThat(map.size(), is(2));
+    assertThat(map.get("hoge"), is(10));
+    assertThat(map.get("fuga"), is(60));
+    assertThat(StaleWhileRevalidate.parse(null).size(), is(0));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void singleFlight() {
+    Query query = new Query();
+    query.setApp(KeyFactory.createKey("hoge", 1).getAppId());
+    query.setKind("hoge");
+    byte[] request = query.toByteArray();
+
+    assertThat(StaleWhileRevalidate.refresh("hoge", request), is(true));
+    assertThat("実行中は始めない", StaleWhileRevalidate.refresh("hoge", request), is(false));
+    assertThat("別のQueryは始める", StaleWhileRevalidate.refresh("fuga", request), is(true));
+    assertThat(pending.size(), is(2));
+
+    pending.remove(0).run();
+    assertThat(StaleWhileRevalidate.isRefreshing(), is(false));
+    assertThat("終わったらロックが外れる", StaleWhileRevalidate.refresh("hoge", request), is(true));
+  }
+
+  /**
+   * テストケース。
+   */
+  @Test
+  public void withoutExecutor() {
+    Query query = new Query();
+    query.setApp(KeyFactory.createKey("hoge", 1).getAppId());
+    query.setKind("hoge");
+    byte[] request = query.toByteArray();
+
+    StaleWhileRevalidate.setExecutor(null);
+    assertThat(StaleWhileRevalidate.isEnabled(), is(false));
+    assertThat("やり直さない", StaleWhileRevalidate.refresh("hoge", request), is(false));
+    assertThat(
+        "ロックを置かない",
+        MemvacheDelegate.getMemcache().contains(StaleWhileRevalidate.LOCK_PREFIX + "hoge"),
+        is(false));
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    StaleWhileRevalidate.setExecutor(
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            pending.add(command);
+          }
+        });
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    StaleWhileRevalidate.setExecutor(null);
+    super.tearDown();
+  }
+}
@@ -0,0 +1,419 @@
+package net.vvakame.memvache;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.junit.Test;
+import org.slim3.tester.AppEngineTestCase;
+
+/**
+ * 複数スレッドから同時に {@link MemvacheDelegate} を使った時のスループットと一貫性を調べるハーネス。
+ * <p>
+ * 各スレッドは自分の持ち分のEntityだけを更新し、自分が書いたバージョンが Get と Query で読めるかを確かめる。
+ * 読めなければ古い値の読み込み(stale read)か、キャッシュの無効化の取りこぼし(lost invalidation)。<br>
+ * 一貫性の検査は決定的なモードで行う。RPCの度にスケジューラに制御を返し、シードで決まる順に
+ * スレッドを1つずつ進めるので、失敗したシードを指定すれば同じインターリーブを再現できる。
+ * </p>
+ * <p>
+ * 通常のテストでは実行されない。 {@code mvn test -Dtest=StressBenchmark} で実行する。
+ * ここで見つかった競合は {@link ConsistencyTest} に固定した順序で再現させて残す。
+ * システムプロパティ stress.threads, stress.ops (1スレッドあたり), stress.seed, stress.rounds で調整する。
+ * 失敗したシードは {@code -Dstress.seed=<seed> -Dstress.rounds=1} で再実行できる。
+ * </p>
+ */
+public class StressBenchmark extends AppEngineTestCase {
+
+  static final int MIN_KEYS = 32;
+
+  final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  int runs;
+
+  /**
+   * スレッド数を増やしながら、自由に走らせた時のスループットを計測する。
+   */
+  @Test
+  public void scaling() {
+    int maxThreads = Integer.getInteger("stress.threads", 8);
+    int ops = Integer.getInteger("stress.ops", 200);
+    long seed = Long.getLong("stress.seed", 1L);
+
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("%8s %10s %12s %11s%n", "threads", "ops", "ops/sec", "violations"));
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      Run run = new Run(threads, ops, seed, false);
+      long start = System.nanoTime();
+      run.execute();
+      long nanos = System.nanoTime() - start;
+      report.append(
+          String.format(
+              "%8d %10d %12.1f %11d%n",
+              threads,
+              threads * ops,
+              threads * ops * 1000000000.0 / nanos,
+              run.violations.size()));
+    }
+    System.out.println(report);
+  }
+
+  /**
+   * 決定的なモードで、シードごとに一貫性を検査する。
+   */
+  @Test
+  public void consistency() {
+    int threads = Integer.getInteger("stress.threads", 8);
+    int ops = Integer.getInteger("stress.ops", 200);
+    long seed = Long.getLong("stress.seed", 1L);
+    int rounds = Integer.getInteger("stress.rounds", 10);
+
+    List<String> failures = new ArrayList<String>();
+    for (int round = 0; round < rounds; round++) {
+      Run run = new Run(threads, ops, seed + round, true);
+      run.execute();
+      if (!run.violations.isEmpty()) {
+        failures.add("seed=" + (seed + round) + " " + run.violations.get(0));
+      }
+    }
+    assertThat(failures.toString(), failures.isEmpty(), is(true));
+  }
+
+  /**
+   * 1回の実行。
+   */
+  class Run {
+
+    final int threads;
+
+    final int ops;
+
+    final long seed;
+
+    final int keys;
+
+    final String kind = "Stress" + runs++;
+
+    final Scheduler scheduler;
+
+    final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+
+    Run(int threads, int ops, long seed, boolean deterministic) {
+      this.threads = threads;
+      this.ops = ops;
+      this.seed = seed;
+      this.keys = Math.max(MIN_KEYS, threads);
+      this.scheduler = new Scheduler(threads, seed, deterministic);
+    }
+
+    void execute() {
+      SchedulingDelegate scheduling = SchedulingDelegate.install(scheduler);
+      MemvacheDelegate memvache =
+          MemvacheDelegate.install(
+              StrategyBuilder.newBuilder()
+                  .addStrategy(MemvacheDelegate.DATASTORE_V3, AggressiveQueryCacheStrategy.class)
+                  .addStrategy(MemvacheDelegate.DATASTORE_V3, QueryKeysOnlyStrategy.class)
+                  .addStrategy(MemvacheDelegate.DATASTORE_V3, GetPutCacheStrategy.class)
+                  .buid());
+      try {
+        for (int id = 1; id <= keys; id++) {
+          put(id, 0);
+        }
+        Environment env = ApiProxy.getCurrentEnvironment();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+          Thread thread = new Thread(new Worker(i, env, memvache), "stress-" + i);
+          workers.add(thread);
+          thread.start();
+        }
+        scheduler.run();
+        for (Thread thread : workers) {
+          thread.join();
+        }
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        memvache.uninstall();
+        scheduling.uninstall();
+      }
+    }
+
+    int owner(long id) {
+      return (int) (id % threads);
+    }
+
+    void put(long id, long version) {
+      Entity entity = new Entity(KeyFactory.createKey(kind, id));
+      entity.setProperty("owner", (long) owner(id));
+      entity.setProperty("version", version);
+      datastore.put(entity);
+    }
+
+    /**
+     * 自分の持ち分のEntityを更新しながら、GetとQueryの結果を検査するスレッド。
+     */
+    class Worker implements Runnable {
+
+      final int index;
+
+      final Environment env;
+
+      final MemvacheDelegate memvache;
+
+      final Random random;
+
+      /** 自分が最後に書いたバージョン */
+      final long[] written = new long[keys + 1];
+
+      /** 他のスレッドのEntityについて、最後に読んだバージョン */
+      final long[] seen = new long[keys + 1];
+
+      Worker(int index, Environment env, MemvacheDelegate memvache) {
+        this.index = index;
+        this.env = env;
+        this.memvache = memvache;
+        this.random = new Random(seed * 31 + index);
+      }
+
+      @Override
+      public void run() {
+        ApiProxy.setEnvironmentForCurrentThread(env);
+        scheduler.begin(index);
+        try {
+          for (int i = 0; i < ops; i++) {
+            // 1操作を1リクエストとみなす
+            memvache.initStrategies();
+            step(i);
+          }
+        } catch (Throwable e) {
+          violations.add("thread " + index + ": " + e);
+        } finally {
+          scheduler.end(index);
+        }
+      }
+
+      long ownedId() {
+        long id;
+        do {
+          id = 1 + random.nextInt(keys);
+        } while (owner(id) != index);
+        return id;
+      }
+
+      void step(int op) throws EntityNotFoundException {
+        int r = random.nextInt(10);
+        if (r < 4) {
+          long id = ownedId();
+          written[(int) id]++;
+          put(id, written[(int) id]);
+        } else if (r < 8) {
+          long id = 1 + random.nextInt(keys);
+          Key key = KeyFactory.createKey(kind, id);
+          long version = (Long) datastore.get(key).getProperty("version");
+          check(op, "get", id, version);
+        } else {
+          Query query = new Query(kind);
+          query.addFilter("owner", FilterOperator.EQUAL, (long) index);
+          List<Entity> entities =
+              datastore.prepare(query).asList(FetchOptions.Builder.withLimit(keys));
+          int expected = 0;
+          for (long id = 1; id <= keys; id++) {
+            if (owner(id) == index) {
+              expected++;
+            }
+          }
+          if (entities.size() != expected) {
+            violations.add(
+                String.format(
+                    "thread %d op %d: query returned %d of %d entities",
+                    index, op, entities.size(), expected));
+          }
+          for (Entity entity : entities) {
+            check(op, "query", entity.getKey().getId(), (Long) entity.getProperty("version"));
+          }
+        }
+      }
+
+      void check(int op, String type, long id, long version) {
+        int i = (int) id;
+        if (owner(id) == index) {
+          if (version != written[i]) {
+            violations.add(
+                String.format(
+                    "thread %d op %d: %s of own entity %d read version %d, wrote %d",
+                    index, op, type, id, version, written[i]));
+          }
+        } else {
+          if (version < seen[i]) {
+            violations.add(
+                String.format(
+                    "thread %d op %d: %s of entity %d went back from version %d to %d",
+                    index, op, type, id, seen[i], version));
+          }
+          seen[i] = Math.max(seen[i], version);
+        }
+      }
+    }
+  }
+
+  /**
+   * 決定的なモードで、スレッドを1つずつ進めるスケジューラ。<br>
+   * 自由に走らせる場合は何もしない。
+   */
+  static class Scheduler {
+
+    final boolean deterministic;
+
+    final Random random;
+
+    final Semaphore[] turns;
+
+    final boolean[] finished;
+
+    final Semaphore yielded = new Semaphore(0);
+
+    final ThreadLocal<Integer> current = new ThreadLocal<Integer>();
+
+    Scheduler(int threads, long seed, boolean deterministic) {
+      this.deterministic = deterministic;
+      this.random = new Random(seed);
+      this.turns = new Semaphore[threads];
+      for (int i = 0; i < threads; i++) {
+        turns[i] = new Semaphore(0);
+      }
+      this.finished = new boolean[threads];
+    }
+
+    /**
+     * ワーカースレッドの開始。自分の番が来るまで待つ。
+     */
+    void begin(int index) {
+      if (!deterministic) {
+        return;
+      }
+      current.set(index);
+      turns[index].acquireUninterruptibly();
+    }
+
+    /**
+     * RPCの直前に呼ばれる。スケジューラに制御を返し、自分の番が来るまで待つ。
+     */
+    void pause() {
+      Integer index = current.get();
+      if (!deterministic || index == null) {
+        return;
+      }
+      yielded.release();
+      turns[index].acquireUninterruptibly();
+    }
+
+    /**
+     * ワーカースレッドの終了。
+     */
+    void end(int index) {
+      if (!deterministic) {
+        return;
+      }
+      finished[index] = true;
+      current.remove();
+      yielded.release();
+    }
+
+    /**
+     * 全てのワーカースレッドが終わるまで、シードで決まる順にスレッドを進める。
+     */
+    void run() {
+      if (!deterministic) {
+        return;
+      }
+      List<Integer> alive = new ArrayList<Integer>();
+      for (int i = 0; i < turns.length; i++) {
+        alive.add(i);
+      }
+      while (!alive.isEmpty()) {
+        Integer index = alive.get(random.nextInt(alive.size()));
+        turns[index].release();
+        yielded.acquireUninterruptibly();
+        if (finished[index]) {
+          alive.remove(index);
+        }
+      }
+    }
+  }
+
+  /**
+   * RPCの直前で {@link Scheduler#pause()} を呼ぶ {@link Delegate}。
+   * {@link MemvacheDelegate} の下に置くので、Memvacheが行うMemcacheのRPCも対象になる。
+   */
+  static class SchedulingDelegate implements Delegate<Environment> {
+
+    final Delegate<Environment> parent;
+
+    final Scheduler scheduler;
+
+    static SchedulingDelegate install(Scheduler scheduler) {
+      @SuppressWarnings("unchecked")
+      Delegate<Environment> originalDelegate = ApiProxy.getDelegate();
+      SchedulingDelegate newDelegate = new SchedulingDelegate(originalDelegate, scheduler);
+      ApiProxy.setDelegate(newDelegate);
+      return newDelegate;
+    }
+
+    SchedulingDelegate(Delegate<Environment> parent, Scheduler scheduler) {
+      this.parent = parent;
+      this.scheduler = scheduler;
+    }
+
+    void uninstall() {
+      ApiProxy.setDelegate(parent);
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment env, String service, String method, byte[] request)
+        throws ApiProxyException {
+      scheduler.pause();
+      return parent.makeSyncCall(env, service, method, request);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(
+        Environment env, String service, String method, byte[] request, ApiConfig config) {
+      scheduler.pause();
+      return parent.makeAsyncCall(env, service, method, request, config);
+    }
+
+    @Override
+    public void log(Environment env, LogRecord logRecord) {
+      parent.log(env, logRecord);
+    }
+
+    @Override
+    public void flushLogs(Environment env) {
+      parent.flushLogs(env);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment env) {
+      return parent.getRequestThreads(env);
+    }
+  }
+}